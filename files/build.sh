@@ -4,7 +4,8 @@ base_dir=$(dirname $0)
 
 rm -fr ${base_dir}/clickhouse_data/
 chmod +x ${base_dir}/clickhouse
+# config.xml is generated in the work dir for every build from ${base_dir}/config.xml
 cat pipe_file| ${base_dir}/clickhouse local \
 --queries-file=build.sql \
---config-file=${base_dir}/config.xml \
---verbose --logger.level=trace --stacktrace
\ No newline at end of file
+--config-file=config.xml \
+--stacktrace
@@ -48,7 +48,7 @@ function downloadAndUnzip() {
     part_zip_name=`echo ${part_zip_name[1]}`
     target_zip_path="$disk"detached/"$part_zip_name"
     rm -f $target_zip_path
-    `which hdfs` dfs -get hdfs_part_path > $target_zip_path
+    `which hdfs` dfs -get "$hdfs_part_path" "$target_zip_path"
     if [ "$?" != "0" ]; then
         echo "download $hdfs_part_path failed or target disk $disk is bad disk, always try clean"
         rm -f $target_zip_path
@@ -57,6 +57,8 @@ function downloadAndUnzip() {
     part_name=`echo $part_zip_name|sed "s/.zip//g"`
     target_path=`echo $target_zip_path|sed "s/.zip//g"`
     rm -fr $target_path
+    # the zip has DEFLATE or STORED (transferMode = "store") entries, and zip64 ones for files over 4GB,
+    # unzip 6.0+ extracts all of them
     unzip -q $target_zip_path -d $target_path
     if [ "$?" != "0" ]; then
         echo "unzip $target_zip_path failed, $part_zip_name is corrupted or target disk $disk is bad disk, always try clean"
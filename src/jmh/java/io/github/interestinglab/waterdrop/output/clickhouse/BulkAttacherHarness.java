@@ -0,0 +1,267 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Checks {@link BulkAttacher} without a cluster: the zips are read from a file:// dir through
+ * {@link LocalPartStorage}, and an in-process http server plays clickhouse, answering the data paths of two disks
+ * and attaching a detached part by moving it away. The stand-in drops the response of the first attach of every
+ * part, and the storage refuses some moves to attached/, so the checks cover the detached names, the spread of
+ * parts unzipped at the same time over the disks, the retry finding its part already attached, and the moves.
+ *
+ * Usage: BulkAttacherHarness
+ */
+public class BulkAttacherHarness
+{
+  private static final Logger log = LoggerFactory.getLogger(BulkAttacherHarness.class);
+  private static final String[] ZIPS = {
+      "job-a__202001_1_1_0.zip",
+      "job-b__202002_2_2_0.zip",
+      "job-c__202003_3_3_0.zip",
+      "job-d__202004_4_4_1_7.zip",
+      // never moves to attached/
+      "job-e__202005_5_5_0.zip"
+  };
+  // stands in for large zips, so the reservations outweigh any change in the free space of the disks
+  private static final long RESERVED_ZIP_BYTES = 1L << 40;
+
+  public static void main(String[] args) throws Exception
+  {
+    checkDetachedNames();
+    File dir = Files.createTempDirectory("bulk-attacher-harness").toFile();
+    try {
+      checkAttach(dir);
+    }
+    finally {
+      FileUtils.deleteQuietly(dir);
+    }
+    System.out.println("detached names, disk spread, lost attach responses and moves to attached/ checks passed");
+  }
+
+  private static void checkDetachedNames()
+  {
+    check("202001_7_7_0".equals(BulkAttacher.detachedName("job-a__202001_1_1_0.zip", 7)), "detached name");
+    check("202001_7_7_2_9".equals(BulkAttacher.detachedName("job-a__202001_3_5_2_9.zip", 7)), "mutated part name");
+    check("202001_7_7_0".equals(BulkAttacher.detachedName("202001_1_1_0", 7)), "name without prefix or .zip");
+    try {
+      BulkAttacher.detachedName("job-a__202001_1.zip", 7);
+      throw new IllegalStateException("unexpected part name accepted");
+    }
+    catch (IllegalArgumentException expected) {
+      // fails before anything is unzipped
+    }
+  }
+
+  private static void checkAttach(File dir) throws Exception
+  {
+    File root = new File(dir, "root");
+    File[] disks = {new File(dir, "disk1"), new File(dir, "disk2")};
+    for (File disk : disks) {
+      check(new File(disk, "detached").mkdirs(), "failed to create " + disk);
+    }
+    check(root.mkdirs(), "failed to create " + root);
+    for (String zip : ZIPS) {
+      try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(new File(root, zip)))) {
+        out.putNextEntry(new ZipEntry("checksums.txt"));
+        out.write(zip.getBytes(StandardCharsets.UTF_8));
+        out.putNextEntry(new ZipEntry("data.bin"));
+        out.write(new byte[10_000]);
+      }
+    }
+
+    ClickhouseStub clickhouse = new ClickhouseStub(disks);
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", clickhouse::handle);
+    server.start();
+    HarnessStorage storage = new HarnessStorage(ZIPS.length);
+    int failed;
+    try {
+      BulkAttacher attacher = new BulkAttacher(
+          log,
+          storage,
+          "http://127.0.0.1:" + server.getAddress().getPort(),
+          null,
+          null,
+          "db",
+          "t",
+          ZIPS.length,
+          2
+      );
+      failed = attacher.attachAll(root.toURI().toString());
+    }
+    finally {
+      server.stop(0);
+    }
+
+    check(failed == 1, failed + " failed parts instead of the one which never moves");
+    for (String zip : ZIPS) {
+      String partition = partition(BulkAttacher.detachedName(zip, 0));
+      Integer calls = clickhouse.attachCalls.get(partition);
+      check(calls != null && calls == 1, "part of " + partition + " attached " + calls + " times");
+    }
+    check(clickhouse.attachCalls.size() == ZIPS.length, "attached " + clickhouse.attachCalls.keySet());
+    int[] parts = new int[disks.length];
+    for (int i = 0; i < disks.length; i++) {
+      parts[i] = new File(disks[i], "active").list().length;
+      check(new File(disks[i], "detached").list().length == 0, "parts left detached on " + disks[i]);
+    }
+    check(Math.abs(parts[0] - parts[1]) <= 1, "parts unzipped together are spread " + Arrays.toString(parts));
+
+    String[] attached = new File(root, BulkAttacher.ATTACHED_DIR).list();
+    Arrays.sort(attached);
+    check(
+        Arrays.equals(Arrays.copyOf(ZIPS, ZIPS.length - 1), attached),
+        "attached/ holds " + Arrays.toString(attached)
+    );
+    check(new File(root, ZIPS[ZIPS.length - 1]).exists(), "zip which never moved is gone");
+    check(storage.refusedMoves.get() > ZIPS.length - 1, "moves were not retried");
+    System.out.println(String.format(
+        "%d parts attached on disks %s, %d refused moves",
+        ZIPS.length,
+        Arrays.toString(parts),
+        storage.refusedMoves.get()
+    ));
+  }
+
+  private static String partition(String partName)
+  {
+    return partName.substring(0, partName.indexOf('_'));
+  }
+
+  private static void check(boolean condition, String message)
+  {
+    if (!condition) {
+      throw new IllegalStateException(message);
+    }
+  }
+
+  /**
+   * Holds every zip open until all of them are being unzipped, and fails the moves to attached/: every first try,
+   * every try of the last zip, and one move which goes through but reports a failure, as an s3 copy may
+   */
+  private static class HarnessStorage extends LocalPartStorage
+  {
+    private final CountDownLatch opened;
+    private final Map<String, Integer> moves = new ConcurrentHashMap<>();
+    private final AtomicInteger refusedMoves = new AtomicInteger();
+
+    HarnessStorage(int zips)
+    {
+      this.opened = new CountDownLatch(zips);
+    }
+
+    @Override
+    public long length(String path)
+    {
+      long length = super.length(path);
+      return length >= 0 && !path.contains("/" + BulkAttacher.ATTACHED_DIR + "/") ? RESERVED_ZIP_BYTES : length;
+    }
+
+    @Override
+    public InputStream open(String path) throws FileNotFoundException
+    {
+      opened.countDown();
+      try {
+        check(opened.await(30, TimeUnit.SECONDS), "the zips were not unzipped at the same time");
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException(e);
+      }
+      return super.open(path);
+    }
+
+    @Override
+    public void rename(String from, String to) throws IOException
+    {
+      int move = moves.merge(from, 1, Integer::sum);
+      if (from.endsWith(ZIPS[ZIPS.length - 1]) || move == 1) {
+        refusedMoves.incrementAndGet();
+        throw new IOException("refused to move " + from);
+      }
+      super.rename(from, to);
+      if (from.endsWith(ZIPS[0]) && move == 2) {
+        throw new IOException("moved " + from + " but reported a failure");
+      }
+    }
+  }
+
+  /**
+   * Answers the data paths of the table and attaches a detached part by moving it to the active dir of its disk,
+   * dropping the response of the first attach of every part. Counts the attach calls by partition, the zips of the
+   * harness have one part per partition
+   */
+  private static class ClickhouseStub
+  {
+    private final File[] disks;
+    private final Map<String, Integer> attachCalls = new ConcurrentHashMap<>();
+
+    ClickhouseStub(File[] disks)
+    {
+      this.disks = disks;
+    }
+
+    void handle(HttpExchange exchange) throws IOException
+    {
+      String sql = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+      int status = 200;
+      StringBuilder response = new StringBuilder();
+      if (sql.contains("data_paths")) {
+        for (File disk : disks) {
+          response.append(disk.getAbsolutePath()).append("/\n");
+        }
+      } else if (sql.contains(" attach part ")) {
+        String part = sql.substring(sql.indexOf('\'') + 1, sql.lastIndexOf('\''));
+        int calls = attachCalls.merge(partition(part), 1, Integer::sum);
+        boolean attached = false;
+        for (File disk : disks) {
+          File detached = new File(disk, "detached/" + part);
+          if (detached.isDirectory()) {
+            File active = new File(disk, "active");
+            check(active.isDirectory() || active.mkdirs(), "failed to create " + active);
+            Files.move(detached.toPath(), new File(active, part).toPath());
+            attached = true;
+          }
+        }
+        if (!attached) {
+          status = 500;
+          response.append("Code: 233. DB::Exception: Detached part \"").append(part).append("\" not found");
+        } else if (calls == 1) {
+          exchange.close();
+          return;
+        }
+      } else {
+        status = 400;
+        response.append("unexpected query ").append(sql);
+      }
+      byte[] body = response.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        out.write(body);
+      }
+    }
+  }
+}
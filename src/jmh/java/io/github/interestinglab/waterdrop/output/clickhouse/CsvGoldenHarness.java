@@ -0,0 +1,367 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.yandex.clickhouse.util.ClickHouseArrayUtil;
+import ru.yandex.clickhouse.util.ClickHouseValueFormatter;
+import scala.collection.JavaConverters;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.function.Supplier;
+
+/**
+ * Checks that {@link CsvWriter} writes the same bytes as the csv writer it replaced, kept below as
+ * {@link BaselineCsv}, for every column type the baseline wrote text clickhouse parses: strings with quotes,
+ * separators and surrogates, all integer widths, doubles and floats over their whole range, decimals, Bool,
+ * DateTime, Date and arrays, and null cells with and without a default value. The one deviation allowed is a
+ * decimal the baseline wrote in scientific notation, e.g. 0E-10, which the encoders write as a plain decimal.
+ * Maps, tuples, booleans of integer columns and timestamps of Date columns are left out, the baseline wrote their
+ * java text.
+ *
+ * Usage: CsvGoldenHarness [rows]
+ */
+public class CsvGoldenHarness
+{
+  private static final Logger log = LoggerFactory.getLogger(CsvGoldenHarness.class);
+  private static final String[] COLUMN_TYPES = {
+      "String",
+      "Nullable(String)",
+      "Int64",
+      "Int32",
+      "Int16",
+      "Int8",
+      "Float64",
+      "Float32",
+      "Decimal(18, 4)",
+      "Decimal(38, 10)",
+      "Bool",
+      "DateTime",
+      "Date",
+      "Array(String)",
+      "Array(Int64)",
+      "Array(Float64)"
+  };
+  private static final DataType[] FIELD_TYPES = {
+      DataTypes.StringType,
+      DataTypes.StringType,
+      DataTypes.LongType,
+      DataTypes.IntegerType,
+      DataTypes.ShortType,
+      DataTypes.ByteType,
+      DataTypes.DoubleType,
+      DataTypes.FloatType,
+      DataTypes.createDecimalType(18, 4),
+      DataTypes.createDecimalType(38, 10),
+      DataTypes.BooleanType,
+      DataTypes.TimestampType,
+      DataTypes.DateType,
+      DataTypes.createArrayType(DataTypes.StringType),
+      DataTypes.createArrayType(DataTypes.LongType),
+      DataTypes.createArrayType(DataTypes.DoubleType)
+  };
+  // String, Int32 and Decimal(18, 4) have a default value
+  private static final Object[] DEFAULT_VALUES = {
+      "unknown", null, null, "0", null, null, null, null, "0.0000", null, null, null, null, null, null, null
+  };
+  private static final String[] WORDS = {
+      "plain", "with \"quotes\"", "with, comma", "back\\slash", "new\nline", "tab\tseparated", "it's", "`tick`",
+      "\u4e2d\u6587", "\ud83d\ude00", "lone \ud800 surrogate", ""
+  };
+  private static final int BATCH_ROWS = 10_000;
+  // 1970 to 2100
+  private static final long MAX_EPOCH_MILLIS = 4_102_444_800_000L;
+
+  public static void main(String[] args) throws Exception
+  {
+    int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+    Random random = new Random(42);
+    BaselineCsv baseline = new BaselineCsv(COLUMN_TYPES, DEFAULT_VALUES);
+    long bytes = 0;
+    int differences = 0;
+    for (int first = 0; first < count; first += BATCH_ROWS) {
+      List<Row> rows = new ArrayList<>(BATCH_ROWS);
+      for (int i = first; i < Math.min(count, first + BATCH_ROWS); i++) {
+        rows.add(generate(random));
+      }
+      ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      try (Writer writer = new OutputStreamWriter(expected, StandardCharsets.UTF_8)) {
+        for (Row row : rows) {
+          writer.write(baseline.format(row));
+        }
+      }
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      new CsvWriter(actual, COLUMN_TYPES, FIELD_TYPES, DEFAULT_VALUES, log).writeRows(rows.iterator(), 0, 0);
+      bytes += actual.size();
+
+      String[] expectedLines = lines(expected);
+      String[] actualLines = lines(actual);
+      if (expectedLines.length != rows.size() || actualLines.length != rows.size()) {
+        throw new IllegalStateException(String.format(
+            "%d rows from %d, %d baseline lines, %d written",
+            rows.size(),
+            first,
+            expectedLines.length,
+            actualLines.length
+        ));
+      }
+      for (int i = 0; i < rows.size(); i++) {
+        if (!expectedLines[i].equals(actualLines[i])) {
+          if (differences < 10) {
+            System.out.println(String.format(
+                "row %d differs%n  baseline: %s%n  written:  %s",
+                first + i,
+                expectedLines[i],
+                actualLines[i]
+            ));
+          }
+          differences++;
+        }
+      }
+    }
+    if (differences > 0) {
+      throw new IllegalStateException(differences + " of " + count + " rows differ from the baseline csv");
+    }
+    System.out.println(String.format("%d rows, %d bytes identical to the baseline csv", count, bytes));
+  }
+
+  /**
+   * Splits at the row ends, which are the line feeds outside of quotes
+   */
+  private static String[] lines(ByteArrayOutputStream out)
+  {
+    String csv = new String(out.toByteArray(), StandardCharsets.UTF_8);
+    List<String> lines = new ArrayList<>();
+    boolean quoted = false;
+    int start = 0;
+    for (int i = 0; i < csv.length(); i++) {
+      char c = csv.charAt(i);
+      if (c == '"') {
+        quoted = !quoted;
+      } else if (c == '\n' && !quoted) {
+        lines.add(csv.substring(start, i));
+        start = i + 1;
+      }
+    }
+    return lines.toArray(new String[0]);
+  }
+
+  private static Row generate(Random random)
+  {
+    Object[] values = {
+        word(random),
+        word(random) + " " + word(random),
+        random.nextBoolean() ? random.nextLong() : (long) random.nextInt(1000) - 500,
+        random.nextInt(),
+        (short) random.nextInt(),
+        (byte) random.nextInt(),
+        nextDouble(random),
+        (float) nextDouble(random),
+        BigDecimal.valueOf(random.nextLong() % 1_000_000_000_000_000_000L, 4),
+        random.nextBoolean()
+        ? new BigDecimal(new BigInteger(120, random), 10).multiply(BigDecimal.valueOf(random.nextInt(3) - 1))
+        : BigDecimal.valueOf(random.nextInt(1000), 10),
+        random.nextBoolean(),
+        nextTimestamp(random),
+        new Date(nextTimestamp(random).getTime()),
+        array(random, () -> word(random)),
+        array(random, random::nextLong),
+        array(random, () -> nextDouble(random))
+    };
+    for (int i = 0; i < values.length; i++) {
+      if (random.nextInt(10) == 0) {
+        values[i] = null;
+      }
+    }
+    return RowFactory.create(values);
+  }
+
+  private static String word(Random random)
+  {
+    return WORDS[random.nextInt(WORDS.length)];
+  }
+
+  /**
+   * Any double, a small or large one, a short decimal, or a value of the edge cases
+   */
+  private static double nextDouble(Random random)
+  {
+    switch (random.nextInt(5)) {
+      case 0:
+        return Double.longBitsToDouble(random.nextLong());
+      case 1:
+        return (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(16) - 6);
+      case 2:
+        return Math.round(random.nextDouble() * 1e7) / Math.pow(10, random.nextInt(9));
+      case 3:
+        // ties of the shortest decimals, e.g. 148640.125
+        return random.nextInt(1 << 21) + random.nextInt(8) / 8.0;
+      default:
+        double[] edges = {
+            0.0, -0.0, 1e-3, 1e7, 9_999_999.5, 1e-5, 1.2345678e7, Double.MIN_VALUE, Double.MAX_VALUE,
+            Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.1 + 0.2
+        };
+        return edges[random.nextInt(edges.length)];
+    }
+  }
+
+  private static Timestamp nextTimestamp(Random random)
+  {
+    Timestamp ts = new Timestamp((long) (random.nextDouble() * MAX_EPOCH_MILLIS) / 1000 * 1000);
+    int[] nanos = {
+        0, random.nextInt(1000) * 1_000_000, random.nextInt(1_000_000) * 1000, random.nextInt(1_000_000_000)
+    };
+    ts.setNanos(nanos[random.nextInt(nanos.length)]);
+    return ts;
+  }
+
+  private static Object array(Random random, Supplier<Object> items)
+  {
+    int size = random.nextInt(5);
+    List<Object> list = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      list.add(items.get());
+    }
+    // spark keeps arrays as scala sequences
+    return JavaConverters.asScalaBufferConverter(list).asScala();
+  }
+
+  /**
+   * The csv formatting of the baseline writer, with the column classification of its part builder
+   */
+  private static class BaselineCsv
+  {
+    private static final char SEPARATOR = ',';
+    private static final char QUOTE_CHAR = '"';
+    private static final char ESCAPE_CHAR = '"';
+    private static final char LINE_END = '\n';
+
+    private enum CsvType
+    {
+      STRING,
+      OTHER,
+      DECIMAL,
+      ARRAY_STRING,
+      ARRAY_OTHER
+    }
+
+    private final CsvType[] types;
+    private final Object[] defaultValues;
+
+    BaselineCsv(String[] columnTypes, Object[] defaultValues)
+    {
+      this.types = new CsvType[columnTypes.length];
+      for (int i = 0; i < columnTypes.length; i++) {
+        types[i] = fixSpecialType(columnTypes[i]);
+      }
+      this.defaultValues = defaultValues;
+    }
+
+    private static CsvType fixSpecialType(String inType)
+    {
+      if ("String".equals(inType) || "Nullable(String)".equals(inType) || "LowCardinality(String)".equals(inType)) {
+        return CsvType.STRING;
+      }
+      if ("Decimal".equals(inType) || "Nullable(Decimal)".equals(inType)) {
+        return CsvType.DECIMAL;
+      }
+      if (inType.equals("Array(String)") || "Array(LowCardinality(String))".equals(inType)) {
+        return CsvType.ARRAY_STRING;
+      }
+      if (inType.startsWith("Array")) {
+        return CsvType.ARRAY_OTHER;
+      }
+      return CsvType.OTHER;
+    }
+
+    String format(Row row)
+    {
+      StringBuilder sb = new StringBuilder(256);
+      boolean first = true;
+      for (int i = 0; i < row.size(); i++) {
+        if (!first) {
+          sb.append(SEPARATOR);
+        }
+        first = false;
+        writeColumn(sb, row, i, types[i]);
+      }
+      sb.append(LINE_END);
+      return sb.toString();
+    }
+
+    private void writeColumn(StringBuilder sb, Row row, int fieldIndex, CsvType type)
+    {
+      if (row.isNullAt(fieldIndex)) {
+        if (defaultValues[fieldIndex] == null) {
+          return;
+        }
+        sb.append(defaultValues[fieldIndex]);
+        return;
+      }
+      switch (type) {
+        case STRING:
+          writeCSVString(sb, row.getAs(fieldIndex));
+          break;
+        case DECIMAL:
+          sb.append(ClickHouseValueFormatter.formatBigDecimal(row.getAs(fieldIndex)));
+          break;
+        case ARRAY_STRING:
+          writeCSVString(sb, ClickHouseArrayUtil.toString(
+              row.<Collection<?>>getList(fieldIndex),
+              TimeZone.getDefault(),
+              TimeZone.getDefault()
+          ));
+          break;
+        case ARRAY_OTHER:
+          sb.append(QUOTE_CHAR);
+          sb.append(ClickHouseArrayUtil.toString(
+              row.<Collection<?>>getList(fieldIndex),
+              TimeZone.getDefault(),
+              TimeZone.getDefault()
+          ));
+          sb.append(QUOTE_CHAR);
+          break;
+        default:
+          Object value = row.getAs(fieldIndex);
+          // the allowed deviation, see the class comment
+          sb.append(value instanceof BigDecimal ? ((BigDecimal) value).toPlainString() : value);
+      }
+    }
+
+    private void writeCSVString(StringBuilder sb, String input)
+    {
+      sb.append(QUOTE_CHAR);
+      sb.append(input.indexOf(QUOTE_CHAR) != -1 ? processLine(input) : input);
+      sb.append(QUOTE_CHAR);
+    }
+
+    private StringBuilder processLine(String input)
+    {
+      StringBuilder sb = new StringBuilder(16);
+      for (int j = 0; j < input.length(); ++j) {
+        char nextChar = input.charAt(j);
+        if (nextChar == QUOTE_CHAR) {
+          sb.append(ESCAPE_CHAR).append(nextChar);
+        } else {
+          sb.append(nextChar);
+        }
+      }
+      return sb;
+    }
+  }
+}
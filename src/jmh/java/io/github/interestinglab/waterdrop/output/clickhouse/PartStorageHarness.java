@@ -0,0 +1,533 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the storage backends without a cluster: {@link LocalPartStorage} on a temp dir, with hard links and with
+ * the move and copy fallbacks of file systems without them, and {@link S3PartStorage} against an in-process s3
+ * stand-in which verifies the signature v4 of every request. The s3 checks cover single and multipart uploads with
+ * a failing part, abort, errors answered with 200, listing, and renames by a single and a multipart server-side copy.
+ *
+ * Usage: PartStorageHarness
+ */
+public class PartStorageHarness
+{
+  private static final String ACCESS_KEY = "HARNESSACCESSKEY";
+  private static final String SECRET_KEY = "harness/secret+key";
+  private static final String REGION = "us-east-1";
+  private static final int PART_SIZE = 5 << 20;
+
+  public static void main(String[] args) throws Exception
+  {
+    File dir = Files.createTempDirectory("part-storage-harness").toFile();
+    try {
+      checkLocal(dir);
+    }
+    finally {
+      FileUtils.deleteQuietly(dir);
+    }
+    S3Stub stub = new S3Stub();
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", stub::handle);
+    server.start();
+    try {
+      checkS3("http://127.0.0.1:" + server.getAddress().getPort(), stub);
+    }
+    finally {
+      server.stop(0);
+    }
+    System.out.println("local and s3 storage checks passed");
+  }
+
+  private static void checkLocal(File dir) throws IOException
+  {
+    String root = dir.toURI().toString();
+    byte[] first = bytes(1, 100_000);
+    byte[] second = bytes(2, 100_000);
+
+    LocalPartStorage storage = new LocalPartStorage();
+    upload(storage, root + "linked.zip", first).commit();
+    check(Arrays.equals(first, Files.readAllBytes(new File(dir, "linked.zip").toPath())), "linked file differs");
+    // a speculative attempt publishing the same file later leaves the first one
+    PartStorage.Upload early = upload(storage, root + "raced.zip", first);
+    PartStorage.Upload late = upload(storage, root + "raced.zip", second);
+    early.commit();
+    late.commit();
+    check(Arrays.equals(first, Files.readAllBytes(new File(dir, "raced.zip").toPath())), "raced file replaced");
+    PartStorage.Upload aborted = upload(storage, root + "aborted.zip", first);
+    aborted.abort();
+    check(storage.length(root + "aborted.zip") < 0, "aborted file published");
+
+    AtomicInteger moves = new AtomicInteger();
+    LocalPartStorage noLinks = new LocalPartStorage()
+    {
+      @Override
+      void link(Path link, Path existing)
+      {
+        throw new UnsupportedOperationException("no hard links");
+      }
+
+      @Override
+      void moveAtomically(Path source, Path target) throws IOException
+      {
+        moves.incrementAndGet();
+        super.moveAtomically(source, target);
+      }
+    };
+    upload(noLinks, root + "moved.zip", first).commit();
+    check(moves.get() == 1, "not published by a move");
+    check(Arrays.equals(first, Files.readAllBytes(new File(dir, "moved.zip").toPath())), "moved file differs");
+
+    LocalPartStorage noMoves = new LocalPartStorage()
+    {
+      @Override
+      void link(Path link, Path existing) throws IOException
+      {
+        throw new FileSystemException(link.toString(), existing.toString(), "Operation not permitted");
+      }
+
+      @Override
+      void moveAtomically(Path source, Path target) throws IOException
+      {
+        throw new AtomicMoveNotSupportedException(source.toString(), target.toString(), "no atomic move");
+      }
+    };
+    upload(noMoves, root + "copied.zip", second).commit();
+    check(Arrays.equals(second, Files.readAllBytes(new File(dir, "copied.zip").toPath())), "copied file differs");
+
+    String[] tmp = new File(dir, "tmp").list();
+    check(tmp != null && tmp.length == 0, "files left in tmp: " + Arrays.toString(tmp));
+    storage.rename(root + "copied.zip", root + "attached/copied.zip");
+    check(storage.length(root + "copied.zip") < 0, "renamed file still in place");
+    check(storage.length(root + "attached/copied.zip") == second.length, "renamed file missing");
+    List<String> listed = storage.list(root);
+    check(listed.contains(root + "attached/") && listed.contains(root + "linked.zip"), "listed " + listed);
+    System.out.println("local: hard link, move and copy fallbacks, race, abort, rename and list passed");
+  }
+
+  private static void checkS3(String endpoint, S3Stub stub) throws Exception
+  {
+    String dir = "s3://bucket/jobs/";
+    byte[] small = bytes(3, 1000);
+    byte[] large = bytes(4, 2 * PART_SIZE + 12345);
+    try (S3PartStorage storage = new S3PartStorage(
+        new S3Settings(endpoint, REGION, ACCESS_KEY, SECRET_KEY, PART_SIZE, 2)
+    )) {
+      upload(storage, dir + "small.md5", small).commit();
+      check(stub.parts.get() == 0, "small file sent in parts");
+      check(storage.length(dir + "small.md5") == small.length, "small file length");
+      try (InputStream in = storage.open(dir + "small.md5")) {
+        check(Arrays.equals(small, IOUtils.toByteArray(in)), "small file differs");
+      }
+
+      // the first part fails once and is retried
+      stub.failParts.set(1);
+      upload(storage, dir + "large.zip", large).commit();
+      check(
+          stub.parts.get() == 3 && stub.completes.get() == 1,
+          stub.parts + " parts, " + stub.completes + " completes"
+      );
+      check(Arrays.equals(large, stub.objects.get("bucket/jobs/large.zip")), "large file differs");
+
+      PartStorage.Upload aborted = upload(storage, dir + "aborted.zip", large);
+      aborted.abort();
+      check(stub.aborts.get() == 1 && stub.uploads.isEmpty(), "upload not aborted");
+      check(storage.length(dir + "aborted.zip") < 0, "aborted file visible");
+
+      // s3 may answer a complete with 200 and an error in the body
+      stub.errorOnComplete = true;
+      PartStorage.Upload failed = upload(storage, dir + "failed.zip", large);
+      try {
+        failed.commit();
+        check(false, "an error answered with 200 was ignored");
+      }
+      catch (IOException expected) {
+        failed.abort();
+      }
+      stub.errorOnComplete = false;
+      check(storage.length(dir + "failed.zip") < 0 && stub.uploads.isEmpty(), "failed upload left behind");
+
+      storage.rename(dir + "small.md5", dir + "attached/small.md5");
+      check(stub.copies.get() == 1, "small file not copied in one request");
+      check(storage.length(dir + "small.md5") < 0, "renamed file still in place");
+      // reported larger than the 5g of a single copy, so it is copied in ranges
+      stub.reportedLengths.put("bucket/jobs/large.zip", 6L << 30);
+      storage.rename(dir + "large.zip", dir + "attached/large.zip");
+      check(stub.copies.get() == 3 && stub.completes.get() == 2, stub.copies + " copies");
+      check(Arrays.equals(large, stub.objects.get("bucket/jobs/attached/large.zip")), "copied file differs");
+
+      List<String> listed = storage.list(dir);
+      check(listed.size() == 1 && listed.contains(dir + "attached/"), "listed " + listed);
+      check(storage.delete(dir + "attached/small.md5") && !storage.delete(dir + "attached/small.md5"), "delete");
+      try {
+        storage.open(dir + "missing.zip").close();
+        check(false, "opened a missing file");
+      }
+      catch (FileNotFoundException expected) {
+        // as for the other backends
+      }
+    }
+    try (S3PartStorage wrongKey = new S3PartStorage(
+        new S3Settings(endpoint, REGION, ACCESS_KEY, "wrong", PART_SIZE, 2)
+    )) {
+      wrongKey.open(dir + "attached/large.zip").close();
+      check(false, "a request signed with the wrong key was accepted");
+    }
+    catch (IOException expected) {
+      check(expected.getMessage().contains("SignatureDoesNotMatch"), expected.getMessage());
+    }
+    System.out.println(String.format(
+        "s3: %d signed requests, %d parts, %d copies, %d completes and %d aborts passed",
+        stub.requests.get(),
+        stub.parts.get(),
+        stub.copies.get(),
+        stub.completes.get(),
+        stub.aborts.get()
+    ));
+  }
+
+  private static PartStorage.Upload upload(PartStorage storage, String path, byte[] content) throws IOException
+  {
+    PartStorage.Upload upload = storage.create(path);
+    // in odd sized writes, so parts are cut in the middle of them
+    for (int off = 0; off < content.length; off += 65_537) {
+      upload.write(content, off, Math.min(65_537, content.length - off));
+    }
+    return upload;
+  }
+
+  private static byte[] bytes(long seed, int length)
+  {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static void check(boolean condition, String message)
+  {
+    if (!condition) {
+      throw new IllegalStateException(message);
+    }
+  }
+
+  /**
+   * Keeps objects and multipart uploads in memory, path style, and answers the requests S3PartStorage sends.
+   * The signature of each request is computed again from what was received, following the signature v4 spec.
+   */
+  private static class S3Stub
+  {
+    private static final Pattern AUTHORIZATION = Pattern.compile(
+        "AWS4-HMAC-SHA256 Credential=([^/]+)/(\\d{8})/([^/]+)/s3/aws4_request, SignedHeaders=([^,]+), Signature=(\\w+)"
+    );
+    private static final Pattern PART = Pattern.compile(
+        "<PartNumber>(\\d+)</PartNumber><ETag>([^<]+)</ETag>"
+    );
+
+    // bucket/key -> content
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, Long> reportedLengths = new ConcurrentHashMap<>();
+    // upload id -> part number -> content
+    private final Map<String, TreeMap<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger parts = new AtomicInteger();
+    private final AtomicInteger copies = new AtomicInteger();
+    private final AtomicInteger completes = new AtomicInteger();
+    private final AtomicInteger aborts = new AtomicInteger();
+    private final AtomicInteger failParts = new AtomicInteger();
+    private volatile boolean errorOnComplete;
+
+    void handle(HttpExchange exchange) throws IOException
+    {
+      try {
+        byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        requests.incrementAndGet();
+        if (!signatureMatches(exchange)) {
+          respond(exchange, 403, error("SignatureDoesNotMatch"));
+          return;
+        }
+        String key = URLDecoder.decode(exchange.getRequestURI().getRawPath().substring(1), "UTF-8");
+        Map<String, String> query = query(exchange.getRequestURI().getRawQuery());
+        String copySource = exchange.getRequestHeaders().getFirst("x-amz-copy-source");
+        String method = exchange.getRequestMethod();
+        if ("GET".equals(method) && query.containsKey("list-type")) {
+          respond(exchange, 200, list(key.replaceAll("/$", ""), query.get("prefix")));
+        } else if ("HEAD".equals(method) || "GET".equals(method)) {
+          byte[] content = objects.get(key);
+          if (content == null) {
+            respond(exchange, 404, "HEAD".equals(method) ? null : error("NoSuchKey"));
+          } else if ("HEAD".equals(method)) {
+            exchange.getResponseHeaders().set(
+                "Content-Length",
+                String.valueOf(reportedLengths.getOrDefault(key, (long) content.length))
+            );
+            exchange.sendResponseHeaders(200, -1);
+          } else {
+            respond(exchange, 200, content);
+          }
+        } else if ("POST".equals(method) && query.containsKey("uploads")) {
+          String uploadId = UUID.randomUUID().toString();
+          uploads.put(uploadId, new TreeMap<>());
+          respond(exchange, 200, xml("InitiateMultipartUploadResult", "<UploadId>" + uploadId + "</UploadId>"));
+        } else if ("POST".equals(method) && query.containsKey("uploadId")) {
+          complete(exchange, key, query.get("uploadId"), new String(body, StandardCharsets.UTF_8));
+        } else if ("PUT".equals(method) && query.containsKey("uploadId")) {
+          TreeMap<Integer, byte[]> upload = uploads.get(query.get("uploadId"));
+          if (upload == null) {
+            respond(exchange, 404, error("NoSuchUpload"));
+            return;
+          }
+          if (copySource != null) {
+            copies.incrementAndGet();
+            byte[] content = copyRange(copySource, exchange.getRequestHeaders().getFirst("x-amz-copy-source-range"));
+            upload.put(Integer.parseInt(query.get("partNumber")), content);
+            respond(exchange, 200, xml("CopyPartResult", "<ETag>\"" + md5Hex(content) + "\"</ETag>"));
+          } else if (failParts.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+            respond(exchange, 500, error("InternalError"));
+          } else if (md5Matches(exchange, body)) {
+            parts.incrementAndGet();
+            upload.put(Integer.parseInt(query.get("partNumber")), body);
+            exchange.getResponseHeaders().set("ETag", "\"" + md5Hex(body) + "\"");
+            respond(exchange, 200, null);
+          } else {
+            respond(exchange, 400, error("BadDigest"));
+          }
+        } else if ("PUT".equals(method) && copySource != null) {
+          copies.incrementAndGet();
+          objects.put(key, copyRange(copySource, null));
+          respond(exchange, 200, xml("CopyObjectResult", ""));
+        } else if ("PUT".equals(method)) {
+          if (!md5Matches(exchange, body)) {
+            respond(exchange, 400, error("BadDigest"));
+            return;
+          }
+          objects.put(key, body);
+          respond(exchange, 200, null);
+        } else if ("DELETE".equals(method) && query.containsKey("uploadId")) {
+          aborts.incrementAndGet();
+          uploads.remove(query.get("uploadId"));
+          respond(exchange, 204, null);
+        } else if ("DELETE".equals(method)) {
+          objects.remove(key);
+          respond(exchange, 204, null);
+        } else {
+          respond(exchange, 400, error("UnsupportedRequest"));
+        }
+      }
+      catch (Exception e) {
+        respond(exchange, 500, error(String.valueOf(e)));
+      }
+    }
+
+    private void complete(HttpExchange exchange, String key, String uploadId, String body) throws IOException
+    {
+      TreeMap<Integer, byte[]> upload = uploads.get(uploadId);
+      if (upload == null) {
+        respond(exchange, 404, error("NoSuchUpload"));
+        return;
+      }
+      if (errorOnComplete) {
+        respond(exchange, 200, error("InternalError"));
+        return;
+      }
+      List<byte[]> listed = new ArrayList<>();
+      Matcher part = PART.matcher(body);
+      while (part.find()) {
+        byte[] content = upload.get(Integer.parseInt(part.group(1)));
+        if (content == null || !part.group(2).equals("\"" + md5Hex(content) + "\"")) {
+          respond(exchange, 400, error("InvalidPart"));
+          return;
+        }
+        listed.add(content);
+      }
+      int length = 0;
+      for (byte[] content : listed) {
+        length += content.length;
+      }
+      byte[] object = new byte[length];
+      int off = 0;
+      for (byte[] content : listed) {
+        System.arraycopy(content, 0, object, off, content.length);
+        off += content.length;
+      }
+      uploads.remove(uploadId);
+      objects.put(key, object);
+      completes.incrementAndGet();
+      respond(exchange, 200, xml("CompleteMultipartUploadResult", "<Key>" + key + "</Key>"));
+    }
+
+    /**
+     * @param range bytes=$first-$last, clipped to the object, which may be reported larger than it is
+     */
+    private byte[] copyRange(String source, String range) throws IOException
+    {
+      byte[] content = objects.get(URLDecoder.decode(source.substring(1), "UTF-8"));
+      if (content == null) {
+        throw new FileNotFoundException(source);
+      }
+      if (range == null) {
+        return content;
+      }
+      String[] bounds = range.substring("bytes=".length()).split("-");
+      int from = (int) Math.min(content.length, Long.parseLong(bounds[0]));
+      int to = (int) Math.min(content.length, Long.parseLong(bounds[1]) + 1);
+      return Arrays.copyOfRange(content, from, to);
+    }
+
+    private byte[] list(String bucket, String prefix)
+    {
+      StringBuilder result = new StringBuilder("<IsTruncated>false</IsTruncated>");
+      TreeMap<String, Boolean> entries = new TreeMap<>();
+      for (String key : objects.keySet()) {
+        if (key.startsWith(bucket + "/" + prefix)) {
+          String rest = key.substring(bucket.length() + 1 + prefix.length());
+          int slash = rest.indexOf('/');
+          entries.put(prefix + (slash < 0 ? rest : rest.substring(0, slash + 1)), slash >= 0);
+        }
+      }
+      for (Map.Entry<String, Boolean> entry : entries.entrySet()) {
+        result.append(entry.getValue()
+                      ? "<CommonPrefixes><Prefix>" + entry.getKey() + "</Prefix></CommonPrefixes>"
+                      : "<Contents><Key>" + entry.getKey() + "</Key></Contents>");
+      }
+      return xml("ListBucketResult", result.toString());
+    }
+
+    private static boolean signatureMatches(HttpExchange exchange) throws GeneralSecurityException, IOException
+    {
+      String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+      Matcher auth = authorization == null ? null : AUTHORIZATION.matcher(authorization);
+      if (auth == null || !auth.matches() || !ACCESS_KEY.equals(auth.group(1))) {
+        return false;
+      }
+      StringBuilder canonicalHeaders = new StringBuilder();
+      for (String name : auth.group(4).split(";")) {
+        String value = exchange.getRequestHeaders().getFirst(name);
+        canonicalHeaders.append(name).append(':').append(value == null ? "" : value.trim()).append('\n');
+      }
+      StringBuilder canonicalQuery = new StringBuilder();
+      for (Map.Entry<String, String> param : query(exchange.getRequestURI().getRawQuery()).entrySet()) {
+        canonicalQuery.append(canonicalQuery.length() == 0 ? "" : "&")
+                      .append(uriEncode(param.getKey())).append('=').append(uriEncode(param.getValue()));
+      }
+      String canonicalRequest = exchange.getRequestMethod() + "\n" + exchange.getRequestURI().getRawPath() + "\n"
+                                + canonicalQuery + "\n" + canonicalHeaders + "\n" + auth.group(4) + "\n"
+                                + exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+      String scope = auth.group(2) + "/" + auth.group(3) + "/s3/aws4_request";
+      String stringToSign = "AWS4-HMAC-SHA256\n" + exchange.getRequestHeaders().getFirst("x-amz-date") + "\n" + scope
+                            + "\n" + hex(MessageDigest.getInstance("SHA-256").digest(
+          canonicalRequest.getBytes(StandardCharsets.UTF_8)
+      ));
+      byte[] key = ("AWS4" + SECRET_KEY).getBytes(StandardCharsets.UTF_8);
+      for (String step : new String[]{auth.group(2), auth.group(3), "s3", "aws4_request", stringToSign}) {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        key = mac.doFinal(step.getBytes(StandardCharsets.UTF_8));
+      }
+      return hex(key).equals(auth.group(5));
+    }
+
+    private static boolean md5Matches(HttpExchange exchange, byte[] body)
+    {
+      String md5 = exchange.getRequestHeaders().getFirst("content-md5");
+      return md5 != null && md5.equals(Base64.getEncoder().encodeToString(ReceiveAgentClient.md5().digest(body)));
+    }
+
+    /**
+     * @return the decoded parameters sorted by name, as they are signed
+     */
+    private static TreeMap<String, String> query(String rawQuery) throws IOException
+    {
+      TreeMap<String, String> params = new TreeMap<>();
+      if (rawQuery != null) {
+        for (String param : rawQuery.split("&")) {
+          int eq = param.indexOf('=');
+          params.put(
+              URLDecoder.decode(eq < 0 ? param : param.substring(0, eq), "UTF-8"),
+              eq < 0 ? "" : URLDecoder.decode(param.substring(eq + 1), "UTF-8")
+          );
+        }
+      }
+      return params;
+    }
+
+    private static String uriEncode(String value)
+    {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+        if ((b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || "-_.~".indexOf(b) >= 0) {
+          sb.append((char) b);
+        } else {
+          sb.append('%').append(String.format("%02X", b & 0xff));
+        }
+      }
+      return sb.toString();
+    }
+
+    private static String md5Hex(byte[] content)
+    {
+      return hex(ReceiveAgentClient.md5().digest(content));
+    }
+
+    private static String hex(byte[] bytes)
+    {
+      StringBuilder sb = new StringBuilder();
+      for (byte b : bytes) {
+        sb.append(String.format("%02x", b & 0xff));
+      }
+      return sb.toString();
+    }
+
+    private static byte[] error(String code)
+    {
+      return xml("Error", "<Code>" + code + "</Code>");
+    }
+
+    private static byte[] xml(String root, String content)
+    {
+      return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><" + root + ">" + content + "</" + root + ">")
+          .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException
+    {
+      exchange.sendResponseHeaders(status, body == null || status == 204 ? -1 : body.length);
+      try (OutputStream out = exchange.getResponseBody()) {
+        if (body != null && status != 204) {
+          out.write(body);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * Checks that {@link PipelinedFifoOutputStream} releases its writer thread when the reader of the fifo goes away
+ * mid-stream, as when clickhouse local dies or is killed: the writes fail, close throws, and no pipe writer is left.
+ *
+ * Usage: PipeFailureHarness [builds]
+ */
+public class PipeFailureHarness
+{
+  private static final Logger log = LoggerFactory.getLogger(PipeFailureHarness.class);
+  private static final int BUFFER_SIZE = 64 << 10;
+  private static final int READ_BEFORE_CLOSE = 1 << 20;
+
+  public static void main(String[] args) throws Exception
+  {
+    int builds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    File dir = Files.createTempDirectory("pipe-failure-harness").toFile();
+    try {
+      for (int i = 0; i < builds; i++) {
+        failMidStream(new File(dir, "pipe_" + i));
+      }
+      int left = 0;
+      for (Thread thread : Thread.getAllStackTraces().keySet()) {
+        if (thread.getName().startsWith("pipe-writer-" + dir) && thread.isAlive()) {
+          left++;
+        }
+      }
+      if (left > 0) {
+        throw new IllegalStateException(left + " pipe writers left after " + builds + " failed builds");
+      }
+      System.out.println(builds + " builds failed mid-stream, no pipe writer left");
+    }
+    finally {
+      for (File file : dir.listFiles()) {
+        Files.delete(file.toPath());
+      }
+      Files.delete(dir.toPath());
+    }
+  }
+
+  private static void failMidStream(File fifo) throws Exception
+  {
+    if (new ProcessBuilder("mkfifo", fifo.getAbsolutePath()).inheritIO().start().waitFor() != 0) {
+      throw new IOException("failed to create " + fifo);
+    }
+    // stands in for clickhouse local, which reads part of the input and dies
+    Thread reader = new Thread(() -> {
+      try (InputStream in = new FileInputStream(fifo)) {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read = 0;
+        while (read < READ_BEFORE_CLOSE) {
+          int n = in.read(buffer);
+          if (n < 0) {
+            break;
+          }
+          read += n;
+        }
+      }
+      catch (IOException e) {
+        log.error("failed to read " + fifo, e);
+      }
+    });
+    reader.start();
+    PipelinedFifoOutputStream out = new PipelinedFifoOutputStream(fifo.getAbsolutePath(), BUFFER_SIZE, 4, log);
+    byte[] row = new byte[1000];
+    boolean failed = false;
+    try {
+      // far more than the reader takes and the fifo and buffers hold
+      for (int i = 0; i < 100_000; i++) {
+        out.write(row);
+      }
+    }
+    catch (IOException expected) {
+      failed = true;
+    }
+    try {
+      out.close();
+    }
+    catch (IOException expected) {
+      failed = true;
+    }
+    reader.join();
+    if (!failed) {
+      throw new IllegalStateException("writing to " + fifo + " did not fail after its reader closed");
+    }
+  }
+}
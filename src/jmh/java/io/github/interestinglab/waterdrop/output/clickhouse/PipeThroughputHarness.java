@@ -0,0 +1,131 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import io.github.interestinglab.waterdrop.config.ConfigFactory;
+import org.apache.spark.sql.Row;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Runs {@link PartBuilder} end to end against a stand-in build.sh, which drains the fifo and fakes the part,
+ * to measure the serialization and pipe throughput without clickhouse local.
+ *
+ * Usage: PipeThroughputHarness schema inputFormat rows [build options]
+ * e.g. PipeThroughputHarness STRINGS RowBinary 10000000 "pipeQueueDepth = 8"
+ */
+public class PipeThroughputHarness
+{
+  private static final Logger log = LoggerFactory.getLogger(PipeThroughputHarness.class);
+  // rows are generated once and repeated, so the generator stays out of the measurement
+  private static final int DISTINCT_ROWS = 100_000;
+
+  public static void main(String[] args) throws Exception
+  {
+    if (args.length < 3) {
+      System.err.println("Usage: PipeThroughputHarness schema inputFormat rows [build options]");
+      System.exit(1);
+    }
+    SyntheticRows schema = SyntheticRows.valueOf(args[0].toUpperCase());
+    InputFormat format = InputFormat.fromString(args[1]);
+    long rows = Long.parseLong(args[2]);
+    String extraOptions = args.length > 3 ? args[3] : "";
+    BuildOptions options = new BuildOptions(ConfigFactory.parseString(
+        "inputFormat = " + format.name() + "\n" + extraOptions
+    ));
+
+    File binaryDir = Files.createTempDirectory("pipe-harness-bin").toFile();
+    File workDir = Files.createTempDirectory("pipe-harness-work").toFile();
+    try (InputStream script = PipeThroughputHarness.class.getResourceAsStream("/pipe-harness/build.sh")) {
+      Files.copy(script, new File(binaryDir, "build.sh").toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    BuildMetrics metrics = new BuildMetrics();
+    PartBuilder builder = new PartBuilder(
+        log,
+        binaryDir.getAbsolutePath(),
+        workDir,
+        schema.getFields(),
+        schema.getFieldTypes(),
+        schema.getTableSchema(),
+        schema.getDefaultValues(),
+        options,
+        "insert into harness.rows format " + format.getFormatName() + ";\n",
+        ClickhouseLocalConfig.render(
+            new File(binaryDir, "config.xml"),
+            ClickhouseLocalConfig.settings(log, new HashMap<>(), 1)
+        ),
+        metrics
+    );
+    long start = System.nanoTime();
+    try {
+      builder.build(new RepeatingIterator(schema.generate(DISTINCT_ROWS), rows), 0, 0);
+      long nanos = System.nanoTime() - start;
+      if (!new File(workDir, "clickhouse_data/data/data/harness/rows/all_1_1_0").isDirectory()) {
+        throw new IOException("the stand-in build did not leave a part in " + workDir);
+      }
+      System.out.println(String.format(
+          "%s %s: %,d rows, %,d bytes in %,d ms, %,.0f rows/s, %,.1f MB/s",
+          schema,
+          format,
+          rows,
+          builder.getBytesWritten(),
+          nanos / 1_000_000,
+          rows * 1e9 / nanos,
+          builder.getBytesWritten() * 1e9 / nanos / 1048576
+      ));
+      System.out.println(metrics.summary());
+    }
+    finally {
+      delete(binaryDir);
+      delete(workDir);
+    }
+  }
+
+  private static void delete(File file) throws IOException
+  {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    Files.deleteIfExists(file.toPath());
+  }
+
+  private static class RepeatingIterator implements Iterator<Row>
+  {
+    private final List<Row> rows;
+    private final long count;
+    private long next;
+
+    RepeatingIterator(List<Row> rows, long count)
+    {
+      this.rows = rows;
+      this.count = count;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      return next < count;
+    }
+
+    @Override
+    public Row next()
+    {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return rows.get((int) (next++ % rows.size()));
+    }
+  }
+}
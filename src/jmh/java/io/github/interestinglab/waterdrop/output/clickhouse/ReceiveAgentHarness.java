@@ -0,0 +1,158 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.github.interestinglab.waterdrop.config.ConfigFactory;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs a {@link ReceiveAgent} end to end on localhost against a stub clickhouse http endpoint, which answers the
+ * data_paths of the table with a temp dir and attaches a part by moving it out of detached. Two task attempts push
+ * the same parts, the driver commits those of one of them, and the stub loses the response of the first attach,
+ * which must neither fail the commit nor attach the part twice. A request without the secret must be refused.
+ *
+ * Usage: ReceiveAgentHarness [parts] [part bytes]
+ */
+public class ReceiveAgentHarness
+{
+  private static final Logger log = LoggerFactory.getLogger(ReceiveAgentHarness.class);
+  private static final String SECRET = "harness-secret";
+
+  public static void main(String[] args) throws Exception
+  {
+    int parts = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+    int partBytes = args.length > 1 ? Integer.parseInt(args[1]) : 4 << 20;
+    File disk = Files.createTempDirectory("agent-harness-disk").toFile();
+    File data = Files.createTempDirectory("agent-harness-data").toFile();
+    if (!new File(disk, "detached").mkdirs()) {
+      throw new IOException("failed to create " + disk + "/detached");
+    }
+    writeParts(data, parts, partBytes);
+
+    AtomicInteger attaches = new AtomicInteger();
+    HttpServer clickhouse = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    clickhouse.createContext("/", exchange -> stubQuery(exchange, disk, attaches));
+    clickhouse.start();
+    ReceiveAgent agent = new ReceiveAgent(
+        log,
+        "http://127.0.0.1:" + clickhouse.getAddress().getPort(),
+        null,
+        null,
+        3,
+        SECRET
+    );
+    InetSocketAddress address = agent.start("127.0.0.1", 0, 4);
+    try {
+      String agentHost = "127.0.0.1:" + address.getPort();
+      String root = ReceiveAgentClient.tableUrl(agentHost, "harness", "rows");
+      BuildOptions options = new BuildOptions(ConfigFactory.parseString(
+          "receiveAgents = [\"" + agentHost + "\"]\nreceiveAgentSecret = " + SECRET
+      ));
+      String jobId = UUID.randomUUID().toString();
+      BuildMetrics metrics = new BuildMetrics();
+      List<File> dataDirs = Collections.singletonList(data);
+
+      long start = System.nanoTime();
+      PartUploader committed = new PartUploader(log, null, root, jobId, "partition_0", dataDirs, options, metrics);
+      committed.upload();
+      new PartUploader(log, null, root, jobId, "partition_1", dataDirs, options, metrics).upload();
+      long pushNanos = System.nanoTime() - start;
+      List<String> names = new ArrayList<>();
+      for (PartInfo part : committed.getUploadedParts()) {
+        names.add(part.getPath().substring(part.getPath().lastIndexOf('/') + 1));
+      }
+      new ReceiveAgentClient(log, root, SECRET).commit(jobId, names);
+
+      String[] attached = disk.list((dir, name) -> !"detached".equals(name));
+      String[] left = new File(disk, "detached").list();
+      if (attached == null || attached.length != parts || left == null || left.length != 0) {
+        throw new IOException(String.format(
+            "expected %d parts attached and nothing left detached, attached %s, left %s",
+            parts,
+            attached == null ? null : String.join(",", attached),
+            left == null ? null : String.join(",", left)
+        ));
+      }
+      try {
+        new ReceiveAgentClient(log, root, "wrong-" + SECRET).abort(jobId);
+        throw new IllegalStateException("a request with the wrong secret was accepted");
+      }
+      catch (IOException expected) {
+        log.info("refused as expected: " + expected.getMessage());
+      }
+      System.out.println(String.format(
+          "pushed %d parts of %,d bytes twice in %,d ms, %.1f MB/s, committed %d with %d attach queries",
+          parts,
+          partBytes,
+          pushNanos / 1_000_000,
+          2.0 * parts * partBytes / 1e6 / (pushNanos / 1e9),
+          parts,
+          attaches.get()
+      ));
+    }
+    finally {
+      agent.stop();
+      clickhouse.stop(0);
+      FileUtils.deleteQuietly(disk);
+      FileUtils.deleteQuietly(data);
+    }
+  }
+
+  private static void writeParts(File data, int parts, int partBytes) throws IOException
+  {
+    Random random = new Random(1);
+    byte[] bytes = new byte[partBytes];
+    for (int i = 0; i < parts; i++) {
+      File part = new File(data, String.format("2020%02d_%d_%d_0", i % 12 + 1, i + 1, i + 1));
+      if (!part.mkdirs()) {
+        throw new IOException("failed to create " + part);
+      }
+      random.nextBytes(bytes);
+      Files.write(new File(part, "data.bin").toPath(), bytes);
+      Files.write(new File(part, "checksums.txt").toPath(), part.getName().getBytes(StandardCharsets.UTF_8));
+      Files.write(new File(part, "count.txt").toPath(), "1".getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private static void stubQuery(HttpExchange exchange, File disk, AtomicInteger attaches) throws IOException
+  {
+    String query = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+    int status = 200;
+    String response = "";
+    if (query.contains("data_paths")) {
+      response = disk.getAbsolutePath() + "/\n";
+    } else if (query.contains("attach part")) {
+      String part = query.substring(query.indexOf('\'') + 1, query.lastIndexOf('\''));
+      File detached = new File(disk, "detached/" + part);
+      if (!detached.renameTo(new File(disk, part))) {
+        status = 500;
+        response = "no such part " + part;
+      } else if (attaches.incrementAndGet() == 1) {
+        // the part is attached, but its response is lost
+        exchange.close();
+        return;
+      }
+    }
+    byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+}
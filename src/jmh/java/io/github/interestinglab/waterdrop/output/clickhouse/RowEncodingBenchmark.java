@@ -0,0 +1,95 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.spark.sql.Row;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the row writers alone, encoding synthetic rows into a stream which drops the bytes.
+ * The score is rows per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowEncodingBenchmark
+{
+  private static final int ROWS = 100_000;
+
+  @Param({"CSV", "ROW_BINARY"})
+  public InputFormat format;
+
+  @Param({"STRINGS", "DECIMALS", "ARRAYS", "NULLABLE"})
+  public SyntheticRows schema;
+
+  private List<Row> rows;
+
+  @Setup(Level.Trial)
+  public void setUp()
+  {
+    rows = schema.generate(ROWS);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(ROWS)
+  public long encode(Blackhole blackhole) throws IOException
+  {
+    RowWriter<Row> writer;
+    OutputStream out = new BlackholeOutputStream(blackhole);
+    if (format == InputFormat.ROW_BINARY) {
+      writer = new RowBinaryWriter(out, schema.getColumnTypes(), schema.getDefaultValueArray(), NOPLogger.NOP_LOGGER);
+    } else {
+      writer = new CsvWriter(
+          out,
+          schema.getColumnTypes(),
+          schema.getFieldTypes(),
+          schema.getDefaultValueArray(),
+          NOPLogger.NOP_LOGGER
+      );
+    }
+    writer.writeRows(rows.iterator(), 0, 0);
+    return writer.getBytesWritten();
+  }
+
+  private static class BlackholeOutputStream extends OutputStream
+  {
+    private final Blackhole blackhole;
+
+    BlackholeOutputStream(Blackhole blackhole)
+    {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void write(int b)
+    {
+      blackhole.consume(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+      blackhole.consume(b);
+    }
+  }
+}
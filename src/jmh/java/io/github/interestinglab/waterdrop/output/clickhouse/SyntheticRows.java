@@ -0,0 +1,176 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DataTypes;
+import scala.collection.JavaConverters;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Representative schemas of the target tables and rows to match, generated with a fixed seed
+ */
+public enum SyntheticRows
+{
+  /**
+   * strings with the characters that have to be quoted or escaped
+   */
+  STRINGS(
+      new String[]{"id", "name", "comment"},
+      new String[]{"Int64", "String", "String"},
+      new DataType[]{DataTypes.LongType, DataTypes.StringType, DataTypes.StringType}
+  ),
+  DECIMALS(
+      new String[]{"id", "price", "amount", "ratio"},
+      new String[]{"Int64", "Decimal(18, 4)", "Decimal(38, 10)", "Float64"},
+      new DataType[]{
+          DataTypes.LongType,
+          DataTypes.createDecimalType(18, 4),
+          DataTypes.createDecimalType(38, 10),
+          DataTypes.DoubleType
+      }
+  ),
+  ARRAYS(
+      new String[]{"id", "tags", "values"},
+      new String[]{"Int64", "Array(String)", "Array(Int64)"},
+      new DataType[]{
+          DataTypes.LongType,
+          DataTypes.createArrayType(DataTypes.StringType),
+          DataTypes.createArrayType(DataTypes.LongType)
+      }
+  ),
+  /**
+   * half of the cells are null, written as the default value of the column or as null
+   */
+  NULLABLE(
+      new String[]{"id", "city", "score", "referrer"},
+      new String[]{"Int64", "String", "Int32", "Nullable(String)"},
+      new DataType[]{DataTypes.LongType, DataTypes.StringType, DataTypes.IntegerType, DataTypes.StringType}
+  );
+
+  private static final String[] WORDS = {
+      "plain", "with \"quotes\"", "with, comma", "back\\slash", "new\nline", "tab\tseparated", "it's", "\u4e2d\u6587"
+  };
+
+  private final String[] fields;
+  private final String[] columnTypes;
+  private final DataType[] fieldTypes;
+
+  SyntheticRows(String[] fields, String[] columnTypes, DataType[] fieldTypes)
+  {
+    this.fields = fields;
+    this.columnTypes = columnTypes;
+    this.fieldTypes = fieldTypes;
+  }
+
+  public String[] getFields()
+  {
+    return fields;
+  }
+
+  public String[] getColumnTypes()
+  {
+    return columnTypes;
+  }
+
+  public DataType[] getFieldTypes()
+  {
+    return fieldTypes;
+  }
+
+  public Map<String, String> getTableSchema()
+  {
+    Map<String, String> schema = new HashMap<>();
+    for (int i = 0; i < fields.length; i++) {
+      schema.put(fields[i], columnTypes[i]);
+    }
+    return schema;
+  }
+
+  /**
+   * @return the configured default values, by field name
+   */
+  public Map<String, Object> getDefaultValues()
+  {
+    Map<String, Object> defaults = new HashMap<>();
+    if (this == NULLABLE) {
+      defaults.put("city", "unknown");
+      defaults.put("score", 0);
+    }
+    return defaults;
+  }
+
+  /**
+   * @return the default values in column order, as passed to the row writers
+   */
+  public Object[] getDefaultValueArray()
+  {
+    Map<String, Object> defaults = getDefaultValues();
+    Object[] values = new Object[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      Object value = defaults.get(fields[i]);
+      values[i] = value == null ? null : String.valueOf(value);
+    }
+    return values;
+  }
+
+  public List<Row> generate(int count)
+  {
+    Random random = new Random(42);
+    List<Row> rows = new ArrayList<>(count);
+    for (long id = 0; id < count; id++) {
+      rows.add(generate(id, random));
+    }
+    return rows;
+  }
+
+  private Row generate(long id, Random random)
+  {
+    switch (this) {
+      case STRINGS:
+        return RowFactory.create(id, word(random), word(random) + " " + word(random) + " " + word(random));
+      case DECIMALS:
+        return RowFactory.create(
+            id,
+            BigDecimal.valueOf(random.nextInt(100_000_000), 4),
+            BigDecimal.valueOf(random.nextLong(), 10),
+            random.nextDouble()
+        );
+      case ARRAYS:
+        int size = random.nextInt(8);
+        List<Object> tags = new ArrayList<>(size);
+        List<Object> values = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          tags.add(word(random));
+          values.add(random.nextLong());
+        }
+        // spark keeps arrays as scala sequences
+        return RowFactory.create(
+            id,
+            JavaConverters.asScalaBufferConverter(tags).asScala(),
+            JavaConverters.asScalaBufferConverter(values).asScala()
+        );
+      case NULLABLE:
+        return RowFactory.create(
+            id,
+            random.nextBoolean() ? null : word(random),
+            random.nextBoolean() ? null : random.nextInt(),
+            random.nextBoolean() ? null : word(random)
+        );
+      default:
+        throw new IllegalStateException(Arrays.toString(fields));
+    }
+  }
+
+  private static String word(Random random)
+  {
+    return WORDS[random.nextInt(WORDS.length)];
+  }
+}
@@ -0,0 +1,148 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import io.github.interestinglab.waterdrop.config.ConfigFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.helpers.NOPLogger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zips fake parts and uploads them to the local file system through the hadoop client, so the score
+ * is the cost of compression, checksums and the file system streams without a network in between.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipUploadBenchmark
+{
+  private static final String[] COLUMNS = {"id", "name", "price", "tags"};
+
+  @Param({"DEFLATE", "STORE"})
+  public TransferMode transferMode;
+
+  @Param({"1", "4"})
+  public int uploadParallelism;
+
+  @Param({"8"})
+  public int parts;
+
+  @Param({"16"})
+  public int columnMegabytes;
+
+  private File dataDir;
+  private File uploadDir;
+  private BuildOptions options;
+  private PartUploader uploader;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException
+  {
+    dataDir = Files.createTempDirectory("zip-upload-parts").toFile();
+    uploadDir = Files.createTempDirectory("zip-upload-target").toFile();
+    Random random = new Random(42);
+    for (int i = 0; i < parts; i++) {
+      File partDir = new File(dataDir, "20200101_" + i + "_" + i + "_0");
+      partDir.mkdirs();
+      for (String column : COLUMNS) {
+        writeColumn(new File(partDir, column + ".bin"), random);
+        writeColumn(new File(partDir, column + ".mrk2"), random);
+      }
+      Files.write(new File(partDir, "count.txt").toPath(), "1000000".getBytes(StandardCharsets.UTF_8));
+    }
+    options = new BuildOptions(ConfigFactory.parseString(
+        "transferMode = " + transferMode + "\nuploadParallelism = " + uploadParallelism
+    ));
+  }
+
+  /**
+   * Column files of clickhouse are already compressed, the random bytes are stretched by repeating
+   * short runs to leave deflate a little to gain, as it does with real parts
+   */
+  private void writeColumn(File file, Random random) throws IOException
+  {
+    byte[] block = new byte[64 * 1024];
+    try (OutputStream out = new FileOutputStream(file)) {
+      for (long written = 0; written < columnMegabytes * 1024L * 1024L / 2; written += block.length) {
+        for (int i = 0; i < block.length; i += 16) {
+          int b = random.nextInt();
+          for (int j = i; j < i + 16; j++) {
+            block[j] = (byte) (j % 4 == 0 ? random.nextInt() : b);
+          }
+        }
+        out.write(block);
+      }
+    }
+  }
+
+  @Setup(Level.Invocation)
+  public void createUploader()
+  {
+    uploader = new PartUploader(
+        NOPLogger.NOP_LOGGER,
+        System.getProperty("user.name"),
+        uploadDir.toURI().toString(),
+        "benchmark",
+        "benchmark",
+        Collections.singletonList(dataDir),
+        options,
+        new BuildMetrics()
+    );
+  }
+
+  @Benchmark
+  public int upload() throws IOException, InterruptedException
+  {
+    uploader.upload();
+    return uploader.getUploadedParts().size();
+  }
+
+  @TearDown(Level.Invocation)
+  public void deleteUploads() throws IOException
+  {
+    uploader.close();
+    // clean() keeps the uploaded zips for a retry
+    delete(uploadDir);
+    Files.createDirectories(uploadDir.toPath());
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException
+  {
+    delete(dataDir);
+    delete(uploadDir);
+  }
+
+  private static void delete(File file) throws IOException
+  {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    Files.deleteIfExists(file.toPath());
+  }
+}
@@ -0,0 +1,121 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.arrow.memory.BufferAllocator;
+import org.apache.arrow.vector.VectorSchemaRoot;
+import org.apache.arrow.vector.ipc.ArrowStreamWriter;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.sql.execution.arrow.ArrowUtils;
+import org.apache.spark.sql.execution.arrow.ArrowWriter;
+import org.apache.spark.sql.types.StructType;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Writes the internal rows of a DataFrame to the pipe as an Arrow stream, read by clickhouse as ArrowStream.
+ * The vectors are filled by the arrow writer of spark itself, so rows are neither converted to {@link
+ * org.apache.spark.sql.Row} nor formatted as text, and clickhouse reads whole columns per record batch.
+ * The bytes written only grow when a batch is flushed, so maxBytes is checked per batch.
+ */
+public class ArrowRowWriter extends RowWriter<InternalRow>
+{
+  private final BufferAllocator allocator;
+  private final VectorSchemaRoot root;
+  private final ArrowWriter arrowWriter;
+  private final ArrowStreamWriter streamWriter;
+  private final int batchRows;
+  private int rowsInBatch;
+
+  /**
+   * @param timeZoneId the session time zone of spark, timestamps are written with it
+   * @param batchRows  rows per record batch
+   */
+  public ArrowRowWriter(OutputStream pipe, StructType schema, String timeZoneId, int batchRows, Logger log)
+      throws IOException
+  {
+    super(pipe, log);
+    this.batchRows = batchRows;
+    this.allocator = ArrowUtils.rootAllocator().newChildAllocator("clickhouse build", 0, Long.MAX_VALUE);
+    try {
+      this.root = VectorSchemaRoot.create(ArrowUtils.toArrowSchema(schema, timeZoneId), allocator);
+      this.arrowWriter = ArrowWriter.create(root);
+      this.streamWriter = new ArrowStreamWriter(root, null, new PipeOutputStream(out));
+      streamWriter.start();
+    }
+    catch (IOException | RuntimeException e) {
+      allocator.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void writeRows(Iterator<InternalRow> rows, long maxRows, long maxBytes) throws IOException
+  {
+    try {
+      super.writeRows(rows, maxRows, maxBytes);
+    }
+    finally {
+      root.close();
+      allocator.close();
+    }
+  }
+
+  @Override
+  protected void writeRow(InternalRow row) throws IOException
+  {
+    arrowWriter.write(row);
+    if (++rowsInBatch == batchRows) {
+      writeBatch();
+    }
+  }
+
+  @Override
+  protected void finish() throws IOException
+  {
+    if (rowsInBatch > 0) {
+      writeBatch();
+    }
+    streamWriter.end();
+  }
+
+  private void writeBatch() throws IOException
+  {
+    arrowWriter.finish();
+    streamWriter.writeBatch();
+    arrowWriter.reset();
+    rowsInBatch = 0;
+  }
+
+  /**
+   * Lets the arrow writer write through the buffer of the pipe, which keeps counting the bytes.
+   * Closing it leaves the pipe open, it is closed by {@link RowWriter#writeRows}.
+   */
+  private static class PipeOutputStream extends OutputStream
+  {
+    private final PipeOutput out;
+
+    PipeOutputStream(PipeOutput out)
+    {
+      this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      out.writeByte(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      out.writeBytes(b, off, len);
+    }
+
+    @Override
+    public void close()
+    {
+    }
+  }
+}
@@ -0,0 +1,234 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.spark.SparkContext;
+import org.apache.spark.util.AccumulatorV2;
+import org.apache.spark.util.LongAccumulator;
+
+import java.io.Serializable;
+
+/**
+ * Build and upload metrics of the tasks, collected in the driver through named accumulators.
+ * Spark shows the value of every accumulator per task in the stage page, which points at slow stages
+ * and skewed partitions, and the driver logs a summary of the whole job. Monitoring reads them as the accumulables
+ * of the stages from the rest api, the metrics system of spark 2.4 takes no sources from outside spark.
+ * The accumulators are not thread safe, the metrics are added under the lock of this object
+ * by the builder, writer and upload threads of a task.
+ */
+public class BuildMetrics implements Serializable
+{
+  private static final String PREFIX = "clickhouse.";
+
+  private final LongAccumulator rows;
+  private final LongAccumulator pipeBytes;
+  private final LongAccumulator serializeNanos;
+  private final LongAccumulator pipeBlockedNanos;
+  private final LongAccumulator builds;
+  private final LongAccumulator clickhouseNanos;
+  private final LongAccumulator feedNanos;
+  private final LongAccumulator stalledBuilds;
+  private final MaxAccumulator peakRssBytes;
+  private final LongAccumulator optimizeNanos;
+  private final LongAccumulator parts;
+  private final LongAccumulator partBytes;
+  private final LongAccumulator zipNanos;
+  private final LongAccumulator uploadBytes;
+  private final LongAccumulator uploadNanos;
+  private final LongAccumulator skippedParts;
+  private final LongAccumulator skippedBytes;
+
+  /**
+   * Metrics which are only read locally, e.g. by the benchmarks
+   */
+  public BuildMetrics()
+  {
+    this.rows = new LongAccumulator();
+    this.pipeBytes = new LongAccumulator();
+    this.serializeNanos = new LongAccumulator();
+    this.pipeBlockedNanos = new LongAccumulator();
+    this.builds = new LongAccumulator();
+    this.clickhouseNanos = new LongAccumulator();
+    this.feedNanos = new LongAccumulator();
+    this.stalledBuilds = new LongAccumulator();
+    this.peakRssBytes = new MaxAccumulator();
+    this.optimizeNanos = new LongAccumulator();
+    this.parts = new LongAccumulator();
+    this.partBytes = new LongAccumulator();
+    this.zipNanos = new LongAccumulator();
+    this.uploadBytes = new LongAccumulator();
+    this.uploadNanos = new LongAccumulator();
+    this.skippedParts = new LongAccumulator();
+    this.skippedBytes = new LongAccumulator();
+  }
+
+  public BuildMetrics(SparkContext sc)
+  {
+    this();
+    sc.register(rows, PREFIX + "rows");
+    sc.register(pipeBytes, PREFIX + "pipeBytes");
+    sc.register(serializeNanos, PREFIX + "serializeNanos");
+    sc.register(pipeBlockedNanos, PREFIX + "pipeBlockedNanos");
+    sc.register(builds, PREFIX + "builds");
+    sc.register(clickhouseNanos, PREFIX + "clickhouseLocalNanos");
+    sc.register(feedNanos, PREFIX + "feedNanos");
+    sc.register(stalledBuilds, PREFIX + "stalledBuilds");
+    sc.register(peakRssBytes, PREFIX + "clickhouseLocalPeakRssBytes");
+    sc.register(optimizeNanos, PREFIX + "optimizeNanos");
+    sc.register(parts, PREFIX + "parts");
+    sc.register(partBytes, PREFIX + "partBytes");
+    sc.register(zipNanos, PREFIX + "zipNanos");
+    sc.register(uploadBytes, PREFIX + "uploadBytes");
+    sc.register(uploadNanos, PREFIX + "uploadNanos");
+    sc.register(skippedParts, PREFIX + "skippedParts");
+    sc.register(skippedBytes, PREFIX + "skippedBytes");
+  }
+
+  /**
+   * @param nanos        time spent serializing rows into the pipe, including blockedNanos
+   * @param blockedNanos time the serializer waited for clickhouse local to drain the pipe
+   */
+  public synchronized void addSerialized(long rows, long bytes, long nanos, long blockedNanos)
+  {
+    this.rows.add(rows);
+    this.pipeBytes.add(bytes);
+    this.serializeNanos.add(nanos);
+    this.pipeBlockedNanos.add(blockedNanos);
+  }
+
+  /**
+   * The wall time of a build is split into feeding the rows, flushing the insert after the last row,
+   * and the final optimize
+   *
+   * @param wallNanos     clickhouse local process wall time
+   * @param feedNanos     time until the last row was handed to clickhouse
+   * @param optimizeNanos time of the final optimize, 0 if unknown
+   * @param peakRssBytes  peak resident memory of clickhouse local, 0 if unknown
+   */
+  public synchronized void addBuild(long wallNanos, long feedNanos, long optimizeNanos, long peakRssBytes)
+  {
+    this.builds.add(1);
+    this.clickhouseNanos.add(wallNanos);
+    this.feedNanos.add(feedNanos);
+    this.optimizeNanos.add(optimizeNanos);
+    this.peakRssBytes.add(peakRssBytes);
+  }
+
+  /**
+   * A build killed after making no progress for buildStallTimeout
+   */
+  public synchronized void addStalledBuild()
+  {
+    this.stalledBuilds.add(1);
+  }
+
+  /**
+   * @param partBytes   size of the part files
+   * @param zipBytes    size of the zip written to the file system
+   * @param zipNanos    time spent reading and compressing the part files
+   * @param uploadNanos time spent writing the zip to the file system
+   */
+  public synchronized void addPart(long partBytes, long zipBytes, long zipNanos, long uploadNanos)
+  {
+    this.parts.add(1);
+    this.partBytes.add(partBytes);
+    this.uploadBytes.add(zipBytes);
+    this.zipNanos.add(zipNanos);
+    this.uploadNanos.add(uploadNanos);
+  }
+
+  /**
+   * @param zipBytes size of the zip a previous attempt of the task already uploaded
+   */
+  public synchronized void addSkippedPart(long zipBytes)
+  {
+    this.skippedParts.add(1);
+    this.skippedBytes.add(zipBytes);
+  }
+
+  /**
+   * Throughputs are per task, i.e. summed over the time the tasks spent in the stage
+   */
+  public String summary()
+  {
+    return String.format(
+        "%,d rows, %,d bytes serialized at %,.0f rows/s and %s/s per task, blocked on pipe %,d ms; "
+        + "%,d clickhouse local builds took %,d ms: feeding %,d ms, flushing %,d ms, optimize %,d ms, "
+        + "%,d stalled, peak rss %s; "
+        + "%,d parts of %s zipped in %,d ms, %s uploaded at %s/s, %,d parts of %s already uploaded",
+        rows.sum(),
+        pipeBytes.sum(),
+        perSecond(rows.sum(), serializeNanos.sum()),
+        bytes((long) perSecond(pipeBytes.sum(), serializeNanos.sum())),
+        pipeBlockedNanos.sum() / 1_000_000,
+        builds.sum(),
+        clickhouseNanos.sum() / 1_000_000,
+        feedNanos.sum() / 1_000_000,
+        (clickhouseNanos.sum() - feedNanos.sum() - optimizeNanos.sum()) / 1_000_000,
+        optimizeNanos.sum() / 1_000_000,
+        stalledBuilds.sum(),
+        bytes(peakRssBytes.value()),
+        parts.sum(),
+        bytes(partBytes.sum()),
+        zipNanos.sum() / 1_000_000,
+        bytes(uploadBytes.sum()),
+        bytes((long) perSecond(uploadBytes.sum(), uploadNanos.sum())),
+        skippedParts.sum(),
+        bytes(skippedBytes.sum())
+    );
+  }
+
+  private static double perSecond(long count, long nanos)
+  {
+    return nanos == 0 ? 0 : count * 1e9 / nanos;
+  }
+
+  private static String bytes(long bytes)
+  {
+    return String.format("%,.1f MB", bytes / 1048576.0);
+  }
+
+  /**
+   * Keeps the max of the added values, e.g. the peak memory of the largest build
+   */
+  public static class MaxAccumulator extends AccumulatorV2<Long, Long>
+  {
+    private long max;
+
+    @Override
+    public boolean isZero()
+    {
+      return max == 0;
+    }
+
+    @Override
+    public MaxAccumulator copy()
+    {
+      MaxAccumulator copy = new MaxAccumulator();
+      copy.max = max;
+      return copy;
+    }
+
+    @Override
+    public void reset()
+    {
+      max = 0;
+    }
+
+    @Override
+    public void add(Long value)
+    {
+      max = Math.max(max, value);
+    }
+
+    @Override
+    public void merge(AccumulatorV2<Long, Long> other)
+    {
+      add(other.value());
+    }
+
+    @Override
+    public Long value()
+    {
+      return max;
+    }
+  }
+}
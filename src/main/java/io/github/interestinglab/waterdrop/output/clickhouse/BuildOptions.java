@@ -0,0 +1,335 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import io.github.interestinglab.waterdrop.config.Config;
+import io.github.interestinglab.waterdrop.config.ConfigRuntimeException;
+import io.github.interestinglab.waterdrop.config.ConfigValue;
+import io.github.interestinglab.waterdrop.config.TypesafeConfigUtils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional build settings read from the plugin config on the driver and shipped to every task
+ */
+public class BuildOptions implements Serializable
+{
+  private static final int DEFAULT_PIPE_BUFFER_SIZE = 1 << 20;
+  private static final int DEFAULT_PIPE_QUEUE_DEPTH = 4;
+  private static final int DEFAULT_UPLOAD_PARALLELISM = 4;
+  private static final long DEFAULT_MIN_FREE_SPACE_PER_BUILD = 1L << 30;
+  private static final long DEFAULT_MAX_COMPACTED_PART_BYTES = 10L << 30;
+  private static final long DEFAULT_BUILDER_IDLE_TIMEOUT_MILLIS = 60_000;
+  private static final long DEFAULT_BUILD_STALL_TIMEOUT_MILLIS = 600_000;
+  private static final double DEFAULT_SAMPLE_FRACTION = 0.01;
+  private static final long DEFAULT_MAX_SAMPLE_ROWS = 1_000_000;
+
+  private final InputFormat inputFormat;
+  private final int pipeBufferSize;
+  private final int pipeQueueDepth;
+  private final int uploadParallelism;
+  private final TransferMode transferMode;
+  private final boolean repartitionByPartitionKey;
+  private final boolean sortByOrderKey;
+  private final int numPartitions;
+  private final long maxRowsPerBuild;
+  private final long maxBytesPerBuild;
+  private final int buildersPerTask;
+  private final long minFreeSpacePerBuild;
+  private final boolean compactParts;
+  private final long maxCompactedPartBytes;
+  private final boolean reuseBuilders;
+  private final long builderIdleTimeoutMillis;
+  private final long buildStallTimeoutMillis;
+  private final long targetPartBytes;
+  private final double sampleFraction;
+  private final long maxSampleRows;
+  private final S3Settings s3Settings;
+  private final ArrayList<String> receiveAgents = new ArrayList<>();
+  private final String receiveAgentSecret;
+  private final HashMap<String, String> localSettings = new HashMap<>();
+
+  public BuildOptions(Config config)
+  {
+    this.inputFormat = config.hasPath("inputFormat")
+                       ? InputFormat.fromString(config.getString("inputFormat"))
+                       : InputFormat.CSV;
+    this.pipeBufferSize = config.hasPath("pipeBufferSize")
+                          ? config.getBytes("pipeBufferSize").intValue()
+                          : DEFAULT_PIPE_BUFFER_SIZE;
+    this.pipeQueueDepth = config.hasPath("pipeQueueDepth")
+                          ? config.getInt("pipeQueueDepth")
+                          : DEFAULT_PIPE_QUEUE_DEPTH;
+    this.uploadParallelism = config.hasPath("uploadParallelism")
+                             ? config.getInt("uploadParallelism")
+                             : DEFAULT_UPLOAD_PARALLELISM;
+    this.transferMode = config.hasPath("transferMode")
+                        ? TransferMode.fromString(config.getString("transferMode"))
+                        : TransferMode.DEFLATE;
+    this.repartitionByPartitionKey = config.hasPath("repartitionByPartitionKey")
+                                     && config.getBoolean("repartitionByPartitionKey");
+    this.sortByOrderKey = config.hasPath("sortByOrderKey") && config.getBoolean("sortByOrderKey");
+    this.numPartitions = config.hasPath("numPartitions") ? config.getInt("numPartitions") : 0;
+    this.maxRowsPerBuild = config.hasPath("maxRowsPerBuild") ? config.getLong("maxRowsPerBuild") : 0;
+    this.maxBytesPerBuild = config.hasPath("maxBytesPerBuild") ? config.getBytes("maxBytesPerBuild") : 0;
+    this.buildersPerTask = config.hasPath("buildersPerTask") ? config.getInt("buildersPerTask") : 1;
+    this.minFreeSpacePerBuild = config.hasPath("minFreeSpacePerBuild")
+                                ? config.getBytes("minFreeSpacePerBuild")
+                                : DEFAULT_MIN_FREE_SPACE_PER_BUILD;
+    this.compactParts = config.hasPath("compactParts") && config.getBoolean("compactParts");
+    this.maxCompactedPartBytes = config.hasPath("maxCompactedPartBytes")
+                                 ? config.getBytes("maxCompactedPartBytes")
+                                 : DEFAULT_MAX_COMPACTED_PART_BYTES;
+    this.reuseBuilders = config.hasPath("reuseBuilders") && config.getBoolean("reuseBuilders");
+    this.builderIdleTimeoutMillis = config.hasPath("builderIdleTimeout")
+                                    ? config.getDuration("builderIdleTimeout", TimeUnit.MILLISECONDS)
+                                    : DEFAULT_BUILDER_IDLE_TIMEOUT_MILLIS;
+    this.buildStallTimeoutMillis = config.hasPath("buildStallTimeout")
+                                   ? config.getDuration("buildStallTimeout", TimeUnit.MILLISECONDS)
+                                   : DEFAULT_BUILD_STALL_TIMEOUT_MILLIS;
+    this.targetPartBytes = config.hasPath("targetPartBytes") ? config.getBytes("targetPartBytes") : 0;
+    this.sampleFraction = config.hasPath("sampleFraction")
+                          ? config.getDouble("sampleFraction")
+                          : DEFAULT_SAMPLE_FRACTION;
+    this.maxSampleRows = config.hasPath("maxSampleRows") ? config.getLong("maxSampleRows") : DEFAULT_MAX_SAMPLE_ROWS;
+    this.s3Settings = S3Settings.fromConfig(config);
+    if (config.hasPath("receiveAgents")) {
+      receiveAgents.addAll(config.getStringList("receiveAgents"));
+    }
+    this.receiveAgentSecret = config.hasPath("receiveAgentSecret") ? config.getString("receiveAgentSecret") : null;
+    if (TypesafeConfigUtils.hasSubConfig(config, ClickhouseLocalConfig.OVERRIDE_PREFIX)) {
+      Config localConfig = TypesafeConfigUtils.extractSubConfig(config, ClickhouseLocalConfig.OVERRIDE_PREFIX, false);
+      for (Map.Entry<String, ConfigValue> e : localConfig.entrySet()) {
+        localSettings.put(e.getKey(), String.valueOf(e.getValue().unwrapped()));
+      }
+    }
+    if (pipeBufferSize <= 0) {
+      throw new ConfigRuntimeException("pipeBufferSize should be positive");
+    }
+    if (pipeQueueDepth < 0) {
+      throw new ConfigRuntimeException("pipeQueueDepth should not be negative");
+    }
+    if (uploadParallelism <= 0) {
+      throw new ConfigRuntimeException("uploadParallelism should be positive");
+    }
+    if (buildersPerTask <= 0) {
+      throw new ConfigRuntimeException("buildersPerTask should be positive");
+    }
+    if (minFreeSpacePerBuild < 0) {
+      throw new ConfigRuntimeException("minFreeSpacePerBuild should not be negative");
+    }
+    if (maxCompactedPartBytes <= 0) {
+      throw new ConfigRuntimeException("maxCompactedPartBytes should be positive");
+    }
+    if (builderIdleTimeoutMillis <= 0) {
+      throw new ConfigRuntimeException("builderIdleTimeout should be positive");
+    }
+    if (buildStallTimeoutMillis < 0) {
+      throw new ConfigRuntimeException("buildStallTimeout should not be negative");
+    }
+    if (targetPartBytes < 0) {
+      throw new ConfigRuntimeException("targetPartBytes should not be negative");
+    }
+    if (sampleFraction <= 0 || sampleFraction > 1) {
+      throw new ConfigRuntimeException("sampleFraction should be in (0, 1]");
+    }
+    if (maxSampleRows <= 0) {
+      throw new ConfigRuntimeException("maxSampleRows should be positive");
+    }
+    if (compactParts && !receiveAgents.isEmpty()) {
+      // the compaction reads the zips back from hdfs
+      throw new ConfigRuntimeException("compactParts is not supported with receiveAgents");
+    }
+    if (!receiveAgents.isEmpty() && (receiveAgentSecret == null || receiveAgentSecret.isEmpty())) {
+      throw new ConfigRuntimeException("receiveAgentSecret is required with receiveAgents");
+    }
+  }
+
+  public InputFormat getInputFormat()
+  {
+    return inputFormat;
+  }
+
+  public int getPipeBufferSize()
+  {
+    return pipeBufferSize;
+  }
+
+  /**
+   * @return number of filled buffers allowed to wait for the pipe, 0 writes to the pipe from the spark thread
+   */
+  public int getPipeQueueDepth()
+  {
+    return pipeQueueDepth;
+  }
+
+  /**
+   * @return max number of parts uploaded concurrently by one task
+   */
+  public int getUploadParallelism()
+  {
+    return uploadParallelism;
+  }
+
+  public TransferMode getTransferMode()
+  {
+    return transferMode;
+  }
+
+  /**
+   * @return true to shuffle rows of the same clickhouse partition into the same task before building
+   */
+  public boolean isRepartitionByPartitionKey()
+  {
+    return repartitionByPartitionKey;
+  }
+
+  /**
+   * @return true to sort rows within each task by the partition key and ORDER BY of the table
+   */
+  public boolean isSortByOrderKey()
+  {
+    return sortByOrderKey;
+  }
+
+  /**
+   * @return number of spark partitions after repartitioning, 0 uses spark.sql.shuffle.partitions
+   */
+  public int getNumPartitions()
+  {
+    return numPartitions;
+  }
+
+  /**
+   * @return rows written to one clickhouse local process before rolling to a new one, 0 for no limit
+   */
+  public long getMaxRowsPerBuild()
+  {
+    return maxRowsPerBuild;
+  }
+
+  /**
+   * @return bytes written to the pipe of one clickhouse local process before rolling to a new one, 0 for no limit
+   */
+  public long getMaxBytesPerBuild()
+  {
+    return maxBytesPerBuild;
+  }
+
+  /**
+   * @return number of clickhouse local processes building the rows of one task concurrently
+   */
+  public int getBuildersPerTask()
+  {
+    return buildersPerTask;
+  }
+
+  /**
+   * @return free local disk space a build needs to start, raised to twice its share of maxBytesPerBuild when set
+   */
+  public long getMinFreeSpacePerBuild()
+  {
+    return minFreeSpacePerBuild;
+  }
+
+  /**
+   * @return true to merge the small parts of each partition in a second stage, see {@link PartCompactor}
+   */
+  public boolean isCompactParts()
+  {
+    return compactParts;
+  }
+
+  /**
+   * @return max size of the zips merged into one part by the compaction
+   */
+  public long getMaxCompactedPartBytes()
+  {
+    return maxCompactedPartBytes;
+  }
+
+  /**
+   * @return true to build every batch of a task in a clickhouse server kept by the executor, see {@link BuilderPool}
+   */
+  public boolean isReuseBuilders()
+  {
+    return reuseBuilders;
+  }
+
+  /**
+   * @return how long an unused builder session is kept by the executor
+   */
+  public long getBuilderIdleTimeoutMillis()
+  {
+    return builderIdleTimeoutMillis;
+  }
+
+  /**
+   * @return how long a clickhouse local build may go without progress before it is killed, 0 to wait forever
+   */
+  public long getBuildStallTimeoutMillis()
+  {
+    return buildStallTimeoutMillis;
+  }
+
+  /**
+   * @return bytes of the parts each task should build, which sets the number of spark partitions
+   * from a sample of the input, 0 to keep the partitioning of the input or numPartitions
+   */
+  public long getTargetPartBytes()
+  {
+    return targetPartBytes;
+  }
+
+  /**
+   * @return fraction of the input rows sampled to plan the number of spark partitions
+   */
+  public double getSampleFraction()
+  {
+    return sampleFraction;
+  }
+
+  /**
+   * @return max number of sampled rows built to estimate the part bytes per row
+   */
+  public long getMaxSampleRows()
+  {
+    return maxSampleRows;
+  }
+
+  /**
+   * @return endpoint and credentials of the object store when tmpUploadPath is an s3:// path
+   */
+  public S3Settings getS3Settings()
+  {
+    return s3Settings;
+  }
+
+  /**
+   * @return host:port of the receive agents the parts are pushed to, one per shard in shard order,
+   * empty to upload zips to tmpUploadPath, see {@link ReceiveAgent}
+   */
+  public List<String> getReceiveAgents()
+  {
+    return receiveAgents;
+  }
+
+  /**
+   * @return secret shared with the receive agents, sent in every request
+   */
+  public String getReceiveAgentSecret()
+  {
+    return receiveAgentSecret;
+  }
+
+  /**
+   * @return clickhouse local settings configured under clickhouse.local., see {@link ClickhouseLocalConfig}
+   */
+  public Map<String, String> getLocalSettings()
+  {
+    return localSettings;
+  }
+}
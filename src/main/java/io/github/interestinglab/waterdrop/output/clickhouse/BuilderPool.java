@@ -0,0 +1,210 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.spark.sql.types.DataType;
+import org.slf4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the builder sessions of an executor between the tasks building the same table.
+ * A task leases a session, or starts one when none is idle, and gives it back when its rows are built,
+ * or invalidates it after a failed build so the next task starts from a fresh server.
+ * Sessions idle longer than builderIdleTimeout are closed, and the rest when the executor exits.
+ */
+public class BuilderPool
+{
+  private static final long EVICT_INTERVAL_MILLIS = 1000;
+
+  // key -> idle sessions, most recently used last
+  private static final Map<String, Deque<Idle>> idle = new HashMap<>();
+  // every open session, idle or leased -> its key
+  private static final Map<BuilderSession, String> keys = new IdentityHashMap<>();
+  private static ScheduledExecutorService evictor;
+
+  private BuilderPool()
+  {
+  }
+
+  /**
+   * @return an idle session of the same table, binary, input and settings, or a new one
+   */
+  public static BuilderSession acquire(
+      Logger log,
+      String binaryDir,
+      long estimatedBytes,
+      String database,
+      String table,
+      String createTableSql,
+      String[] fields,
+      DataType[] fieldTypes,
+      Map<String, String> tableSchema,
+      Map<String, Object> defaultValues,
+      BuildOptions options,
+      Map<String, String> settings
+  ) throws Exception
+  {
+    String key = String.join(
+        "\n",
+        binaryDir,
+        createTableSql,
+        Arrays.toString(fields),
+        Arrays.toString(fieldTypes),
+        String.valueOf(defaultValues),
+        options.getInputFormat().name(),
+        String.valueOf(settings)
+    );
+    List<BuilderSession> dead = new ArrayList<>();
+    BuilderSession session = null;
+    synchronized (BuilderPool.class) {
+      startEvictor(log);
+      Deque<Idle> sessions = idle.get(key);
+      while (session == null && sessions != null && !sessions.isEmpty()) {
+        BuilderSession candidate = sessions.pollLast().session;
+        if (candidate.isAlive()) {
+          session = candidate;
+        } else {
+          keys.remove(candidate);
+          dead.add(candidate);
+        }
+      }
+    }
+    for (BuilderSession candidate : dead) {
+      log.info("closing builder session in " + candidate.getWorkDir() + " whose server exited");
+      candidate.close();
+    }
+    if (session != null) {
+      log.info("reusing builder session in " + session.getWorkDir());
+      return session;
+    }
+    session = new BuilderSession(
+        log,
+        WorkDirAllocator.allocate(log, estimatedBytes),
+        database,
+        table,
+        createTableSql,
+        fields,
+        fieldTypes,
+        tableSchema,
+        defaultValues,
+        options
+    );
+    try {
+      session.start(binaryDir, settings);
+    }
+    catch (Exception e) {
+      session.close();
+      throw e;
+    }
+    synchronized (BuilderPool.class) {
+      keys.put(session, key);
+    }
+    return session;
+  }
+
+  /**
+   * Returns a healthy session to the pool, to be closed after the idle timeout
+   */
+  public static void release(BuilderSession session, BuildOptions options)
+  {
+    synchronized (BuilderPool.class) {
+      String key = keys.get(session);
+      if (key != null && session.isAlive()) {
+        long deadline = System.currentTimeMillis() + options.getBuilderIdleTimeoutMillis();
+        idle.computeIfAbsent(key, k -> new ArrayDeque<>()).addLast(new Idle(session, deadline));
+        return;
+      }
+      keys.remove(session);
+    }
+    session.close();
+  }
+
+  /**
+   * Closes a session left in an unknown state by a failed build
+   */
+  public static void invalidate(BuilderSession session)
+  {
+    synchronized (BuilderPool.class) {
+      keys.remove(session);
+    }
+    session.close();
+  }
+
+  private static void startEvictor(Logger log)
+  {
+    if (evictor != null) {
+      return;
+    }
+    evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "builder-pool-evictor");
+      thread.setDaemon(true);
+      return thread;
+    });
+    evictor.scheduleWithFixedDelay(() -> {
+      for (BuilderSession session : evict(System.currentTimeMillis())) {
+        log.info("closing builder session in " + session.getWorkDir() + " after the idle timeout");
+        session.close();
+      }
+    }, EVICT_INTERVAL_MILLIS, EVICT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      for (BuilderSession session : closeAll()) {
+        session.close();
+      }
+    }, "builder-pool-shutdown"));
+  }
+
+  private static synchronized List<BuilderSession> evict(long now)
+  {
+    List<BuilderSession> expired = new ArrayList<>();
+    Iterator<Deque<Idle>> sessions = idle.values().iterator();
+    while (sessions.hasNext()) {
+      Deque<Idle> deque = sessions.next();
+      Iterator<Idle> it = deque.iterator();
+      while (it.hasNext()) {
+        Idle entry = it.next();
+        if (entry.deadline <= now || !entry.session.isAlive()) {
+          it.remove();
+          keys.remove(entry.session);
+          expired.add(entry.session);
+        }
+      }
+      if (deque.isEmpty()) {
+        sessions.remove();
+      }
+    }
+    return expired;
+  }
+
+  /**
+   * @return every open session, leased ones included, the executor is going away
+   */
+  private static synchronized List<BuilderSession> closeAll()
+  {
+    List<BuilderSession> all = new ArrayList<>(keys.keySet());
+    keys.clear();
+    idle.clear();
+    return all;
+  }
+
+  private static class Idle
+  {
+    private final BuilderSession session;
+    private final long deadline;
+
+    Idle(BuilderSession session, long deadline)
+    {
+      this.session = session;
+      this.deadline = deadline;
+    }
+  }
+}
@@ -0,0 +1,490 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A long lived clickhouse server on the loopback interface, building successive batches of one target table.
+ * clickhouse local reads all of its queries before running them, so it can't be kept between batches, while the
+ * server started from the same binary keeps the schema loaded and takes every batch as an http insert.
+ * Each batch is inserted into its own copy of the target table, which is merged and detached,
+ * leaving its data dir to the uploader.
+ * A watchdog kills the server when a statement makes no progress for buildStallTimeout, as for clickhouse local.
+ */
+public class BuilderSession implements Closeable
+{
+  private static final long STARTUP_TIMEOUT_MILLIS = 60_000;
+  private static final int STARTUP_ATTEMPTS = 3;
+  private static final int CHUNK_SIZE = 1 << 16;
+  private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+  private static final int LOGGED_STATEMENT_CHARS = 200;
+
+  private final Logger log;
+  private final File workDir;
+  private final String database;
+  private final String table;
+  private final String createTableSql;
+  private final String[] fields;
+  private final DataType[] fieldTypes;
+  private final String[] columnTypes;
+  private final Object[] defaultValues;
+  private final BuildOptions options;
+  private Process process;
+  private ProcessMemoryProbe memoryProbe;
+  private String url;
+  private int batches;
+  private volatile long lastUsed;
+  private Thread watchdog;
+  private volatile RowWriter<?> writer;
+  // the statement being run, null between statements, and how many were started, see watch()
+  private volatile String running;
+  private volatile long statements;
+  private volatile boolean stalled;
+
+  /**
+   * @param createTableSql the create statement of database.table, renamed for every batch
+   */
+  public BuilderSession(
+      Logger log,
+      File workDir,
+      String database,
+      String table,
+      String createTableSql,
+      String[] fields,
+      DataType[] fieldTypes,
+      Map<String, String> tableSchema,
+      Map<String, Object> defaultValues,
+      BuildOptions options
+  )
+  {
+    this.log = log;
+    this.workDir = workDir;
+    this.database = database;
+    this.table = table;
+    this.createTableSql = createTableSql;
+    this.fields = fields;
+    this.fieldTypes = fieldTypes;
+    this.columnTypes = new String[fields.length];
+    this.defaultValues = new Object[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      columnTypes[i] = tableSchema.get(fields[i]);
+      Object defaultValue = defaultValues.get(fields[i]);
+      this.defaultValues[i] = defaultValue == null ? null : String.valueOf(defaultValue);
+    }
+    this.options = options;
+  }
+
+  /**
+   * Starts the server with the settings of {@link ClickhouseLocalConfig} and waits until it answers
+   */
+  public void start(String binaryDir, Map<String, String> settings) throws IOException, InterruptedException
+  {
+    File clickhouse = new File(binaryDir, "clickhouse");
+    if (!clickhouse.canExecute() && !clickhouse.setExecutable(true)) {
+      throw new IOException("can't make " + clickhouse + " executable");
+    }
+    for (int attempt = 1; ; attempt++) {
+      int port = freePort();
+      Map<String, String> elements = new LinkedHashMap<>();
+      elements.put("listen_host", "127.0.0.1");
+      elements.put("http_port", String.valueOf(port));
+      elements.put("path", new File(workDir, "clickhouse_data/data").getAbsolutePath() + "/");
+      elements.put("tmp_path", new File(workDir, "clickhouse_data/tmp").getAbsolutePath() + "/");
+      elements.put("user_files_path", new File(workDir, "clickhouse_data/user_files").getAbsolutePath() + "/");
+      elements.put("format_schema_path", new File(workDir, "clickhouse_data/format_schemas").getAbsolutePath() + "/");
+      elements.put("users.default.networks.ip", "::/0");
+      elements.put("users.default.profile", "default");
+      elements.put("users.default.quota", "default");
+      // no limits, only the interval is required
+      elements.put("quotas.default.interval.duration", "3600");
+      String config = ClickhouseLocalConfig.render(new File(binaryDir, "config.xml"), settings, elements);
+      FileUtils.writeStringToFile(new File(workDir, "config.xml"), config, StandardCharsets.UTF_8);
+
+      process = new ProcessBuilder(clickhouse.getAbsolutePath(), "server", "--config-file=config.xml")
+          .directory(workDir)
+          .redirectErrorStream(true)
+          .redirectOutput(new File(workDir, "server.out"))
+          .start();
+      url = "http://127.0.0.1:" + port + "/";
+      if (waitUntilReady()) {
+        break;
+      }
+      process.destroyForcibly().waitFor();
+      if (attempt == STARTUP_ATTEMPTS) {
+        throw new IOException("clickhouse server failed to start in " + workDir + ": " + serverOutput());
+      }
+      // most likely lost the port to another process
+      log.info("clickhouse server failed to start on port " + port + ", retrying: " + serverOutput());
+    }
+    memoryProbe = new ProcessMemoryProbe(process, workDir.getName());
+    long stallTimeout = options.getBuildStallTimeoutMillis();
+    if (stallTimeout > 0) {
+      watchdog = new Thread(() -> watch(stallTimeout), "builder-watchdog-" + workDir.getName());
+      watchdog.setDaemon(true);
+      watchdog.start();
+    }
+    query("create database if not exists " + database);
+    lastUsed = System.currentTimeMillis();
+    log.info("started clickhouse server at " + url + " in " + workDir);
+  }
+
+  private boolean waitUntilReady() throws InterruptedException
+  {
+    long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+    while (System.currentTimeMillis() < deadline && process.isAlive()) {
+      try {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url + "ping").openConnection();
+        try {
+          if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+            return true;
+          }
+        }
+        finally {
+          conn.disconnect();
+        }
+      }
+      catch (IOException e) {
+        // not listening yet
+      }
+      Thread.sleep(100);
+    }
+    return false;
+  }
+
+  /**
+   * Builds one batch: rows are inserted into a fresh copy of the target table, merged by a final optimize,
+   * and the table is detached with only its active parts left in its data dir
+   *
+   * @return the data dir of the batch, owned by the caller
+   */
+  public File build(Iterator<Row> rows, long maxRows, long maxBytes, BuildMetrics metrics) throws IOException
+  {
+    return build(
+        rows,
+        maxRows,
+        maxBytes,
+        out -> RowWriter.create(options.getInputFormat(), out, columnTypes, fieldTypes, defaultValues, log),
+        metrics
+    );
+  }
+
+  /**
+   * Builds one batch of rows of any representation, written to the insert by the writer of the factory
+   */
+  public <T> File build(
+      Iterator<T> rows,
+      long maxRows,
+      long maxBytes,
+      RowWriter.Factory<T> writers,
+      BuildMetrics metrics
+  ) throws IOException
+  {
+    String batchTable = table + "_batch_" + (++batches);
+    String fullTableName = database + "." + batchTable;
+    long start = System.nanoTime();
+    long optimizeStart;
+    try {
+      query(createTableSql.replaceFirst("(?i)^\\s*CREATE TABLE\\s+\\S+", "CREATE TABLE " + fullTableName));
+      insert(fullTableName, rows, maxRows, maxBytes, writers, metrics);
+      optimizeStart = System.nanoTime();
+      query("optimize table " + fullTableName + " final", true);
+    }
+    catch (IOException e) {
+      if (stalled) {
+        metrics.addStalledBuild();
+      }
+      throw e;
+    }
+    long end = System.nanoTime();
+    // the insert returns once its rows are written, nothing is left to flush
+    metrics.addBuild(end - start, optimizeStart - start, end - optimizeStart, memoryProbe.getPeakRssBytes());
+
+    Set<String> active = new HashSet<>();
+    String parts = query(String.format(
+        "select name from system.parts where database = '%s' and table = '%s' and active format TSV",
+        database,
+        batchTable
+    ));
+    for (String line : parts.split("\n")) {
+      if (!line.trim().isEmpty()) {
+        active.add(line.trim());
+      }
+    }
+    query("detach table " + fullTableName);
+    // the table must not come back if the server restarts
+    FileUtils.deleteQuietly(new File(workDir, "clickhouse_data/data/metadata/" + database + "/" + batchTable + ".sql"));
+    File dataDir = new File(workDir, "clickhouse_data/data/data/" + database + "/" + batchTable);
+    PartCompactor.deleteInactiveParts(dataDir, active);
+    lastUsed = System.currentTimeMillis();
+    log.info(String.format("built batch %d with %d parts in %s", batches, active.size(), dataDir));
+    return dataDir;
+  }
+
+  private <T> void insert(
+      String fullTableName,
+      Iterator<T> rows,
+      long maxRows,
+      long maxBytes,
+      RowWriter.Factory<T> writers,
+      BuildMetrics metrics
+  ) throws IOException
+  {
+    StringBuilder sql = new StringBuilder("insert into ").append(fullTableName).append(" (");
+    for (int i = 0; i < fields.length; i++) {
+      sql.append(i == 0 ? "`" : ",`").append(fields[i]).append("`");
+    }
+    sql.append(") format ").append(options.getInputFormat().getFormatName());
+    HttpURLConnection conn = (HttpURLConnection) new URL(
+        url + "?query=" + URLEncoder.encode(sql.toString(), "UTF-8")
+    ).openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    conn.setChunkedStreamingMode(CHUNK_SIZE);
+    begin(conn, sql.toString(), true);
+    RowWriter<T> writer = null;
+    long start = System.nanoTime();
+    try {
+      writer = writers.create(conn.getOutputStream());
+      this.writer = writer;
+      // closes the request body
+      writer.writeRows(rows, maxRows, maxBytes);
+      readResponse(conn, sql.toString());
+    }
+    catch (IOException e) {
+      throw stalledOr(e);
+    }
+    finally {
+      if (writer != null) {
+        metrics.addSerialized(writer.getRowsWritten(), writer.getBytesWritten(), System.nanoTime() - start, 0);
+      }
+      this.writer = null;
+      running = null;
+      conn.disconnect();
+    }
+  }
+
+  private String query(String sql) throws IOException
+  {
+    return query(sql, false);
+  }
+
+  /**
+   * @param writesParts true for the statements which may run long while writing or merging parts
+   */
+  private String query(String sql, boolean writesParts) throws IOException
+  {
+    HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    begin(conn, sql, writesParts);
+    try {
+      try (OutputStream out = conn.getOutputStream()) {
+        out.write(sql.getBytes(StandardCharsets.UTF_8));
+      }
+      return readResponse(conn, sql);
+    }
+    catch (IOException e) {
+      throw stalledOr(e);
+    }
+    finally {
+      running = null;
+      conn.disconnect();
+    }
+  }
+
+  /**
+   * Hands the statement to the watchdog. A statement writing parts answers only once it is done, so it has no
+   * read timeout, the watchdog kills the server when its data dir stops changing. The others time out directly.
+   */
+  private void begin(HttpURLConnection conn, String sql, boolean writesParts) throws IOException
+  {
+    if (stalled) {
+      throw new IOException("clickhouse server in " + workDir + " was killed after a stalled build");
+    }
+    long stallTimeout = options.getBuildStallTimeoutMillis();
+    conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    if (!writesParts && stallTimeout > 0) {
+      conn.setReadTimeout((int) Math.min(Integer.MAX_VALUE, stallTimeout));
+    }
+    statements++;
+    running = sql;
+  }
+
+  private IOException stalledOr(IOException e)
+  {
+    if (!stalled) {
+      return e;
+    }
+    return new IOException(String.format(
+        "clickhouse server in %s made no progress for %,d ms and was killed",
+        workDir,
+        options.getBuildStallTimeoutMillis()
+    ), e);
+  }
+
+  /**
+   * Kills the server when the running statement neither took rows nor changed the data dir of the database for
+   * stallTimeout, which fails the statement waiting for it
+   */
+  private void watch(long stallTimeout)
+  {
+    long interval = PartBuilder.progressInterval(stallTimeout);
+    long[] progress = null;
+    long lastProgress = 0;
+    while (true) {
+      try {
+        Thread.sleep(interval);
+      }
+      catch (InterruptedException e) {
+        return;
+      }
+      if (running == null) {
+        progress = null;
+        continue;
+      }
+      long[] current = progress();
+      long now = System.currentTimeMillis();
+      if (!Arrays.equals(current, progress)) {
+        progress = current;
+        lastProgress = now;
+      } else if (now - lastProgress >= stallTimeout) {
+        String statement = running;
+        if (statement == null) {
+          continue;
+        }
+        stalled = true;
+        log.error(String.format(
+            "clickhouse server in %s made no progress for %,d ms on %s and is killed, last output:%n%s",
+            workDir,
+            stallTimeout,
+            statement.length() <= LOGGED_STATEMENT_CHARS ? statement : statement.substring(0, LOGGED_STATEMENT_CHARS),
+            serverOutput()
+        ));
+        process.destroyForcibly();
+        return;
+      }
+    }
+  }
+
+  /**
+   * Statements started, bytes taken by the insert and size of the data dir of the database, which inserts and
+   * merges write to while the system tables elsewhere keep changing on their own
+   */
+  private long[] progress()
+  {
+    RowWriter<?> current = writer;
+    return new long[]{
+        statements,
+        current == null ? 0 : current.getBytesWritten(),
+        PartBuilder.directorySize(new File(workDir, "clickhouse_data/data/data/" + database))
+    };
+  }
+
+  private String serverOutput()
+  {
+    try {
+      return tail(FileUtils.readFileToString(new File(workDir, "server.out"), StandardCharsets.UTF_8));
+    }
+    catch (IOException e) {
+      return "failed to read server.out: " + e.getMessage();
+    }
+  }
+
+  private static String readResponse(HttpURLConnection conn, String sql) throws IOException
+  {
+    int status = conn.getResponseCode();
+    InputStream body = status == HttpURLConnection.HTTP_OK ? conn.getInputStream() : conn.getErrorStream();
+    String response = body == null ? "" : IOUtils.toString(body, StandardCharsets.UTF_8);
+    if (status != HttpURLConnection.HTTP_OK) {
+      throw new IOException(String.format("%s failed with %d: %s", sql, status, response));
+    }
+    return response;
+  }
+
+  private static int freePort() throws IOException
+  {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static String tail(String output)
+  {
+    return output.length() <= 2000 ? output : output.substring(output.length() - 2000);
+  }
+
+  public boolean isAlive()
+  {
+    return process != null && process.isAlive();
+  }
+
+  /**
+   * @return when the last batch was built, or the server started
+   */
+  public long getLastUsed()
+  {
+    return lastUsed;
+  }
+
+  public File getWorkDir()
+  {
+    return workDir;
+  }
+
+  /**
+   * Stops the server and deletes the work dir, the data dirs of the batches already handed out included
+   */
+  @Override
+  public void close()
+  {
+    if (watchdog != null) {
+      watchdog.interrupt();
+    }
+    if (memoryProbe != null) {
+      memoryProbe.close();
+    }
+    if (process != null) {
+      process.destroy();
+      try {
+        if (!process.waitFor(10, TimeUnit.SECONDS)) {
+          process.destroyForcibly().waitFor();
+        }
+      }
+      catch (InterruptedException e) {
+        process.destroyForcibly();
+        Thread.currentThread().interrupt();
+      }
+    }
+    try {
+      FileUtils.deleteDirectory(workDir);
+    }
+    catch (IOException e) {
+      log.info("failed to delete " + workDir, e);
+    }
+    finally {
+      WorkDirAllocator.release(workDir);
+    }
+    log.info("closed clickhouse server in " + workDir);
+  }
+}
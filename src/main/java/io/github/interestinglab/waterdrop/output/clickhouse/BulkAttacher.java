@@ -0,0 +1,435 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Attaches all the parts uploaded under a tmpUploadPath to one clickhouse node, in place of running attach.sh
+ * once per part. Parts are streamed from the {@link PartStorage} and unzipped concurrently into the detached dir
+ * of the disk with the most free space, attached through the http interface with retries, and their zips are moved
+ * to the attached/ sub dir, so running it again only attaches what is left.
+ * With a job manifest only the parts committed by the job are attached, without listing the dir.
+ * <p>
+ * Usage: {@code java -cp "clickhouse-offline-build-1.0.jar:$(hadoop classpath)"
+ * io.github.interestinglab.waterdrop.output.clickhouse.BulkAttacher --host localhost:8123 --database test
+ * --table ontime --path hdfs://remote_hdfs_host:9000/clickhouse-build/test/ontime/
+ * [--manifest $path/manifest/$jobId.tsv --user default --password pwd --hdfsUser user
+ * --parallelism 8 --retries 3]}. An s3:// path takes the {@link S3Settings} as --s3.endpoint, --s3.region,
+ * --s3.accessKey and --s3.secretKey.
+ */
+public class BulkAttacher
+{
+  static final String ATTACHED_DIR = "attached";
+  // clickhouse renames a detached part to attaching_$name while attaching it
+  static final String ATTACHING_PREFIX = "attaching_";
+
+  private final Logger log;
+  private final PartStorage storage;
+  private final String url;
+  private final String user;
+  private final String password;
+  private final String database;
+  private final String table;
+  private final int parallelism;
+  private final int retries;
+  // bytes being unzipped to each disk, not yet visible in its free space
+  private final Map<String, AtomicLong> reservedBytes = new ConcurrentHashMap<>();
+  // the parts of every task share names like 202001_1_1_0, each is detached under a unique block number
+  private final AtomicLong blockNumber = new AtomicLong(System.currentTimeMillis());
+
+  /**
+   * @param url base url of the clickhouse http interface, e.g. http://localhost:8123/
+   */
+  public BulkAttacher(
+      Logger log,
+      PartStorage storage,
+      String url,
+      String user,
+      String password,
+      String database,
+      String table,
+      int parallelism,
+      int retries
+  )
+  {
+    this.log = log;
+    this.storage = storage;
+    this.url = url.endsWith("/") ? url : url + "/";
+    this.user = user;
+    this.password = password;
+    this.database = database;
+    this.table = table;
+    this.parallelism = parallelism;
+    this.retries = retries;
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    Map<String, String> options = parseArgs(args);
+    for (String required : new String[]{"host", "database", "table", "path"}) {
+      if (!options.containsKey(required)) {
+        throw new IllegalArgumentException("option --" + required + " is required");
+      }
+    }
+    Logger log = LoggerFactory.getLogger(BulkAttacher.class);
+    String root = options.get("path").endsWith("/") ? options.get("path") : options.get("path") + "/";
+    int failed;
+    try (PartStorage storage = PartStorage.forPath(root, options.get("hdfsUser"), S3Settings.fromArgs(options))) {
+      BulkAttacher attacher = new BulkAttacher(
+          log,
+          storage,
+          "http://" + options.get("host"),
+          options.get("user"),
+          options.get("password"),
+          options.get("database"),
+          options.get("table"),
+          Integer.parseInt(options.getOrDefault("parallelism", "8")),
+          Integer.parseInt(options.getOrDefault("retries", "3"))
+      );
+      failed = options.containsKey("manifest")
+               ? attacher.attachManifest(options.get("manifest"), root)
+               : attacher.attachAll(root);
+    }
+    System.exit(failed == 0 ? 0 : 1);
+  }
+
+  static Map<String, String> parseArgs(String[] args)
+  {
+    Map<String, String> options = new HashMap<>();
+    for (int i = 0; i < args.length; i += 2) {
+      if (!args[i].startsWith("--") || i + 1 == args.length) {
+        throw new IllegalArgumentException("expected --option value, got " + args[i]);
+      }
+      options.put(args[i].substring(2), args[i + 1]);
+    }
+    return options;
+  }
+
+  /**
+   * @return number of parts which failed to attach after all retries
+   */
+  public int attachAll(String root) throws IOException, InterruptedException
+  {
+    List<String> zips = new ArrayList<>();
+    for (String path : storage.list(root)) {
+      // tmp/, manifest/ and attached/ are dirs
+      if (path.endsWith(".zip")) {
+        zips.add(path);
+      }
+    }
+    return attachZips(root, zips);
+  }
+
+  /**
+   * Attaches the parts of the manifest uploaded to the root dir, e.g. one shard dir of a Distributed table
+   *
+   * @return number of parts which failed to attach after all retries
+   */
+  public int attachManifest(String manifest, String root) throws IOException, InterruptedException
+  {
+    // the manifest may name the dir with another scheme or authority
+    String rootDir = URI.create(root).getPath().replaceAll("/+$", "");
+    List<String> zips = new ArrayList<>();
+    try (InputStream in = storage.open(manifest)) {
+      for (String line : IOUtils.readLines(in, StandardCharsets.UTF_8)) {
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String path = PartInfo.parse(line).getPath();
+        if (!rootDir.equals(URI.create(PartStorage.parent(path)).getPath().replaceAll("/+$", ""))) {
+          continue;
+        }
+        if (storage.length(path) >= 0) {
+          zips.add(path);
+        } else if (storage.length(attachedPath(root, path)) < 0) {
+          throw new IOException(path + " in " + manifest + " not found");
+        }
+      }
+    }
+    return attachZips(root, zips);
+  }
+
+  private static String attachedPath(String root, String zip)
+  {
+    return (root.endsWith("/") ? root : root + "/") + ATTACHED_DIR + "/" + PartStorage.name(zip);
+  }
+
+  private int attachZips(String root, List<String> zips) throws IOException, InterruptedException
+  {
+    List<String> disks = dataPaths(url, user, password, database, table);
+    log.info(String.format("attaching %d parts to %s.%s on %d disks", zips.size(), database, table, disks.size()));
+
+    ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, zips.size())));
+    int failed = 0;
+    try {
+      List<Future<Boolean>> futures = new ArrayList<>();
+      for (String zip : zips) {
+        futures.add(exec.submit(() -> attachWithRetries(root, zip, disks)));
+      }
+      for (Future<Boolean> future : futures) {
+        try {
+          if (!future.get()) {
+            failed++;
+          }
+        }
+        catch (ExecutionException e) {
+          log.error("failed to attach part", e.getCause());
+          failed++;
+        }
+      }
+    }
+    finally {
+      exec.shutdownNow();
+    }
+    log.info(String.format("%d parts attached, %d failed", zips.size() - failed, failed));
+    return failed;
+  }
+
+  /**
+   * The part is detached under the same name on the same disk on every attempt, so an attempt following one whose
+   * response was lost finds the detached dir consumed by the attach instead of attaching the part a second time
+   */
+  private boolean attachWithRetries(String root, String zip, List<String> disks) throws InterruptedException
+  {
+    String partName = detachedName(PartStorage.name(zip));
+    File partDir = null;
+    boolean unzipped = false;
+    for (int attempt = 0; ; attempt++) {
+      try {
+        if (unzipped
+            && !partDir.exists()
+            && !new File(partDir.getParentFile(), ATTACHING_PREFIX + partName).exists()) {
+          log.info("attach of " + zip + " as " + partName + " went through before its response was lost");
+        } else {
+          if (!unzipped) {
+            partDir = unzip(zip, partName, disks);
+            unzipped = true;
+          }
+          query("alter table " + database + "." + table + " attach part '" + partName + "'");
+        }
+        log.info("attached " + zip + " as " + partDir);
+        break;
+      }
+      catch (IOException e) {
+        if (attempt >= retries) {
+          log.error("failed to attach " + zip + (unzipped ? ", left detached as " + partDir : ""), e);
+          return false;
+        }
+        log.warn("failed to attach " + zip + ", retrying", e);
+        Thread.sleep(1000L << attempt);
+      }
+    }
+    return moveAttached(root, zip);
+  }
+
+  /**
+   * @return false if the attached zip is still in place, where running again would attach it a second time
+   */
+  private boolean moveAttached(String root, String zip) throws InterruptedException
+  {
+    String target = attachedPath(root, zip);
+    for (int attempt = 0; ; attempt++) {
+      try {
+        storage.rename(zip, target);
+        return true;
+      }
+      catch (IOException e) {
+        try {
+          // a move which went through, e.g. an s3 copy whose delete was retried
+          if (storage.length(zip) < 0 && storage.length(target) >= 0) {
+            return true;
+          }
+        }
+        catch (IOException checkFailure) {
+          e.addSuppressed(checkFailure);
+        }
+        if (attempt >= retries) {
+          log.error(zip + " is attached but failed to move to " + target + ", move it before running again", e);
+          return false;
+        }
+        log.warn("failed to move attached " + zip + ", retrying", e);
+        Thread.sleep(1000L << attempt);
+      }
+    }
+  }
+
+  /**
+   * Unzips the part to the detached dir of the disk with the most free space
+   *
+   * @return the unzipped part dir
+   */
+  private File unzip(String zip, String partName, List<String> disks) throws IOException
+  {
+    long zipBytes = Math.max(0, storage.length(zip));
+    String disk = pickDisk(disks, zipBytes);
+    File partDir = new File(new File(disk, "detached"), partName);
+    try {
+      FileUtils.deleteDirectory(partDir);
+      try (InputStream in = storage.open(zip)) {
+        unzip(in, partDir);
+      }
+    }
+    catch (IOException e) {
+      FileUtils.deleteDirectory(partDir);
+      throw e;
+    }
+    finally {
+      reservedBytes.get(disk).addAndGet(-zipBytes);
+    }
+    return partDir;
+  }
+
+  /**
+   * $uuid__$partition_$min_$max_$level[_$mutation][.zip] becomes $partition_$n_$n_$level[_$mutation],
+   * attach gives the part new block numbers anyway
+   */
+  private String detachedName(String zipName)
+  {
+    return detachedName(zipName, blockNumber.incrementAndGet());
+  }
+
+  static String detachedName(String zipName, long block)
+  {
+    int prefix = zipName.indexOf("__");
+    String name = zipName.substring(
+        prefix < 0 ? 0 : prefix + 2,
+        zipName.endsWith(".zip") ? zipName.length() - ".zip".length() : zipName.length()
+    );
+    String[] fields = name.split("_");
+    if (fields.length < 4) {
+      throw new IllegalArgumentException("unexpected part name " + name);
+    }
+    StringBuilder sb = new StringBuilder(fields[0]).append('_').append(block).append('_').append(block);
+    for (int i = 3; i < fields.length; i++) {
+      sb.append('_').append(fields[i]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Reserves the bytes on the picked disk in the same step, so the parts unzipped at the same time spread out
+   */
+  synchronized String pickDisk(List<String> disks, long bytes)
+  {
+    String best = null;
+    long bestFree = Long.MIN_VALUE;
+    for (String disk : disks) {
+      long free = new File(disk).getUsableSpace() - reservedBytes.computeIfAbsent(disk, d -> new AtomicLong()).get();
+      if (free > bestFree) {
+        best = disk;
+        bestFree = free;
+      }
+    }
+    reservedBytes.get(best).addAndGet(bytes);
+    return best;
+  }
+
+  static void unzip(InputStream in, File partDir) throws IOException
+  {
+    if (!partDir.mkdirs()) {
+      throw new IOException("failed to create " + partDir);
+    }
+    try (ZipInputStream zipIn = new ZipInputStream(in)) {
+      ZipEntry entry;
+      while ((entry = zipIn.getNextEntry()) != null) {
+        // the part files are zipped flat
+        if (entry.isDirectory() || entry.getName().contains("/") || entry.getName().contains("\\")) {
+          throw new IOException("unexpected zip entry " + entry.getName());
+        }
+        try (OutputStream out = new FileOutputStream(new File(partDir, entry.getName()))) {
+          IOUtils.copyLarge(zipIn, out);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the data dirs of the table, one per disk
+   */
+  static List<String> dataPaths(String url, String user, String password, String database, String table)
+      throws IOException
+  {
+    List<String> disks = new ArrayList<>();
+    for (String line : query(
+        url,
+        user,
+        password,
+        database,
+        "select arrayJoin(data_paths) from system.tables where database = '" + database + "' and name = '" + table + "'"
+    ).split("\n")) {
+      if (!line.isEmpty()) {
+        disks.add(line);
+      }
+    }
+    if (disks.isEmpty()) {
+      throw new IOException(database + "." + table + " not exist?");
+    }
+    return disks;
+  }
+
+  private String query(String sql) throws IOException
+  {
+    return query(url, user, password, database, sql);
+  }
+
+  /**
+   * Runs the sql through the clickhouse http interface at url, with the optional credentials
+   */
+  static String query(String url, String user, String password, String database, String sql) throws IOException
+  {
+    HttpURLConnection conn = (HttpURLConnection) new URL(
+        url + "?database=" + URLEncoder.encode(database, "UTF-8")
+    ).openConnection();
+    conn.setRequestMethod("POST");
+    conn.setDoOutput(true);
+    if (user != null) {
+      conn.setRequestProperty("X-ClickHouse-User", user);
+    }
+    if (password != null) {
+      conn.setRequestProperty("X-ClickHouse-Key", password);
+    }
+    byte[] bytes = sql.getBytes(StandardCharsets.UTF_8);
+    // a streamed request is not silently sent again when the connection drops, attach is not idempotent
+    conn.setFixedLengthStreamingMode(bytes.length);
+    try {
+      try (OutputStream out = conn.getOutputStream()) {
+        out.write(bytes);
+      }
+      int status = conn.getResponseCode();
+      InputStream body = status == HttpURLConnection.HTTP_OK ? conn.getInputStream() : conn.getErrorStream();
+      String response = body == null ? "" : IOUtils.toString(body, StandardCharsets.UTF_8);
+      if (status != HttpURLConnection.HTTP_OK) {
+        throw new IOException(String.format("%s failed with %d: %s", sql, status, response));
+      }
+      return response;
+    }
+    finally {
+      conn.disconnect();
+    }
+  }
+}
@@ -0,0 +1,125 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parsed ClickHouse type string as returned by {@code desc table}, e.g. {@code Nullable(Decimal(18, 2))}.
+ * Arguments are kept as raw strings because they can be nested types, numbers, quoted strings or enum entries.
+ */
+public class ClickHouseType implements Serializable
+{
+  private final String name;
+  private final List<String> arguments;
+
+  private ClickHouseType(String name, List<String> arguments)
+  {
+    this.name = name;
+    this.arguments = arguments;
+  }
+
+  public static ClickHouseType parse(String type)
+  {
+    String trimmed = type.trim();
+    int open = trimmed.indexOf('(');
+    if (open < 0) {
+      return new ClickHouseType(trimmed, Collections.emptyList());
+    }
+    if (!trimmed.endsWith(")")) {
+      throw new IllegalArgumentException("invalid clickhouse type " + type);
+    }
+    return new ClickHouseType(
+        trimmed.substring(0, open).trim(),
+        splitArguments(trimmed.substring(open + 1, trimmed.length() - 1))
+    );
+  }
+
+  private static List<String> splitArguments(String in)
+  {
+    List<String> result = new ArrayList<>();
+    int depth = 0;
+    boolean quoted = false;
+    int start = 0;
+    for (int i = 0; i < in.length(); i++) {
+      char c = in.charAt(i);
+      if (quoted) {
+        if (c == '\\') {
+          i++;
+        } else if (c == '\'') {
+          quoted = false;
+        }
+        continue;
+      }
+      if (c == '\'') {
+        quoted = true;
+      } else if (c == '(') {
+        depth++;
+      } else if (c == ')') {
+        depth--;
+      } else if (c == ',' && depth == 0) {
+        result.add(in.substring(start, i).trim());
+        start = i + 1;
+      }
+    }
+    String last = in.substring(start).trim();
+    if (!last.isEmpty()) {
+      result.add(last);
+    }
+    return result;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public List<String> getArguments()
+  {
+    return arguments;
+  }
+
+  public int getArgumentCount()
+  {
+    return arguments.size();
+  }
+
+  public ClickHouseType getTypeArgument(int index)
+  {
+    return parse(arguments.get(index));
+  }
+
+  public int getIntArgument(int index)
+  {
+    return Integer.parseInt(arguments.get(index));
+  }
+
+  /**
+   * @return the unquoted string argument, e.g. the time zone of {@code DateTime('Asia/Shanghai')}
+   */
+  public String getStringArgument(int index)
+  {
+    return unquote(arguments.get(index));
+  }
+
+  public boolean isNullable()
+  {
+    return "Nullable".equals(name);
+  }
+
+  static String unquote(String in)
+  {
+    String s = in.trim();
+    if (s.length() >= 2 && s.charAt(0) == '\'' && s.charAt(s.length() - 1) == '\'') {
+      s = s.substring(1, s.length() - 1);
+    }
+    return s.replace("\\'", "'").replace("\\\\", "\\");
+  }
+
+  @Override
+  public String toString()
+  {
+    return arguments.isEmpty() ? name : name + "(" + String.join(", ", arguments) + ")";
+  }
+}
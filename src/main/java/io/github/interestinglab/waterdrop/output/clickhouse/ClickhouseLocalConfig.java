@@ -0,0 +1,259 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
+import org.slf4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates the config.xml of the clickhouse local processes of a task from the resources of the executor.
+ * The processes run outside the jvm heap, so on a cluster they share the memory overhead of the executor
+ * with the other tasks running on it, and in local mode the physical memory left over by the jvm.
+ * Settings under clickhouse.local. in the plugin config override the generated ones,
+ * e.g. clickhouse.local.max_threads = 4 or clickhouse.local.logger.level = debug.
+ */
+public class ClickhouseLocalConfig
+{
+  public static final String OVERRIDE_PREFIX = "clickhouse.local.";
+  public static final String LOGGER_LEVEL = "logger.level";
+
+  private static final String DEFAULT_LOGGER_LEVEL = "warning";
+  // share of the memory given to the queries, the rest is left to the binary itself and to unaccounted allocations
+  private static final double MEMORY_FRACTION = 0.8;
+  // the max_memory_usage of the former config.xml, kept when the memory overhead of the executors is not set
+  private static final long DEFAULT_MEMORY_USAGE = 60_000_000_000L;
+  // below this builds of wide rows fail, the overhead is likely too small then rather than a hard limit
+  private static final long MIN_MEMORY_PER_BUILD = 1L << 30;
+  private static final long MIN_BLOCK_ROWS = 65536;
+  private static final long MAX_BLOCK_ROWS = 1048576;
+  // memory budgeted per row of an insert block, blocks shrink before a build runs out of memory
+  private static final long BLOCK_ROW_BYTES = 4096;
+  // local[*] runs a task per core
+  private static final Pattern LOCAL_SLOTS = Pattern.compile("local\\[\\s*(\\d+)\\s*(,.*)?]");
+
+  private ClickhouseLocalConfig()
+  {
+  }
+
+  /**
+   * @param overrides settings from the plugin config, replacing the generated ones
+   * @param builders  clickhouse local processes building one task concurrently
+   * @return profile settings by name, and the logger level as {@link #LOGGER_LEVEL}
+   */
+  public static Map<String, String> settings(Logger log, Map<String, String> overrides, int builders)
+  {
+    SparkConf conf = SparkEnv.get() == null ? null : SparkEnv.get().conf();
+    int taskCpus = conf == null ? 1 : conf.getInt("spark.task.cpus", 1);
+    String master = conf == null ? "local" : conf.get("spark.master", "local");
+    int executorCores = executorCores(conf, master);
+    int concurrentTasks = Math.max(1, Math.min(taskSlots(master), executorCores) / Math.max(1, taskCpus));
+    int threads = Math.max(1, executorCores / concurrentTasks / builders);
+    Map<String, String> settings = new LinkedHashMap<>();
+    long memory = memoryPerBuild(log, conf, master, concurrentTasks, builders);
+    long blockRows = Math.max(MIN_BLOCK_ROWS, Math.min(MAX_BLOCK_ROWS, memory / BLOCK_ROW_BYTES));
+    settings.put("max_memory_usage", String.valueOf(memory));
+    settings.put("max_insert_block_size", String.valueOf(blockRows));
+    settings.put("min_insert_block_size_rows", String.valueOf(blockRows));
+    settings.put("max_bytes_before_external_sort", String.valueOf(memory / 2));
+    settings.put("max_bytes_before_external_group_by", String.valueOf(memory / 2));
+    settings.put("max_threads", String.valueOf(threads));
+    settings.put(LOGGER_LEVEL, DEFAULT_LOGGER_LEVEL);
+    settings.putAll(overrides);
+    log.info(String.format(
+        "clickhouse local max_threads %s: %d executor cores for %d tasks and %d builders%s",
+        settings.get("max_threads"),
+        executorCores,
+        concurrentTasks,
+        builders,
+        overrides.containsKey("max_threads") ? ", set by " + OVERRIDE_PREFIX + "max_threads" : ""
+    ));
+    return settings;
+  }
+
+  /**
+   * The cores of the local jvm in local mode, spark.executor.cores otherwise
+   */
+  private static int executorCores(SparkConf conf, String master)
+  {
+    if (master.startsWith("local")) {
+      return Runtime.getRuntime().availableProcessors();
+    }
+    return conf.getInt(
+        "spark.executor.cores",
+        master.startsWith("yarn") ? 1 : Runtime.getRuntime().availableProcessors()
+    );
+  }
+
+  /**
+   * @return 1 for local, N of local[N] and local[N, maxFailures], the cores otherwise
+   */
+  private static int taskSlots(String master)
+  {
+    if ("local".equals(master)) {
+      return 1;
+    }
+    Matcher matcher = LOCAL_SLOTS.matcher(master);
+    return matcher.matches() ? Integer.parseInt(matcher.group(1)) : Integer.MAX_VALUE;
+  }
+
+  /**
+   * The memory overhead is only a budget when it is set, the default one of spark is far below what builds used
+   * to get, so the limit of the former config.xml is kept then. The budget is never below MIN_MEMORY_PER_BUILD.
+   */
+  private static long memoryPerBuild(Logger log, SparkConf conf, String master, int concurrentTasks, int builders)
+  {
+    long available;
+    String source;
+    if (master.startsWith("local")) {
+      available = physicalMemory() - Runtime.getRuntime().maxMemory();
+      source = "physical memory left by the jvm";
+    } else {
+      if (conf.contains("spark.executor.memoryOverhead")) {
+        available = conf.getSizeAsMb("spark.executor.memoryOverhead", "0") << 20;
+        source = "spark.executor.memoryOverhead";
+      } else if (conf.contains("spark.yarn.executor.memoryOverhead")) {
+        available = conf.getSizeAsMb("spark.yarn.executor.memoryOverhead", "0") << 20;
+        source = "spark.yarn.executor.memoryOverhead";
+      } else {
+        log.info(String.format(
+            "clickhouse local max_memory_usage %,d, spark.executor.memoryOverhead is not set",
+            DEFAULT_MEMORY_USAGE
+        ));
+        return DEFAULT_MEMORY_USAGE;
+      }
+    }
+    long memory = (long) (available * MEMORY_FRACTION) / concurrentTasks / builders;
+    log.info(String.format(
+        "clickhouse local max_memory_usage %,d: %d%% of %,d bytes of %s for %d tasks and %d builders%s",
+        Math.max(memory, MIN_MEMORY_PER_BUILD),
+        (int) (MEMORY_FRACTION * 100),
+        available,
+        source,
+        concurrentTasks,
+        builders,
+        memory < MIN_MEMORY_PER_BUILD ? ", raised to the minimum" : ""
+    ));
+    return Math.max(memory, MIN_MEMORY_PER_BUILD);
+  }
+
+  private static long physicalMemory()
+  {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+    }
+    return 0;
+  }
+
+  /**
+   * Applies the settings to the default profile and the logger of the template, files/config.xml
+   *
+   * @param template the config shipped with the plugin, an empty config is used if it does not exist
+   */
+  public static String render(File template, Map<String, String> settings) throws IOException
+  {
+    return render(template, settings, Collections.emptyMap());
+  }
+
+  /**
+   * @param elements other elements of the config by their dotted path, e.g. listen_host, set after the settings
+   */
+  public static String render(File template, Map<String, String> settings, Map<String, String> elements)
+      throws IOException
+  {
+    try {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      Document doc = template.isFile()
+                     ? factory.newDocumentBuilder().parse(template)
+                     : factory.newDocumentBuilder().parse(new InputSource(new StringReader("<yandex/>")));
+      Element root = doc.getDocumentElement();
+      Element profileName = child(doc, root, "default_profile");
+      if (profileName.getTextContent().trim().isEmpty()) {
+        profileName.setTextContent("default");
+      }
+      Element profile = child(doc, child(doc, root, "profiles"), profileName.getTextContent().trim());
+      Element logger = child(doc, root, "logger");
+      // errors and warnings of the build end up in the executor log
+      child(doc, logger, "console").setTextContent("1");
+      for (Map.Entry<String, String> setting : settings.entrySet()) {
+        if (LOGGER_LEVEL.equals(setting.getKey())) {
+          child(doc, logger, "level").setTextContent(setting.getValue());
+        } else {
+          child(doc, profile, setting.getKey()).setTextContent(setting.getValue());
+        }
+      }
+      for (Map.Entry<String, String> element : elements.entrySet()) {
+        Element parent = root;
+        for (String name : element.getKey().split("\\.")) {
+          parent = child(doc, parent, name);
+        }
+        parent.setTextContent(element.getValue());
+      }
+      stripWhitespace(root);
+      Transformer transformer = TransformerFactory.newInstance().newTransformer();
+      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+      StringWriter writer = new StringWriter();
+      transformer.transform(new DOMSource(doc), new StreamResult(writer));
+      return writer.toString();
+    }
+    catch (IOException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      throw new IOException("failed to generate clickhouse local config from " + template, e);
+    }
+  }
+
+  /**
+   * Drops the indentation of the template, so the transformer indents the new elements the same way
+   */
+  private static void stripWhitespace(Node parent)
+  {
+    Node node = parent.getFirstChild();
+    while (node != null) {
+      Node next = node.getNextSibling();
+      if (node.getNodeType() == Node.TEXT_NODE && node.getTextContent().trim().isEmpty()) {
+        parent.removeChild(node);
+      } else {
+        stripWhitespace(node);
+      }
+      node = next;
+    }
+  }
+
+  /**
+   * @return the first child element with the name, appended if there is none
+   */
+  private static Element child(Document doc, Element parent, String name)
+  {
+    for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+      if (node instanceof Element && name.equals(node.getNodeName())) {
+        return (Element) node;
+      }
+    }
+    Element element = doc.createElement(name);
+    parent.appendChild(element);
+    return element;
+  }
+}
@@ -1,20 +1,27 @@
 package io.github.interestinglab.waterdrop.output.clickhouse;
 
 import com.google.common.collect.ImmutableList;
-import com.google.common.io.Files;
 import io.github.interestinglab.waterdrop.apis.BaseOutput;
 import io.github.interestinglab.waterdrop.config.Common;
 import io.github.interestinglab.waterdrop.config.Config;
 import io.github.interestinglab.waterdrop.config.ConfigRuntimeException;
 import io.github.interestinglab.waterdrop.config.ConfigValue;
 import io.github.interestinglab.waterdrop.config.TypesafeConfigUtils;
-import io.github.interestinglab.waterdrop.utils.CompressionUtils;
-import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.io.FileUtils;
-import org.apache.spark.api.java.function.ForeachPartitionFunction;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.api.java.function.MapPartitionsFunction;
+import org.apache.spark.sql.Column;
 import org.apache.spark.sql.Dataset;
+import org.apache.spark.sql.Encoders;
 import org.apache.spark.sql.Row;
 import org.apache.spark.sql.SparkSession;
+import org.apache.spark.sql.catalyst.InternalRow;
+import org.apache.spark.sql.functions;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.StructType;
 import ru.yandex.clickhouse.ClickHouseDataSource;
 import scala.Tuple2;
 
@@ -25,11 +32,25 @@ import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
 
 public class ClickhouseOfflineBuild extends BaseOutput
 {
@@ -38,15 +59,20 @@ public class ClickhouseOfflineBuild extends BaseOutput
   private final Properties properties = new Properties();
 
   private static final String clickhousePrefix = "clickhouse.";
+  // appended after the table columns, hash of the partition key a row is routed to a builder by
+  private static final String routeColumn = "__clickhouse_builder";
 
   private Map<String, String> tableSchema;
   private String createTargetTableSql;
+  private TableKeys tableKeys;
+  private ShardingSpec sharding;
 
   private String database;
   private String table;
   private Map<String, Object> defaultValues;
   private String tmpUploadPath;
   private String hdfsUser;
+  private BuildOptions buildOptions;
 
   @Override
   public Config getConfig()
@@ -63,18 +89,24 @@ public class ClickhouseOfflineBuild extends BaseOutput
   @Override
   public Tuple2<Object, String> checkConfig()
   {
-    List<String> requiredOptions = ImmutableList.of("host", "table", "database", "tmpUploadPath");
+    List<String> requiredOptions = ImmutableList.of("host", "table", "database");
 
     for (String require : requiredOptions) {
       if (!config.hasPath(require)) {
         throw new ConfigRuntimeException("option " + require + " is required");
       }
     }
+    if (!config.hasPath("tmpUploadPath") && !config.hasPath("receiveAgents")) {
+      throw new ConfigRuntimeException("option tmpUploadPath or receiveAgents is required");
+    }
 
     if (TypesafeConfigUtils.hasSubConfig(config, clickhousePrefix)) {
       Config clickhouseConfig = TypesafeConfigUtils.extractSubConfig(config, clickhousePrefix, false);
       for (Map.Entry<String, ConfigValue> e : clickhouseConfig.entrySet()) {
-        properties.put(e.getKey(), String.valueOf(e.getValue().unwrapped()));
+        // clickhouse.local.* are settings of the builds, see ClickhouseLocalConfig
+        if (!(clickhousePrefix + e.getKey()).startsWith(ClickhouseLocalConfig.OVERRIDE_PREFIX)) {
+          properties.put(e.getKey(), String.valueOf(e.getValue().unwrapped()));
+        }
       }
     }
 
@@ -100,8 +132,8 @@ public class ClickhouseOfflineBuild extends BaseOutput
   {
     database = config.getString("database");
     table = config.getString("table");
-    tmpUploadPath = config.getString("tmpUploadPath");
-    if (!tmpUploadPath.endsWith("/")) {
+    tmpUploadPath = config.hasPath("tmpUploadPath") ? config.getString("tmpUploadPath") : null;
+    if (tmpUploadPath != null && !tmpUploadPath.endsWith("/")) {
       tmpUploadPath = tmpUploadPath + "/";
     }
     String jdbcLink = String.format("jdbc:clickhouse://%s/%s", config.getString("host"), database);
@@ -109,16 +141,29 @@ public class ClickhouseOfflineBuild extends BaseOutput
     DataSource dataSource = new ClickHouseDataSource(jdbcLink, properties);
     try {
       Connection conn = dataSource.getConnection();
-      tableSchema = getClickHouseSchema(conn, table);
-
       String createTableSql = getClickHouseCreateTableSql(conn, table);
+      sharding = ShardingSpec.resolve(conn, createTableSql, database);
+      if (sharding != null) {
+        // build parts of the local table behind the Distributed one, split by shard
+        log().info(table + " is distributed over " + sharding.getShardCount() + " shards of " + sharding.getCluster());
+        database = sharding.getDatabase();
+        table = sharding.getTable();
+        createTableSql = getClickHouseCreateTableSql(conn, database + "." + table);
+      }
+      tableSchema = getClickHouseSchema(conn, database + "." + table);
       conn.close();
       createTargetTableSql = buildCreateTargetTableSql(createTableSql);
+      tableKeys = TableKeys.parse(createTableSql);
     }
     catch (SQLException throwables) {
       throw new RuntimeException("failed to get table schema", throwables);
     }
     defaultValues = config.hasPath("defaultValues") ? config.getObject("defaultValues").unwrapped() : new HashMap<>();
+    buildOptions = new BuildOptions(config);
+    int agents = buildOptions.getReceiveAgents().size();
+    if (agents > 0 && agents != (sharding == null ? 1 : sharding.getShardCount())) {
+      throw new ConfigRuntimeException("receiveAgents should list one agent per shard, in shard order");
+    }
   }
 
   @Override
@@ -127,85 +172,835 @@ public class ClickhouseOfflineBuild extends BaseOutput
     final String binaryDir = Paths.get(Common.pluginFilesDir("clickhouse-offline-build").toString()).toString();
     try {
       final String[] dfFields = df.schema().fieldNames();
-      // 1. create input table to receive data from stdin,
-      // 2. create target database
-      // 3. create target table
-      // 4. insert into target table from the input table
-      String fullTableName = database + "." + table;
-      final String buildSql = buildInputSql(fullTableName, dfFields, tableSchema)
-                              + ";\n"
-                              + "create database if not exists " + database + ";\n"
-                              + createTargetTableSql
-                              + ";\n"
-                              + buildInsertSql(fullTableName, dfFields)
-                              + ";\noptimize table " + fullTableName + " final";
+      final DataType[] dfTypes = new DataType[dfFields.length];
+      for (int i = 0; i < dfFields.length; i++) {
+        dfTypes[i] = df.schema().fields()[i].dataType();
+      }
+      final String buildSql = buildSql(dfFields, buildOptions.getInputFormat());
+      if (buildOptions.getInputFormat() == InputFormat.ROW_BINARY) {
+        // fail fast on the driver if some column type can't be encoded
+        String[] columnTypes = new String[dfFields.length];
+        for (int i = 0; i < dfFields.length; i++) {
+          columnTypes[i] = tableSchema.get(dfFields[i]);
+        }
+        RowBinaryWriter.createEncoders(columnTypes);
+      }
 
+      final boolean columnar = buildOptions.getInputFormat() == InputFormat.ARROW_STREAM;
+      final StructType schema = df.schema();
       boolean clusterMode = "cluster".equals(Common.getDeployMode().get());
-      df.foreachPartition(new ForeachPartitionFunction<Row>()
-      {
-        @Override
-        public void call(Iterator<Row> rows) throws Exception
+      Set<String> columns = new HashSet<>(Arrays.asList(dfFields));
+      List<Column> partitionColumns = tableKeys.partitionColumns(columns);
+      SampleStats sample = buildOptions.getTargetPartBytes() > 0
+                           ? sample(df, binaryDir, clusterMode, dfFields, dfTypes)
+                           : null;
+      // the row writers replace nulls by the default values themselves
+      Dataset<Row> input = clusterByTableKeys(columnar ? withDefaultValues(df) : df, columns, partitionColumns, sample);
+      final int routeIndex;
+      if (buildOptions.getBuildersPerTask() > 1 && !partitionColumns.isEmpty()) {
+        // rows of one clickhouse partition go to the same builder, so the builders don't produce overlapping parts.
+        // The task takes the hash modulo its own number of builders, which spark.task.cpus may cap
+        input = input.withColumn(routeColumn, functions.hash(partitionColumns.toArray(new Column[0])));
+        routeIndex = dfFields.length;
+      } else {
+        routeIndex = -1;
+      }
+
+      // every zip of this job is prefixed by the job id, so the driver can tell the ones of lost attempts
+      final String jobId = UUID.randomUUID().toString();
+      final BuildMetrics metrics = new BuildMetrics(df.sparkSession().sparkContext());
+      Dataset<PartInfo> parts;
+      if (columnar) {
+        final String timeZoneId = df.sparkSession().conf().get(
+            "spark.sql.session.timeZone",
+            TimeZone.getDefault().getID()
+        );
+        final int batchRows = Integer.parseInt(df.sparkSession().conf().get(
+            "spark.sql.execution.arrow.maxRecordsPerBatch",
+            "10000"
+        ));
+        // the internal rows are encoded as they come out of the plan, never converted to Row
+        JavaRDD<PartInfo> built = input.queryExecution().toRdd().toJavaRDD().mapPartitions(
+            new FlatMapFunction<Iterator<InternalRow>, PartInfo>()
+            {
+              @Override
+              public Iterator<PartInfo> call(Iterator<InternalRow> rows) throws Exception
+              {
+                if (!rows.hasNext()) {
+                  return Collections.emptyIterator();
+                }
+                return buildPartition(
+                    // the rows are reused by the plan, they are queued when fanned out to several builders
+                    buildOptions.getBuildersPerTask() > 1 ? copying(rows) : rows,
+                    localBinaryDir(binaryDir, clusterMode),
+                    jobId,
+                    dfFields,
+                    dfTypes,
+                    buildSql,
+                    out -> new ArrowRowWriter(out, schema, timeZoneId, batchRows, log()),
+                    routeIndex < 0 ? null : row -> row.getInt(routeIndex),
+                    metrics
+                ).iterator();
+              }
+            });
+        parts = df.sparkSession().createDataset(built.rdd(), Encoders.javaSerialization(PartInfo.class));
+      } else {
+        parts = input.mapPartitions(new MapPartitionsFunction<Row, PartInfo>()
         {
-          File workDir = Files.createTempDir();
-          File current = new File(".");
-          if (clusterMode) {
-            unzipPlugins(current);
+          @Override
+          public Iterator<PartInfo> call(Iterator<Row> rows) throws Exception
+          {
+            if (!rows.hasNext()) {
+              // nothing to build, e.g. an empty shuffle partition
+              return Collections.emptyIterator();
+            }
+            return buildPartition(
+                rows,
+                localBinaryDir(binaryDir, clusterMode),
+                jobId,
+                dfFields,
+                dfTypes,
+                buildSql,
+                rowWriters(dfFields, dfTypes, buildOptions.getInputFormat()),
+                routeIndex < 0 ? null : row -> row.getInt(routeIndex),
+                metrics
+            ).iterator();
           }
-          PartBuilder builder = new PartBuilder(
+        }, Encoders.javaSerialization(PartInfo.class));
+      }
+      List<PartInfo> committed = collect(jobId, parts);
+      if (buildOptions.isCompactParts()) {
+        committed = compact(df.sparkSession(), jobId, committed, binaryDir, clusterMode, metrics);
+      }
+      commit(jobId, committed);
+      log().info("build metrics: " + metrics.summary());
+    }
+    catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * @return the dir of build.sh and the clickhouse binary in this task
+   */
+  private String localBinaryDir(String binaryDir, boolean clusterMode) throws Exception
+  {
+    if (!clusterMode) {
+      return binaryDir;
+    }
+    File current = new File(".");
+    // shared by the tasks of this executor, and by later batches of a streaming job
+    PluginUnpacker.unpack(current, log());
+    return current.getAbsolutePath() + "/" + binaryDir;
+  }
+
+  /**
+   * Collects the parts of one successful attempt per spark partition, to be committed to the job manifest
+   */
+  private List<PartInfo> collect(String jobId, Dataset<PartInfo> parts)
+  {
+    try {
+      return parts.collectAsList();
+    }
+    catch (RuntimeException e) {
+      abort(jobId);
+      throw e;
+    }
+  }
+
+  /**
+   * Writes the job manifest, or has every receive agent attach its parts
+   */
+  private void commit(String jobId, List<PartInfo> parts) throws Exception
+  {
+    if (buildOptions.getReceiveAgents().isEmpty()) {
+      new ManifestCommitter(log(), hdfsUser, tmpUploadPath, buildOptions.getS3Settings()).commit(jobId, parts);
+      return;
+    }
+    // every agent commits, also the ones without parts, to delete what the failed attempts pushed
+    Map<String, List<String>> names = new LinkedHashMap<>();
+    for (String root : uploadRoots()) {
+      names.put(root, new ArrayList<>());
+    }
+    for (PartInfo part : parts) {
+      int slash = part.getPath().lastIndexOf('/');
+      names.get(part.getPath().substring(0, slash + 1)).add(part.getPath().substring(slash + 1));
+    }
+    for (Map.Entry<String, List<String>> agent : names.entrySet()) {
+      new ReceiveAgentClient(log(), agent.getKey(), buildOptions.getReceiveAgentSecret())
+          .commit(jobId, agent.getValue());
+    }
+  }
+
+  private void abort(String jobId)
+  {
+    if (buildOptions.getReceiveAgents().isEmpty()) {
+      new ManifestCommitter(log(), hdfsUser, tmpUploadPath, buildOptions.getS3Settings()).abort(jobId);
+      return;
+    }
+    for (String root : uploadRoots()) {
+      try {
+        new ReceiveAgentClient(log(), root, buildOptions.getReceiveAgentSecret()).abort(jobId);
+      }
+      catch (IOException e) {
+        log().error("failed to clean job " + jobId + " on " + root, e);
+      }
+    }
+  }
+
+  /**
+   * Merges the small parts of each partition in a second stage, one task per group of parts,
+   * see {@link PartCompactor}. If the stage fails the parts are committed as built.
+   *
+   * @return the parts to commit, the merged ones in place of the parts they replace
+   */
+  private List<PartInfo> compact(
+      SparkSession spark,
+      String jobId,
+      List<PartInfo> parts,
+      String binaryDir,
+      boolean clusterMode,
+      BuildMetrics metrics
+  )
+  {
+    List<List<PartInfo>> groups = PartCompactor.groups(parts, buildOptions.getMaxCompactedPartBytes());
+    if (groups.isEmpty()) {
+      log().info("no parts to compact");
+      return parts;
+    }
+    Set<String> replaced = new HashSet<>();
+    for (List<PartInfo> group : groups) {
+      for (PartInfo part : group) {
+        replaced.add(part.getPath());
+      }
+    }
+    log().info("compacting " + replaced.size() + " of " + parts.size() + " parts in " + groups.size() + " groups");
+    Dataset<PartInfo> compacted = spark.range(0, groups.size(), 1, groups.size()).mapPartitions(
+        new MapPartitionsFunction<Long, PartInfo>()
+        {
+          @Override
+          public Iterator<PartInfo> call(Iterator<Long> ids) throws Exception
+          {
+            PartCompactor compactor = new PartCompactor(
+                log(),
+                hdfsUser,
+                localBinaryDir(binaryDir, clusterMode),
+                buildOptions,
+                createTargetTableSql,
+                database,
+                table,
+                jobId,
+                metrics
+            );
+            List<PartInfo> result = new ArrayList<>();
+            while (ids.hasNext()) {
+              result.addAll(compactor.compact(groups.get(ids.next().intValue())));
+            }
+            return result.iterator();
+          }
+        },
+        Encoders.javaSerialization(PartInfo.class)
+    );
+    List<PartInfo> result;
+    try {
+      result = new ArrayList<>(compacted.collectAsList());
+    }
+    catch (RuntimeException e) {
+      // the merged parts uploaded so far are not in the manifest, the commit deletes them
+      log().error("failed to compact the parts, committing them as built", e);
+      return parts;
+    }
+    for (PartInfo part : parts) {
+      if (!replaced.contains(part.getPath())) {
+        result.add(part);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Builds up to maxSampleRows of a sampleFraction sample of the input in a single task,
+   * to estimate the bytes per row of the parts and the number of clickhouse partitions.
+   * The sample is always fed as CSV, the size of the parts doesn't depend on the input format.
+   *
+   * @return the parts built from the sample, see {@link SampleStats#plannedPartitions(double, long, boolean)}
+   */
+  private SampleStats sample(
+      Dataset<Row> df,
+      String binaryDir,
+      boolean clusterMode,
+      String[] dfFields,
+      DataType[] dfTypes
+  )
+  {
+    final String sampleSql = buildSql(dfFields, InputFormat.CSV);
+    Dataset<SampleStats> stats = df.sample(false, buildOptions.getSampleFraction()).repartition(1).mapPartitions(
+        new MapPartitionsFunction<Row, SampleStats>()
+        {
+          @Override
+          public Iterator<SampleStats> call(Iterator<Row> rows) throws Exception
+          {
+            return Collections.singletonList(
+                buildSample(rows, localBinaryDir(binaryDir, clusterMode), dfFields, dfTypes, sampleSql)
+            ).iterator();
+          }
+        },
+        Encoders.javaSerialization(SampleStats.class)
+    );
+    SampleStats sample = stats.collectAsList().get(0);
+    log().info("sampled the input: " + sample);
+    return sample;
+  }
+
+  private SampleStats buildSample(
+      Iterator<Row> rows,
+      String binaryDir,
+      String[] dfFields,
+      DataType[] dfTypes,
+      String sampleSql
+  ) throws Exception
+  {
+    if (!rows.hasNext()) {
+      return new SampleStats(0, 0, 0, 0, 0);
+    }
+    List<File> workDirs = Collections.singletonList(
+        WorkDirAllocator.allocate(log(), buildOptions.getMinFreeSpacePerBuild())
+    );
+    try {
+      String localConfig = ClickhouseLocalConfig.render(
+          new File(binaryDir, "config.xml"),
+          ClickhouseLocalConfig.settings(log(), buildOptions.getLocalSettings(), 1)
+      );
+      new PartBuilder(
+          log(),
+          binaryDir,
+          workDirs.get(0),
+          dfFields,
+          dfTypes,
+          tableSchema,
+          defaultValues,
+          buildOptions,
+          sampleSql,
+          localConfig,
+          new BuildMetrics()
+      ).build(rows, buildOptions.getMaxSampleRows(), 0, rowWriters(dfFields, dfTypes, InputFormat.CSV));
+      List<File> tableDirs = new ArrayList<>();
+      if (sharding == null) {
+        tableDirs.addAll(dataDirs(workDirs, database));
+      } else {
+        for (int i = 0; i < sharding.getShardCount(); i++) {
+          tableDirs.addAll(dataDirs(workDirs, sharding.getShardDatabase(i)));
+        }
+      }
+      // the rows left over only count towards the size of the input
+      long skipped = 0;
+      while (rows.hasNext()) {
+        rows.next();
+        skipped++;
+      }
+      SampleStats built = SampleStats.read(tableDirs, 0);
+      return new SampleStats(
+          built.getBuiltRows() + skipped,
+          built.getBuiltRows(),
+          built.getPartBytes(),
+          built.getParts(),
+          built.getPartitions()
+      );
+    }
+    finally {
+      deleteDirectories(workDirs);
+    }
+  }
+
+  /**
+   * Lets the builder time the final optimize, see {@link PartBuilder#OPTIMIZE_MARK}
+   */
+  private static String optimizeMarkSql()
+  {
+    return "select '" + PartBuilder.OPTIMIZE_MARK + "';\n";
+  }
+
+  private String buildSql(String[] dfFields, InputFormat format)
+  {
+    // 1. create input table to receive data from stdin,
+    // 2. create target database
+    // 3. create target table
+    // 4. insert into target table from the input table
+    String fullTableName = database + "." + table;
+    String inputSql = buildInputSql(fullTableName, dfFields, tableSchema, format) + ";\n";
+    if (sharding == null) {
+      return inputSql
+             + "create database if not exists " + database + ";\n"
+             + createTargetTableSql
+             + ";\n"
+             + buildInsertSql(fullTableName, dfFields)
+             + ";\n"
+             + optimizeMarkSql()
+             + "optimize table " + fullTableName + " final";
+    }
+    // one target table per shard, fed by materialized views over a Null table, so the input is read once
+    StringBuilder sb = new StringBuilder(inputSql);
+    sb.append("create database if not exists shard_router;\n");
+    sb.append("create table shard_router.input as input engine = Null;\n");
+    for (int i = 0; i < sharding.getShardCount(); i++) {
+      String shardTable = sharding.getShardDatabase(i) + "." + table;
+      sb.append("create database if not exists ").append(sharding.getShardDatabase(i)).append(";\n");
+      sb.append(createTargetTableSql.replaceFirst("(?i)^\\s*CREATE TABLE\\s+\\S+", "CREATE TABLE " + shardTable));
+      sb.append(";\n");
+      sb.append("create materialized view ").append(sharding.getShardDatabase(i)).append(".router to ")
+        .append(shardTable)
+        .append(" as select * from shard_router.input where ")
+        .append(sharding.getShardCondition(i))
+        .append(";\n");
+    }
+    sb.append("insert into shard_router.input select * from input;\n");
+    sb.append(optimizeMarkSql());
+    for (int i = 0; i < sharding.getShardCount(); i++) {
+      sb.append(i == 0 ? "" : ";\n")
+        .append("optimize table ")
+        .append(sharding.getShardDatabase(i))
+        .append(".")
+        .append(table)
+        .append(" final");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Builds the rows of one spark partition and uploads the parts. When maxRowsPerBuild or maxBytesPerBuild is set
+   * the rows are split into batches, each built by a fresh clickhouse local process,
+   * and the upload of a batch overlaps with building the next one.
+   * With buildersPerTask each batch is built by several clickhouse local processes at once.
+   * With reuseBuilders every batch is built by a clickhouse server kept by the executor, see {@link BuilderPool}.
+   *
+   * @return the uploaded parts
+   */
+  private <T> List<PartInfo> buildPartition(
+      Iterator<T> rows,
+      String binaryDir,
+      String jobId,
+      String[] dfFields,
+      DataType[] dfTypes,
+      String buildSql,
+      RowWriter.Factory<T> writers,
+      ToIntFunction<T> router,
+      BuildMetrics metrics
+  ) throws Exception
+  {
+    ExecutorService uploadExec = Executors.newSingleThreadExecutor();
+    List<PartUploader> uploaders = new ArrayList<>();
+    Future<?> pendingUpload = null;
+    int batches = 0;
+    int builderCount = effectiveBuilders();
+    long estimatedBytes = estimatedBuildBytes(builderCount);
+    Map<String, String> localSettings = ClickhouseLocalConfig.settings(
+        log(),
+        buildOptions.getLocalSettings(),
+        builderCount
+    );
+    log().info("clickhouse local settings " + localSettings);
+    String localConfig = ClickhouseLocalConfig.render(new File(binaryDir, "config.xml"), localSettings);
+    BuilderSession session = null;
+    // the same for every attempt of the task, so a retry recognizes the parts uploaded before
+    String partitionKey = "partition_" + TaskContext.get().partitionId();
+    try {
+      if (buildOptions.isReuseBuilders()) {
+        if (sharding == null && builderCount == 1) {
+          // a batch built in the session waits for upload while the next one is built
+          session = BuilderPool.acquire(
               log(),
-              clusterMode ? current.getAbsolutePath() + "/" + binaryDir : binaryDir,
-              workDir,
+              binaryDir,
+              2 * estimatedBytes,
+              database,
+              table,
+              createTargetTableSql,
               dfFields,
+              dfTypes,
               tableSchema,
               defaultValues,
-              buildSql
+              buildOptions,
+              localSettings
           );
+        } else {
+          log().info("reuseBuilders is not supported with sharding or buildersPerTask, building in clickhouse local");
+        }
+      }
+      do {
+        List<File> workDirs = new ArrayList<>();
+        List<File> sessionDataDirs = new ArrayList<>();
+        List<PartBuilder> builders = new ArrayList<>();
+        if (session != null) {
           try {
-            // 5. write to pipe file and wait fot part files be built
-            builder.build(rows);
-
-            // this path is defined in config.xml
-            String dataDir = "clickhouse_data/data/data/" + database + "/" + table + "/";
-            PartUploader uploader = new PartUploader(
-                log(),
-                hdfsUser,
-                tmpUploadPath,
-                new File(workDir, dataDir)
-            );
-            try {
-              // 6. zip and upload part files to hdfs as $tmpUploadPath/$uuid_$part.zip
-              uploader.upload();
+            sessionDataDirs.add(session.build(
+                rows,
+                buildOptions.getMaxRowsPerBuild(),
+                buildOptions.getMaxBytesPerBuild(),
+                writers,
+                metrics
+            ));
+          }
+          catch (Exception e) {
+            BuilderPool.invalidate(session);
+            session = null;
+            throw e;
+          }
+        } else {
+          try {
+            for (int i = 0; i < builderCount; i++) {
+              File workDir = WorkDirAllocator.allocate(log(), estimatedBytes);
+              workDirs.add(workDir);
+              builders.add(new PartBuilder(
+                  log(),
+                  binaryDir,
+                  workDir,
+                  dfFields,
+                  dfTypes,
+                  tableSchema,
+                  defaultValues,
+                  buildOptions,
+                  buildSql,
+                  localConfig,
+                  metrics
+              ));
             }
-            catch (Exception e) {
-              // try clean if upload failed
-              uploader.clean();
-              throw e;
+            // 5. write to pipe file and wait fot part files be built
+            if (builderCount == 1) {
+              builders.get(0).build(
+                  rows,
+                  buildOptions.getMaxRowsPerBuild(),
+                  buildOptions.getMaxBytesPerBuild(),
+                  writers
+              );
+            } else {
+              new FanOutBuilder<>(
+                  log(),
+                  builders,
+                  writers,
+                  router,
+                  buildOptions.getMaxRowsPerBuild(),
+                  buildOptions.getMaxBytesPerBuild()
+              ).build(rows);
             }
           }
           catch (Exception e) {
-            log().info(e.getMessage(), e);
+            // a build interrupted by the task kill may still be running
+            for (PartBuilder builder : builders) {
+              builder.kill();
+            }
+            deleteDirectories(workDirs);
             throw e;
           }
+        }
+        // at most one batch is uploading while the next one is built, which bounds the local disk usage
+        waitFor(pendingUpload);
+        String uploadKey = partitionKey + "/batch_" + batches;
+        List<PartUploader> batchUploaders = session == null
+                                            ? createUploaders(jobId, uploadKey, workDirs, metrics)
+                                            : Collections.singletonList(new PartUploader(
+                                                log(),
+                                                hdfsUser,
+                                                uploadRoots().get(0),
+                                                jobId,
+                                                uploadKey,
+                                                sessionDataDirs,
+                                                buildOptions,
+                                                metrics
+                                            ));
+        uploaders.addAll(batchUploaders);
+        pendingUpload = uploadExec.submit(() -> {
+          try {
+            // 6. zip and upload part files to hdfs as $tmpUploadPath/$jobId-$key__$part.zip, or push them to the agent
+            for (PartUploader uploader : batchUploaders) {
+              uploader.upload();
+            }
+          }
           finally {
-            FileUtils.deleteDirectory(workDir);
+            for (PartUploader uploader : batchUploaders) {
+              uploader.close();
+            }
+            deleteDirectories(workDirs);
+            // the work dir of a session stays with the session
+            for (File dataDir : sessionDataDirs) {
+              FileUtils.deleteDirectory(dataDir);
+            }
           }
-        }
-      });
+          return null;
+        });
+        batches++;
+      } while (rows.hasNext());
+      waitFor(pendingUpload);
+      log().info(batches + " batches built and uploaded");
+      List<PartInfo> parts = new ArrayList<>();
+      for (PartUploader uploader : uploaders) {
+        parts.addAll(uploader.getUploadedParts());
+      }
+      return parts;
     }
     catch (Exception e) {
-      throw new RuntimeException(e);
+      log().info(e.getMessage(), e);
+      // stop the in flight upload before cleaning up what was uploaded
+      uploadExec.shutdownNow();
+      uploadExec.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      // try clean if build or upload failed
+      for (PartUploader uploader : uploaders) {
+        uploader.clean();
+      }
+      throw e;
+    }
+    finally {
+      uploadExec.shutdown();
+      if (session != null) {
+        BuilderPool.release(session, buildOptions);
+      }
+    }
+  }
+
+  /**
+   * The writers of the row formats, replacing nulls by the configured default values
+   */
+  private RowWriter.Factory<Row> rowWriters(String[] dfFields, DataType[] dfTypes, InputFormat format)
+  {
+    String[] columnTypes = new String[dfFields.length];
+    Object[] defaults = new Object[dfFields.length];
+    for (int i = 0; i < dfFields.length; i++) {
+      columnTypes[i] = tableSchema.get(dfFields[i]);
+      Object defaultValue = defaultValues.get(dfFields[i]);
+      defaults[i] = defaultValue == null ? null : String.valueOf(defaultValue);
+    }
+    return out -> RowWriter.create(format, out, columnTypes, dfTypes, defaults, log());
+  }
+
+  /**
+   * Replaces nulls by the configured default values in the plan, for the formats encoded from internal rows
+   */
+  private Dataset<Row> withDefaultValues(Dataset<Row> df)
+  {
+    if (defaultValues.isEmpty()) {
+      return df;
+    }
+    String[] fields = df.schema().fieldNames();
+    Column[] columns = new Column[fields.length];
+    for (int i = 0; i < fields.length; i++) {
+      Column column = df.col("`" + fields[i] + "`");
+      Object defaultValue = defaultValues.get(fields[i]);
+      columns[i] = defaultValue == null
+                   ? column
+                   : functions.coalesce(column, functions.lit(String.valueOf(defaultValue))
+                                                         .cast(df.schema().fields()[i].dataType()))
+                              .as(fields[i]);
+    }
+    return df.select(columns);
+  }
+
+  private static Iterator<InternalRow> copying(Iterator<InternalRow> rows)
+  {
+    return new Iterator<InternalRow>()
+    {
+      @Override
+      public boolean hasNext()
+      {
+        return rows.hasNext();
+      }
+
+      @Override
+      public InternalRow next()
+      {
+        return rows.next().copy();
+      }
+    };
+  }
+
+  /**
+   * One uploader for the table, or one per shard of a Distributed table uploading to $tmpUploadPath/shard_$num/
+   * or pushing to the agent of the shard
+   */
+  private List<PartUploader> createUploaders(
+      String jobId,
+      String uploadKey,
+      List<File> workDirs,
+      BuildMetrics metrics
+  )
+  {
+    List<PartUploader> result = new ArrayList<>();
+    if (sharding == null) {
+      result.add(new PartUploader(
+          log(),
+          hdfsUser,
+          uploadRoots().get(0),
+          jobId,
+          uploadKey,
+          dataDirs(workDirs, database),
+          buildOptions,
+          metrics
+      ));
+      return result;
+    }
+    for (int i = 0; i < sharding.getShardCount(); i++) {
+      result.add(new PartUploader(
+          log(),
+          hdfsUser,
+          uploadRoots().get(i),
+          jobId,
+          uploadKey,
+          dataDirs(workDirs, sharding.getShardDatabase(i)),
+          buildOptions,
+          metrics
+      ));
+    }
+    return result;
+  }
+
+  /**
+   * @return where the parts of the table, or of each shard, go: a dir of tmpUploadPath or the table url of an agent
+   */
+  private List<String> uploadRoots()
+  {
+    List<String> agents = buildOptions.getReceiveAgents();
+    List<String> roots = new ArrayList<>();
+    if (sharding == null) {
+      roots.add(agents.isEmpty() ? tmpUploadPath : ReceiveAgentClient.tableUrl(agents.get(0), database, table));
+      return roots;
+    }
+    for (int i = 0; i < sharding.getShardCount(); i++) {
+      roots.add(
+          agents.isEmpty()
+          ? tmpUploadPath + "shard_" + sharding.getShardNum(i) + "/"
+          : ReceiveAgentClient.tableUrl(agents.get(i), sharding.getShardDatabase(i), table)
+      );
     }
+    return roots;
+  }
+
+  private List<File> dataDirs(List<File> workDirs, String database)
+  {
+    List<File> dataDirs = new ArrayList<>();
+    for (File workDir : workDirs) {
+      // this path is defined in config.xml
+      dataDirs.add(new File(workDir, "clickhouse_data/data/data/" + database + "/" + table + "/"));
+    }
+    return dataDirs;
+  }
+
+  /**
+   * buildersPerTask, capped by the cores of this task so concurrent builders don't oversubscribe the executor
+   */
+  private int effectiveBuilders()
+  {
+    int builders = buildOptions.getBuildersPerTask();
+    if (builders <= 1) {
+      return 1;
+    }
+    int taskCpus = SparkEnv.get() == null ? 1 : SparkEnv.get().conf().getInt("spark.task.cpus", 1);
+    int cores = Math.min(taskCpus, Runtime.getRuntime().availableProcessors());
+    if (cores < builders) {
+      log().info("buildersPerTask " + builders + " capped to " + cores + " by spark.task.cpus");
+    }
+    return Math.max(1, Math.min(builders, cores));
+  }
+
+  /**
+   * Local disk space one build needs. clickhouse local keeps the inserted parts until the final optimize
+   * has merged them, so a build takes up to about twice the bytes written to its pipe.
+   */
+  private long estimatedBuildBytes(int builderCount)
+  {
+    long maxBytes = buildOptions.getMaxBytesPerBuild();
+    return Math.max(buildOptions.getMinFreeSpacePerBuild(), maxBytes > 0 ? 2 * maxBytes / builderCount : 0);
   }
 
-  private void unzipPlugins(File workDir) throws IOException, ArchiveException
+  private static void deleteDirectories(List<File> dirs) throws IOException
   {
-    log().info("preparing cluster mode work dir files...");
+    for (File dir : dirs) {
+      try {
+        FileUtils.deleteDirectory(dir);
+      }
+      finally {
+        WorkDirAllocator.release(dir);
+      }
+    }
+  }
 
-    // decompress plugin dir
-    File compressedFile = new File(workDir, "plugins.tar.gz");
+  private static void waitFor(Future<?> future) throws Exception
+  {
+    if (future == null) {
+      return;
+    }
+    try {
+      future.get();
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw e;
+    }
+  }
 
-    File tempFile = CompressionUtils.unGzip(compressedFile, workDir);
-    CompressionUtils.unTar(tempFile, workDir);
+  /**
+   * Optionally shuffles rows of the same clickhouse partition into the same task and sorts them by the table keys,
+   * so each task builds a few large parts from already ordered data.
+   * With a sample the number of tasks is planned so each builds parts of about targetPartBytes.
+   */
+  private Dataset<Row> clusterByTableKeys(
+      Dataset<Row> df,
+      Set<String> columns,
+      List<Column> partitionColumns,
+      SampleStats sample
+  )
+  {
+    boolean clustered = buildOptions.isRepartitionByPartitionKey() && !partitionColumns.isEmpty();
+    int planned = sample == null ? 0 : sample.plannedPartitions(
+        buildOptions.getSampleFraction(),
+        buildOptions.getTargetPartBytes(),
+        clustered
+    );
+    if (planned > 0) {
+      log().info(String.format(
+          "building in %d spark partitions for parts of %,d bytes, about %,.0f rows per clickhouse partition",
+          planned,
+          buildOptions.getTargetPartBytes(),
+          sample.getSampledRows() / buildOptions.getSampleFraction() / sample.getPartitions()
+      ));
+      if (!clustered && sample.getPartitions() > 1) {
+        log().info("every task builds parts of all " + sample.getPartitions()
+                   + " sampled clickhouse partitions, repartitionByPartitionKey builds fewer and larger tasks");
+      }
+    }
+    if (clustered) {
+      List<Column> keys = new ArrayList<>(partitionColumns);
+      // planned is 0 without targetPartBytes, which leaves sample null
+      if (planned > 0 && planned > sample.getPartitions()) {
+        // spread each clickhouse partition over several tasks, rows are hashed so retried tasks get the same ones
+        String[] fields = df.schema().fieldNames();
+        Column[] all = new Column[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+          all[i] = df.col("`" + fields[i] + "`");
+        }
+        int slices = (planned + sample.getPartitions() - 1) / sample.getPartitions();
+        keys.add(functions.pmod(functions.hash(all), functions.lit(slices)));
+      }
+      int numPartitions = planned > 0 ? planned : buildOptions.getNumPartitions();
+      Column[] keyArray = keys.toArray(new Column[0]);
+      df = numPartitions > 0 ? df.repartition(numPartitions, keyArray) : df.repartition(keyArray);
+    } else {
+      if (buildOptions.isRepartitionByPartitionKey()) {
+        log().info("no partition key column found in " + tableKeys.getPartitionBy() + ", skip repartitioning");
+      }
+      if (planned > 0) {
+        df = df.repartition(planned);
+      }
+    }
+    if (buildOptions.isSortByOrderKey()) {
+      // partition key first, so that clickhouse local gets blocks of a single partition
+      List<Column> sortColumns = new ArrayList<>(partitionColumns);
+      sortColumns.addAll(tableKeys.orderColumns(columns));
+      if (sortColumns.isEmpty()) {
+        log().info("no order key column found in " + tableKeys.getOrderBy() + ", skip sorting");
+      } else {
+        df = df.sortWithinPartitions(sortColumns.toArray(new Column[0]));
+      }
+    }
+    return df;
   }
 
   private Map<String, String> getClickHouseSchema(Connection conn, String table) throws SQLException
@@ -230,7 +1025,7 @@ public class ClickhouseOfflineBuild extends BaseOutput
     return createSql;
   }
 
-  private String buildInputSql(String table, String[] fields, Map<String, String> tableSchema)
+  private String buildInputSql(String table, String[] fields, Map<String, String> tableSchema, InputFormat format)
   {
     StringBuilder sb = new StringBuilder();
     sb.append("CREATE TABLE input (\n");
@@ -248,8 +1043,10 @@ public class ClickhouseOfflineBuild extends BaseOutput
         sb.append(",\n");
       }
     }
-    // the PartBuild will write data to pipe using CSV format
-    sb.append("\n) ENGINE = File(CSV, stdin);");
+    // the PartBuild will write data to pipe using the configured format
+    sb.append("\n) ENGINE = File(");
+    sb.append(format.getFormatName());
+    sb.append(", stdin);");
     return sb.toString();
   }
 
@@ -1,10 +0,0 @@
-package io.github.interestinglab.waterdrop.output.clickhouse;
-
-public enum CsvType
-{
-  STRING,
-  OTHER,
-  DECIMAL,
-  ARRAY_STRING,
-  ARRAY_OTHER;
-}
@@ -1,130 +1,551 @@
 package io.github.interestinglab.waterdrop.output.clickhouse;
 
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.ArrayType;
+import org.apache.spark.sql.types.BooleanType;
+import org.apache.spark.sql.types.ByteType;
+import org.apache.spark.sql.types.DataType;
+import org.apache.spark.sql.types.DateType;
+import org.apache.spark.sql.types.DecimalType;
+import org.apache.spark.sql.types.DoubleType;
+import org.apache.spark.sql.types.FloatType;
+import org.apache.spark.sql.types.IntegerType;
+import org.apache.spark.sql.types.LongType;
+import org.apache.spark.sql.types.MapType;
+import org.apache.spark.sql.types.ShortType;
+import org.apache.spark.sql.types.StringType;
+import org.apache.spark.sql.types.StructType;
+import org.apache.spark.sql.types.TimestampType;
 import org.slf4j.Logger;
 import ru.yandex.clickhouse.util.ClickHouseArrayUtil;
 import ru.yandex.clickhouse.util.ClickHouseValueFormatter;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
 
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.util.Collection;
-import java.util.Iterator;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
 import java.util.TimeZone;
 
-public class CsvWriter
+/**
+ * Writes rows to the pipe file as CSV. One encoder is created per column from the clickhouse type
+ * and the spark type before the first row, and reads the cell with the typed getter of the spark type.
+ */
+public class CsvWriter extends RowWriter<Row>
 {
   private static final char SEPARATOR = ',';
   private static final char QUOTE_CHAR = '"';
   private static final char ESCAPE_CHAR = '"';
   private static final char LINE_END = '\n';
-  private final BufferedWriter writer;
-  private final CsvType[] types;
-  private final Object[] defaultValues;
-  private final Logger log;
-  private long counter;
+  private static final char ARRAY_QUOTE_CHAR = '\'';
+  // every decimal with up to 18 digits has an unscaled value which fits a long
+  private static final int MAX_LONG_DIGITS = 18;
+  private final Encoder[] encoders;
+  // utf-8 encoded once, written for null cells
+  private final byte[][] defaultValues;
 
-  public CsvWriter(String pipeFile, CsvType[] types, Object[] defaultValues, Logger log) throws FileNotFoundException
+  public CsvWriter(OutputStream pipe, String[] columnTypes, DataType[] fieldTypes, Object[] defaultValues, Logger log)
   {
-    this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(pipeFile)));
-    this.types = types;
-    this.defaultValues = defaultValues;
-    this.log = log;
+    super(pipe, log);
+    this.encoders = createEncoders(columnTypes, fieldTypes);
+    this.defaultValues = new byte[defaultValues.length][];
+    for (int i = 0; i < defaultValues.length; i++) {
+      if (defaultValues[i] != null) {
+        this.defaultValues[i] = String.valueOf(defaultValues[i]).getBytes(StandardCharsets.UTF_8);
+      }
+    }
+  }
+
+  public static Encoder[] createEncoders(String[] columnTypes, DataType[] fieldTypes)
+  {
+    Encoder[] encoders = new Encoder[columnTypes.length];
+    for (int i = 0; i < columnTypes.length; i++) {
+      encoders[i] = createEncoder(unwrap(ClickHouseType.parse(columnTypes[i])), fieldTypes[i]);
+    }
+    return encoders;
+  }
+
+  /**
+   * Nullable and LowCardinality don't change the text representation
+   */
+  private static ClickHouseType unwrap(ClickHouseType type)
+  {
+    while ("Nullable".equals(type.getName()) || "LowCardinality".equals(type.getName())) {
+      type = type.getTypeArgument(0);
+    }
+    return type;
+  }
+
+  private static Encoder createEncoder(ClickHouseType type, DataType fieldType)
+  {
+    if (fieldType instanceof StringType) {
+      // clickhouse parses quoted values of any type, quoting keeps separators in the value safe
+      return new StringEncoder();
+    }
+    if (fieldType instanceof LongType) {
+      return new LongEncoder();
+    }
+    if (fieldType instanceof IntegerType) {
+      return new IntEncoder();
+    }
+    if (fieldType instanceof ShortType) {
+      return new ShortEncoder();
+    }
+    if (fieldType instanceof ByteType) {
+      return new ByteEncoder();
+    }
+    if (fieldType instanceof DoubleType) {
+      return new DoubleEncoder();
+    }
+    if (fieldType instanceof FloatType) {
+      return new FloatEncoder();
+    }
+    if (fieldType instanceof BooleanType) {
+      // only Bool parses true and false, integer columns need 1 and 0
+      return new BooleanEncoder("Bool".equals(type.getName()));
+    }
+    if (fieldType instanceof DecimalType) {
+      return new DecimalEncoder();
+    }
+    if (fieldType instanceof TimestampType) {
+      return new TimestampEncoder(type.getName().startsWith("Date") && !type.getName().startsWith("DateTime"));
+    }
+    if (fieldType instanceof DateType) {
+      return new DateEncoder();
+    }
+    if (fieldType instanceof ArrayType) {
+      return new ArrayEncoder();
+    }
+    if (fieldType instanceof MapType) {
+      return new MapEncoder();
+    }
+    if (fieldType instanceof StructType) {
+      return new TupleEncoder();
+    }
+    return new ObjectEncoder();
   }
 
-  public void writeRows(Iterator<Row> rows) throws IOException
+  @Override
+  protected void writeRow(Row row) throws IOException
   {
-    try {
-      while (rows.hasNext()) {
-        writeRow(rows.next());
-        counter++;
+    // the row may carry extra columns after the ones to build, e.g. the fan out route
+    for (int i = 0; i < encoders.length; i++) {
+      if (i > 0) {
+        out.writeByte(SEPARATOR);
+      }
+      if (!row.isNullAt(i)) {
+        encoders[i].write(out, row, i);
+      } else if (defaultValues[i] != null) {
+        out.writeBytes(defaultValues[i]);
       }
     }
-    finally {
-      log.info(counter + " rows built");
-      this.writer.close();
+    out.writeByte(LINE_END);
+  }
+
+  public abstract static class Encoder
+  {
+    abstract void write(PipeOutput out, Row row, int index) throws IOException;
+  }
+
+  private static class StringEncoder extends Encoder
+  {
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      out.writeByte(QUOTE_CHAR);
+      writeEscaped(out, row.getString(index), true);
+      out.writeByte(QUOTE_CHAR);
     }
   }
 
-  private void writeRow(Row row) throws IOException
+  private static class LongEncoder extends Encoder
   {
-    StringBuilder sb = new StringBuilder(256);
-    boolean first = true;
-    for (int i = 0; i < row.size(); i++) {
-      if (!first) {
-        sb.append(SEPARATOR);
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      out.writeDecimal(row.getLong(index));
+    }
+  }
+
+  private static class IntEncoder extends Encoder
+  {
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      out.writeDecimal(row.getInt(index));
+    }
+  }
+
+  private static class ShortEncoder extends Encoder
+  {
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      out.writeDecimal(row.getShort(index));
+    }
+  }
+
+  private static class ByteEncoder extends Encoder
+  {
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      out.writeDecimal(row.getByte(index));
+    }
+  }
+
+  private static class DoubleEncoder extends Encoder
+  {
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      out.writeDouble(row.getDouble(index));
+    }
+  }
+
+  private static class FloatEncoder extends Encoder
+  {
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      out.writeFloat(row.getFloat(index));
+    }
+  }
+
+  private static class BooleanEncoder extends Encoder
+  {
+    private final boolean literal;
+
+    BooleanEncoder(boolean literal)
+    {
+      this.literal = literal;
+    }
+
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      boolean value = row.getBoolean(index);
+      if (literal) {
+        out.writeAscii(value ? "true" : "false");
+      } else {
+        out.writeByte(value ? '1' : '0');
       }
-      first = false;
-      writeColumn(sb, row, i, types[i]);
     }
-    sb.append(LINE_END);
-    this.writer.write(sb.toString());
   }
 
-  private void writeColumn(StringBuilder sb, Row row, int fieldIndex, CsvType type)
+  private static class DecimalEncoder extends Encoder
   {
-    if (row.isNullAt(fieldIndex)) {
-      if (defaultValues[fieldIndex] == null) {
-        return;
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      BigDecimal value = row.getDecimal(index);
+      // Decimal(18, s) and narrower columns, wider ones keep toPlainString
+      if (value.precision() <= MAX_LONG_DIGITS && value.scale() >= 0 && value.scale() <= MAX_LONG_DIGITS) {
+        out.writeScaled(value.unscaledValue().longValue(), value.scale());
+      } else {
+        out.writeAscii(ClickHouseValueFormatter.formatBigDecimal(value));
       }
-      sb.append(defaultValues[fieldIndex]);
-      return;
     }
-    switch (type) {
-      case STRING:
-        writeCSVString(sb, row.getAs(fieldIndex));
-        break;
-      case DECIMAL:
-        sb.append(ClickHouseValueFormatter.formatBigDecimal(row.getAs(fieldIndex)));
-        break;
-      case ARRAY_STRING:
-        writeCSVString(sb, ClickHouseArrayUtil.toString(
-            row.<Collection<?>>getList(fieldIndex),
-            TimeZone.getDefault(),
-            TimeZone.getDefault()
-        ));
-        break;
-      case ARRAY_OTHER:
-        sb.append(QUOTE_CHAR);
-        sb.append(ClickHouseArrayUtil.toString(
-            row.<Collection<?>>getList(fieldIndex),
-            TimeZone.getDefault(),
-            TimeZone.getDefault()
-        ));
-        sb.append(QUOTE_CHAR);
-        break;
-      default:
-        sb.append(row.<Object>getAs(fieldIndex));
+  }
+
+  private static class TimestampEncoder extends Encoder
+  {
+    private final boolean dateOnly;
+
+    TimestampEncoder(boolean dateOnly)
+    {
+      this.dateOnly = dateOnly;
+    }
+
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      Timestamp ts = row.getTimestamp(index);
+      if (dateOnly) {
+        writeDate(out, ts);
+      } else {
+        writeTimestamp(out, ts);
+      }
+    }
+  }
+
+  private static class DateEncoder extends Encoder
+  {
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      writeDate(out, row.getDate(index));
+    }
+  }
+
+  private static class ArrayEncoder extends Encoder
+  {
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      out.writeByte(QUOTE_CHAR);
+      writeArray(out, row.getList(index));
+      out.writeByte(QUOTE_CHAR);
     }
   }
 
-  private void writeCSVString(StringBuilder sb, String input)
+  private static class MapEncoder extends Encoder
   {
-    sb.append(QUOTE_CHAR);
-    sb.append(this.stringContainsSpecialCharacters(input) ? this.processLine(input) : input);
-    sb.append(QUOTE_CHAR);
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      StringBuilder sb = new StringBuilder();
+      appendMap(sb, row.getJavaMap(index));
+      out.writeByte(QUOTE_CHAR);
+      writeEscaped(out, sb.toString(), true);
+      out.writeByte(QUOTE_CHAR);
+    }
   }
 
-  private boolean stringContainsSpecialCharacters(String input)
+  private static class TupleEncoder extends Encoder
   {
-    return input.indexOf(QUOTE_CHAR) != -1 || input.indexOf(ESCAPE_CHAR) != -1;
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      StringBuilder sb = new StringBuilder();
+      appendTuple(sb, row.getStruct(index));
+      out.writeByte(QUOTE_CHAR);
+      writeEscaped(out, sb.toString(), true);
+      out.writeByte(QUOTE_CHAR);
+    }
   }
 
-  private StringBuilder processLine(String input)
+  private static class ObjectEncoder extends Encoder
   {
-    StringBuilder sb = new StringBuilder(16);
+    @Override
+    void write(PipeOutput out, Row row, int index) throws IOException
+    {
+      out.writeUtf8(String.valueOf(row.get(index)));
+    }
+  }
 
+  /**
+   * Writes the utf-8 bytes of the input, doubling quote chars when it ends up inside a quoted csv field
+   */
+  private static void writeEscaped(PipeOutput out, String input, boolean escapeQuote) throws IOException
+  {
     for (int j = 0; j < input.length(); ++j) {
       char nextChar = input.charAt(j);
-      if (nextChar == QUOTE_CHAR) {
-        sb.append(ESCAPE_CHAR).append(nextChar);
+      if (escapeQuote && nextChar == QUOTE_CHAR) {
+        out.writeByte(ESCAPE_CHAR);
+        out.writeByte(nextChar);
+      } else {
+        j = out.writeUtf8Char(input, j);
+      }
+    }
+  }
+
+  /**
+   * Same output as {@code ClickHouseArrayUtil.toString}. Arrays of integers and of strings
+   * which need no escaping are formatted directly into the buffer, anything else goes through clickhouse-jdbc.
+   */
+  private static void writeArray(PipeOutput out, List<?> list) throws IOException
+  {
+    if (!isPlainArray(list)) {
+      writeEscaped(out, ClickHouseArrayUtil.toString(list, TimeZone.getDefault(), TimeZone.getDefault()), true);
+      return;
+    }
+    out.writeByte('[');
+    for (int i = 0; i < list.size(); i++) {
+      if (i > 0) {
+        out.writeByte(',');
+      }
+      Object item = list.get(i);
+      if (item instanceof String) {
+        out.writeByte(ARRAY_QUOTE_CHAR);
+        writeEscaped(out, (String) item, true);
+        out.writeByte(ARRAY_QUOTE_CHAR);
       } else {
-        sb.append(nextChar);
+        out.writeDecimal(((Number) item).longValue());
+      }
+    }
+    out.writeByte(']');
+  }
+
+  private static boolean isPlainArray(List<?> list)
+  {
+    if (list.isEmpty()) {
+      return true;
+    }
+    boolean strings = list.get(0) instanceof String;
+    for (int i = 0; i < list.size(); i++) {
+      Object item = list.get(i);
+      if (strings ? !(item instanceof String) || needsArrayEscape((String) item) : !isIntegral(item)) {
+        return false;
       }
     }
+    return true;
+  }
+
+  private static boolean isIntegral(Object item)
+  {
+    return item instanceof Integer || item instanceof Long || item instanceof Short || item instanceof Byte;
+  }
 
-    return sb;
+  /**
+   * @return true if clickhouse-jdbc would escape any char of the array element
+   */
+  private static boolean needsArrayEscape(String item)
+  {
+    for (int i = 0; i < item.length(); i++) {
+      switch (item.charAt(i)) {
+        case '\\':
+        case '\n':
+        case '\t':
+        case '\b':
+        case '\f':
+        case '\r':
+        case '\0':
+        case '\'':
+        case '`':
+          return true;
+        default:
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Same output as {@code Timestamp.toString}
+   */
+  @SuppressWarnings("deprecation")
+  private static void writeTimestamp(PipeOutput out, Timestamp ts) throws IOException
+  {
+    writeDate(out, ts);
+    out.writeByte(' ');
+    out.writePadded(ts.getHours(), 2);
+    out.writeByte(':');
+    out.writePadded(ts.getMinutes(), 2);
+    out.writeByte(':');
+    out.writePadded(ts.getSeconds(), 2);
+    out.writeByte('.');
+    writeNanos(out, ts.getNanos());
+  }
+
+  @SuppressWarnings("deprecation")
+  private static void writeDate(PipeOutput out, java.util.Date date) throws IOException
+  {
+    out.writePadded(date.getYear() + 1900, 4);
+    out.writeByte('-');
+    out.writePadded(date.getMonth() + 1, 2);
+    out.writeByte('-');
+    out.writePadded(date.getDate(), 2);
+  }
+
+  /**
+   * Same as {@code Timestamp.toString}: "0" or nine digits without the trailing zeros
+   */
+  private static void writeNanos(PipeOutput out, int nanos) throws IOException
+  {
+    if (nanos == 0) {
+      out.writeByte('0');
+      return;
+    }
+    int width = 9;
+    while (nanos % 10 == 0) {
+      nanos /= 10;
+      width--;
+    }
+    out.writePadded(nanos, width);
+  }
+
+  private static void appendMap(StringBuilder sb, Map<?, ?> map)
+  {
+    sb.append('{');
+    boolean first = true;
+    for (Map.Entry<?, ?> e : map.entrySet()) {
+      if (!first) {
+        sb.append(',');
+      }
+      first = false;
+      appendLiteral(sb, e.getKey());
+      sb.append(':');
+      appendLiteral(sb, e.getValue());
+    }
+    sb.append('}');
+  }
+
+  private static void appendTuple(StringBuilder sb, Row row)
+  {
+    sb.append('(');
+    for (int i = 0; i < row.size(); i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      appendLiteral(sb, row.get(i));
+    }
+    sb.append(')');
+  }
+
+  /**
+   * Formats a value nested in a map or tuple as a clickhouse literal, spark keeps nested collections as scala ones
+   */
+  @SuppressWarnings("unchecked")
+  private static void appendLiteral(StringBuilder sb, Object value)
+  {
+    if (value == null) {
+      sb.append("NULL");
+    } else if (value instanceof Number && !(value instanceof BigDecimal)) {
+      sb.append(value);
+    } else if (value instanceof BigDecimal) {
+      sb.append(ClickHouseValueFormatter.formatBigDecimal((BigDecimal) value));
+    } else if (value instanceof Boolean) {
+      sb.append((Boolean) value ? '1' : '0');
+    } else if (value instanceof Row) {
+      appendTuple(sb, (Row) value);
+    } else if (value instanceof Map) {
+      appendMap(sb, (Map<?, ?>) value);
+    } else if (value instanceof scala.collection.Map) {
+      appendMap(sb, JavaConverters.mapAsJavaMapConverter((scala.collection.Map<Object, Object>) value).asJava());
+    } else if (value instanceof Seq || value instanceof List) {
+      List<Object> list = value instanceof Seq
+                          ? JavaConverters.seqAsJavaListConverter((Seq<Object>) value).asJava()
+                          : (List<Object>) value;
+      sb.append('[');
+      for (int i = 0; i < list.size(); i++) {
+        if (i > 0) {
+          sb.append(',');
+        }
+        appendLiteral(sb, list.get(i));
+      }
+      sb.append(']');
+    } else {
+      // strings, dates and timestamps are quoted
+      sb.append(ARRAY_QUOTE_CHAR);
+      String s = String.valueOf(value);
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        switch (c) {
+          case '\\':
+          case '\'':
+            sb.append('\\').append(c);
+            break;
+          case '\n':
+            sb.append("\\n");
+            break;
+          case '\t':
+            sb.append("\\t");
+            break;
+          case '\r':
+            sb.append("\\r");
+            break;
+          case '\0':
+            sb.append("\\0");
+            break;
+          default:
+            sb.append(c);
+        }
+      }
+      sb.append(ARRAY_QUOTE_CHAR);
+    }
   }
 }
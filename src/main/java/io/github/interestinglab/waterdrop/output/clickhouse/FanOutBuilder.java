@@ -0,0 +1,231 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ToIntFunction;
+
+/**
+ * Feeds the rows of one task to several {@link PartBuilder}s, each running its own clickhouse local process.
+ * Rows are routed by the hash of the partition key computed by spark, modulo the number of builders of the task,
+ * so the builders produce parts of different clickhouse partitions. Without a route column rows are spread round robin.
+ * Rows are queued to the builders, so the iterator must not reuse the row objects it returns.
+ */
+public class FanOutBuilder<T>
+{
+  private static final int CHUNK_SIZE = 1024;
+  private static final int QUEUE_DEPTH = 8;
+
+  private final List<T> eof = Collections.emptyList();
+  private final Logger log;
+  private final List<PartBuilder> builders;
+  private final RowWriter.Factory<T> writers;
+  private final ToIntFunction<T> router;
+  private final long maxRows;
+  private final long maxBytes;
+
+  /**
+   * @param router   the hash a row is routed by, read from the route column, null for round robin
+   * @param maxRows  max rows routed to one builder before the batch ends, 0 for no limit
+   * @param maxBytes max bytes written by one builder before the batch ends, 0 for no limit
+   */
+  public FanOutBuilder(
+      Logger log,
+      List<PartBuilder> builders,
+      RowWriter.Factory<T> writers,
+      ToIntFunction<T> router,
+      long maxRows,
+      long maxBytes
+  )
+  {
+    this.log = log;
+    this.builders = builders;
+    this.writers = writers;
+    this.router = router;
+    this.maxRows = maxRows;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Routes rows until the iterator is exhausted or one builder reaches a limit, and waits for all builds.
+   * The remaining rows are left in the iterator.
+   */
+  public void build(Iterator<T> rows) throws Exception
+  {
+    int k = builders.size();
+    List<BlockingQueue<List<T>>> queues = new ArrayList<>(k);
+    List<List<T>> chunks = new ArrayList<>(k);
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    ExecutorService exec = Executors.newFixedThreadPool(k);
+    List<Future<?>> futures = new ArrayList<>(k);
+    for (int i = 0; i < k; i++) {
+      BlockingQueue<List<T>> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+      PartBuilder builder = builders.get(i);
+      queues.add(queue);
+      chunks.add(new ArrayList<>(CHUNK_SIZE));
+      futures.add(exec.submit(() -> {
+        try {
+          // limits are checked here, the builder has to drain its whole queue
+          builder.build(new QueueIterator(queue), 0, 0, writers);
+        }
+        catch (Exception e) {
+          failure.compareAndSet(null, e);
+          throw e;
+        }
+        return null;
+      }));
+    }
+    Exception error = null;
+    try {
+      long[] counts = new long[k];
+      long next = 0;
+      boolean limitReached = false;
+      while (!limitReached && rows.hasNext()) {
+        T row = rows.next();
+        int route = router == null ? (int) (next++ % k) : Math.floorMod(router.applyAsInt(row), k);
+        List<T> chunk = chunks.get(route);
+        chunk.add(row);
+        counts[route]++;
+        limitReached = maxRows > 0 && counts[route] >= maxRows;
+        if (chunk.size() == CHUNK_SIZE) {
+          put(queues.get(route), chunk, failure);
+          chunks.set(route, new ArrayList<>(CHUNK_SIZE));
+          limitReached |= maxBytes > 0 && builders.get(route).getBytesWritten() >= maxBytes;
+        }
+      }
+      for (int i = 0; i < k; i++) {
+        if (!chunks.get(i).isEmpty()) {
+          put(queues.get(i), chunks.get(i), failure);
+        }
+        put(queues.get(i), eof, failure);
+      }
+    }
+    catch (Exception e) {
+      error = e;
+      for (BlockingQueue<List<T>> queue : queues) {
+        queue.clear();
+        queue.offer(eof);
+      }
+    }
+    finally {
+      exec.shutdown();
+    }
+    for (Future<?> future : futures) {
+      while (error == null) {
+        try {
+          future.get(100, TimeUnit.MILLISECONDS);
+          break;
+        }
+        catch (TimeoutException e) {
+          // another builder may have failed meanwhile
+          error = failure.get();
+        }
+        catch (ExecutionException e) {
+          error = failure.get() != null ? failure.get() : e;
+        }
+        catch (InterruptedException e) {
+          error = e;
+        }
+      }
+    }
+    if (error != null) {
+      kill(futures);
+      throw error;
+    }
+    log.info(k + " builders done");
+  }
+
+  /**
+   * Kills the builds still running and waits for every builder thread,
+   * so no clickhouse local writes into the work dirs the caller deletes next
+   */
+  private void kill(List<Future<?>> futures) throws IOException
+  {
+    for (PartBuilder builder : builders) {
+      builder.kill();
+    }
+    boolean interrupted = Thread.interrupted();
+    for (Future<?> future : futures) {
+      while (true) {
+        try {
+          future.get();
+          break;
+        }
+        catch (ExecutionException e) {
+          // killed, or the failure already reported
+          break;
+        }
+        catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static <T> void put(BlockingQueue<List<T>> queue, List<T> chunk, AtomicReference<Exception> failure)
+      throws Exception
+  {
+    while (!queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+      // the builder stopped consuming
+      if (failure.get() != null) {
+        throw failure.get();
+      }
+    }
+  }
+
+  private class QueueIterator implements Iterator<T>
+  {
+    private final BlockingQueue<List<T>> queue;
+    private List<T> chunk = Collections.emptyList();
+    private int index;
+    private boolean done;
+
+    QueueIterator(BlockingQueue<List<T>> queue)
+    {
+      this.queue = queue;
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+      while (!done && index == chunk.size()) {
+        try {
+          chunk = queue.take();
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("interrupted while waiting for rows", e);
+        }
+        index = 0;
+        done = chunk == eof;
+      }
+      return !done;
+    }
+
+    @Override
+    public T next()
+    {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return chunk.get(index++);
+    }
+  }
+}
@@ -0,0 +1,241 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.security.UserGroupInformation;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Files on a hadoop file system, hdfs in most setups. A file is written to the tmp/ dir next to it
+ * and renamed into place, which is atomic on hdfs and fails if another attempt renamed the same file first.
+ */
+public class HadoopPartStorage implements PartStorage
+{
+  private static final String TMP_DIR = "tmp";
+
+  // null for the current user
+  private final UserGroupInformation ugi;
+  private final FileSystem fs;
+
+  /**
+   * @param path any path of the file system
+   */
+  public HadoopPartStorage(String path, String hdfsUser) throws IOException
+  {
+    this.ugi = hdfsUser == null ? null : UserGroupInformation.createRemoteUser(hdfsUser);
+    // not the cached instance, it is closed together with this storage
+    this.fs = doAs(new PrivilegedExceptionAction<FileSystem>()
+    {
+      @Override
+      public FileSystem run() throws Exception
+      {
+        return FileSystem.newInstance(new Path(path).toUri(), new Configuration());
+      }
+    });
+  }
+
+  @Override
+  public long length(String path) throws IOException
+  {
+    return doAs(new PrivilegedExceptionAction<Long>()
+    {
+      @Override
+      public Long run() throws Exception
+      {
+        try {
+          return fs.getFileStatus(new Path(path)).getLen();
+        }
+        catch (FileNotFoundException e) {
+          return -1L;
+        }
+      }
+    });
+  }
+
+  @Override
+  public InputStream open(String path) throws IOException
+  {
+    return doAs(new PrivilegedExceptionAction<InputStream>()
+    {
+      @Override
+      public InputStream run() throws Exception
+      {
+        return fs.open(new Path(path));
+      }
+    });
+  }
+
+  @Override
+  public Upload create(String path) throws IOException
+  {
+    Path target = new Path(path);
+    // speculative attempts upload the same file concurrently
+    Path tmp = new Path(new Path(target.getParent(), TMP_DIR), target.getName() + "." + UUID.randomUUID());
+    FSDataOutputStream out = doAs(new PrivilegedExceptionAction<FSDataOutputStream>()
+    {
+      @Override
+      public FSDataOutputStream run() throws Exception
+      {
+        return fs.create(tmp);
+      }
+    });
+    return new Upload()
+    {
+      private volatile boolean closed;
+
+      @Override
+      public void write(int b) throws IOException
+      {
+        out.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void flush() throws IOException
+      {
+        out.flush();
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+        if (!closed) {
+          closed = true;
+          out.close();
+        }
+      }
+
+      @Override
+      public void commit() throws IOException
+      {
+        close();
+        doAs(new PrivilegedExceptionAction<Boolean>()
+        {
+          @Override
+          public Boolean run() throws Exception
+          {
+            fs.mkdirs(target.getParent());
+            if (!fs.rename(tmp, target)) {
+              if (!fs.exists(target)) {
+                throw new IOException(String.format("failed to rename %s to %s", tmp, target));
+              }
+              // another attempt renamed the same file first
+              fs.delete(tmp, false);
+            }
+            return true;
+          }
+        });
+      }
+
+      @Override
+      public void abort()
+      {
+        try {
+          close();
+        }
+        catch (IOException e) {
+          // deleted anyway
+        }
+        try {
+          delete(tmp.toString());
+        }
+        catch (IOException e) {
+          // left in tmp/, which is not attached
+        }
+      }
+
+      @Override
+      public String describe()
+      {
+        return tmp.toString();
+      }
+    };
+  }
+
+  @Override
+  public boolean delete(String path) throws IOException
+  {
+    return doAs(new PrivilegedExceptionAction<Boolean>()
+    {
+      @Override
+      public Boolean run() throws Exception
+      {
+        return fs.delete(new Path(path), false);
+      }
+    });
+  }
+
+  @Override
+  public void rename(String from, String to) throws IOException
+  {
+    doAs(new PrivilegedExceptionAction<Boolean>()
+    {
+      @Override
+      public Boolean run() throws Exception
+      {
+        Path target = new Path(to);
+        fs.mkdirs(target.getParent());
+        if (!fs.rename(new Path(from), target)) {
+          throw new IOException(String.format("failed to rename %s to %s", from, to));
+        }
+        return true;
+      }
+    });
+  }
+
+  @Override
+  public List<String> list(String dir) throws IOException
+  {
+    return doAs(new PrivilegedExceptionAction<List<String>>()
+    {
+      @Override
+      public List<String> run() throws Exception
+      {
+        List<String> paths = new ArrayList<>();
+        for (FileStatus status : fs.listStatus(new Path(dir))) {
+          paths.add(status.getPath().toString() + (status.isDirectory() ? "/" : ""));
+        }
+        return paths;
+      }
+    });
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    fs.close();
+  }
+
+  private <T> T doAs(PrivilegedExceptionAction<T> action) throws IOException
+  {
+    try {
+      return ugi == null ? action.run() : ugi.doAs(action);
+    }
+    catch (IOException | RuntimeException e) {
+      throw e;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(e.getMessage());
+    }
+    catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import io.github.interestinglab.waterdrop.config.ConfigRuntimeException;
+
+/**
+ * Wire format used between the spark task and clickhouse local through the pipe file
+ */
+public enum InputFormat
+{
+  CSV("CSV"),
+  ROW_BINARY("RowBinary"),
+  /**
+   * Arrow record batches encoded from the internal rows of the DataFrame, see {@link ArrowRowWriter}
+   */
+  ARROW_STREAM("ArrowStream");
+
+  private final String formatName;
+
+  InputFormat(String formatName)
+  {
+    this.formatName = formatName;
+  }
+
+  /**
+   * @return the clickhouse format name used in {@code ENGINE = File(format, stdin)}
+   */
+  public String getFormatName()
+  {
+    return formatName;
+  }
+
+  public static InputFormat fromString(String name)
+  {
+    for (InputFormat format : values()) {
+      if (format.formatName.equalsIgnoreCase(name) || format.name().equalsIgnoreCase(name)) {
+        return format;
+      }
+    }
+    throw new ConfigRuntimeException("unsupported inputFormat " + name);
+  }
+}
@@ -0,0 +1,182 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Files on a local or nfs mounted file system, e.g. a share the clickhouse nodes attach from.
+ * A file is written and synced in the tmp/ dir next to it, then hard linked into place, which is atomic and,
+ * like a rename on hdfs, fails if another attempt published the same file first. File systems without hard links
+ * fall back to an atomic move, and to a copy when even that is not supported.
+ */
+public class LocalPartStorage implements PartStorage
+{
+  public static final String SCHEME = "file:";
+  private static final String TMP_DIR = "tmp";
+
+  @Override
+  public long length(String path)
+  {
+    File file = file(path);
+    return file.isFile() ? file.length() : -1;
+  }
+
+  @Override
+  public InputStream open(String path) throws FileNotFoundException
+  {
+    return new FileInputStream(file(path));
+  }
+
+  @Override
+  public Upload create(String path) throws IOException
+  {
+    File target = file(path);
+    File tmp = new File(new File(target.getParentFile(), TMP_DIR), target.getName() + "." + UUID.randomUUID());
+    Files.createDirectories(tmp.getParentFile().toPath());
+    FileOutputStream out = new FileOutputStream(tmp);
+    return new Upload()
+    {
+      private volatile boolean closed;
+
+      @Override
+      public void write(int b) throws IOException
+      {
+        out.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+        if (!closed) {
+          closed = true;
+          out.close();
+        }
+      }
+
+      @Override
+      public void commit() throws IOException
+      {
+        // a node crash must not leave a published zip without its data
+        out.getFD().sync();
+        close();
+        publish(tmp, target);
+      }
+
+      @Override
+      public void abort()
+      {
+        try {
+          close();
+        }
+        catch (IOException e) {
+          // deleted anyway
+        }
+        tmp.delete();
+      }
+
+      @Override
+      public String describe()
+      {
+        return tmp.toString();
+      }
+    };
+  }
+
+  private void publish(File tmp, File target) throws IOException
+  {
+    Files.createDirectories(target.getParentFile().toPath());
+    try {
+      link(target.toPath(), tmp.toPath());
+      Files.delete(tmp.toPath());
+      return;
+    }
+    catch (FileAlreadyExistsException e) {
+      // another attempt published the same file first
+      Files.delete(tmp.toPath());
+      return;
+    }
+    catch (UnsupportedOperationException | FileSystemException e) {
+      // no hard links, e.g. some nfs servers
+    }
+    try {
+      moveAtomically(tmp.toPath(), target.toPath());
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.copy(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      Files.delete(tmp.toPath());
+    }
+  }
+
+  /**
+   * The steps of {@link #publish(File, File)} the file systems may not support, replaced to check the fallbacks
+   */
+  void link(Path link, Path existing) throws IOException
+  {
+    Files.createLink(link, existing);
+  }
+
+  void moveAtomically(Path source, Path target) throws IOException
+  {
+    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  @Override
+  public boolean delete(String path)
+  {
+    return file(path).delete();
+  }
+
+  @Override
+  public void rename(String from, String to) throws IOException
+  {
+    File target = file(to);
+    Files.createDirectories(target.getParentFile().toPath());
+    Files.move(file(from).toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  @Override
+  public List<String> list(String dir) throws IOException
+  {
+    File[] files = file(dir).listFiles();
+    if (files == null) {
+      throw new FileNotFoundException(dir);
+    }
+    List<String> paths = new ArrayList<>();
+    for (File file : files) {
+      // File.toURI adds the slash to dirs
+      paths.add(file.toURI().toString());
+    }
+    return paths;
+  }
+
+  @Override
+  public void close()
+  {
+  }
+
+  private static File file(String path)
+  {
+    // file:/a/b, file:///a/b and File.toURI() all name the same file
+    return new File(URI.create(path.replaceFirst("^file:/*", "file:///")));
+  }
+}
@@ -0,0 +1,106 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Commits the parts of one job on the driver. Spark keeps the result of exactly one successful attempt
+ * per partition, so the manifest lists the parts of those attempts, and every other zip of the job,
+ * left behind by failed or speculative attempts, is deleted.
+ */
+public class ManifestCommitter
+{
+  public static final String MANIFEST_DIR = "manifest";
+
+  private final Logger log;
+  private final String hdfsUser;
+  private final String rootPath;
+  private final S3Settings s3Settings;
+
+  public ManifestCommitter(Logger log, String hdfsUser, String rootPath, S3Settings s3Settings)
+  {
+    this.log = log;
+    this.hdfsUser = hdfsUser;
+    this.rootPath = rootPath.endsWith("/") ? rootPath : rootPath + "/";
+    this.s3Settings = s3Settings;
+  }
+
+  /**
+   * Writes $rootPath/manifest/$jobId.tsv and deletes the zips of the job which are not in it
+   *
+   * @return the manifest path
+   */
+  public String commit(String jobId, List<PartInfo> parts) throws IOException
+  {
+    try (PartStorage storage = PartStorage.forPath(rootPath, hdfsUser, s3Settings)) {
+      String manifest = rootPath + MANIFEST_DIR + "/" + jobId + ".tsv";
+      Set<String> committed = new HashSet<>();
+      long rows = 0;
+      StringBuilder sb = new StringBuilder(PartInfo.header()).append('\n');
+      for (PartInfo part : parts) {
+        sb.append(part).append('\n');
+        committed.add(PartStorage.name(part.getPath()));
+        rows += part.getRows();
+      }
+      PartStorage.Upload out = storage.create(manifest);
+      try {
+        out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        out.commit();
+      }
+      catch (IOException e) {
+        out.abort();
+        throw e;
+      }
+      int deleted = deleteJobFiles(storage, rootPath, jobId, committed);
+      log.info(String.format(
+          "committed %d parts with %d rows to %s, deleted %d zips of other attempts",
+          parts.size(),
+          rows,
+          manifest,
+          deleted
+      ));
+      return manifest;
+    }
+  }
+
+  /**
+   * Deletes every zip uploaded by the failed job
+   */
+  public void abort(String jobId)
+  {
+    try (PartStorage storage = PartStorage.forPath(rootPath, hdfsUser, s3Settings)) {
+      int deleted = deleteJobFiles(storage, rootPath, jobId, new HashSet<>());
+      log.info("deleted " + deleted + " zips of failed job " + jobId);
+    }
+    catch (Exception e) {
+      log.error("failed to clean job " + jobId, e);
+    }
+  }
+
+  /**
+   * Walks the upload dir, the tmp and shard dirs in it, skipping the manifests and what is already attached
+   */
+  private int deleteJobFiles(PartStorage storage, String dir, String jobId, Set<String> keep) throws IOException
+  {
+    int deleted = 0;
+    for (String path : storage.list(dir)) {
+      if (path.endsWith("/")) {
+        String name = PartStorage.name(path.substring(0, path.length() - 1));
+        if (!MANIFEST_DIR.equals(name) && !BulkAttacher.ATTACHED_DIR.equals(name)) {
+          deleted += deleteJobFiles(storage, path, jobId, keep);
+        }
+      } else {
+        String name = PartStorage.name(path);
+        if (name.startsWith(jobId + "-") && !keep.contains(name) && storage.delete(path)) {
+          deleted++;
+        }
+      }
+    }
+    return deleted;
+  }
+}
@@ -0,0 +1,80 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the last lines printed by a process, to be logged only if it fails.
+ * Each stream is drained by its own thread as it is written, so a verbose process never blocks on a full pipe.
+ */
+public class OutputTail
+{
+  private static final int MAX_LINE_LENGTH = 4096;
+
+  private final String[] lines;
+  private long count;
+
+  public OutputTail(int maxLines)
+  {
+    this.lines = new String[maxLines];
+  }
+
+  /**
+   * Starts a daemon thread reading the stream to its end
+   *
+   * @param listener sees every line as it is read, null for none
+   */
+  public Thread drain(InputStream in, String name, Consumer<String> listener)
+  {
+    Thread thread = new Thread(() -> {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (listener != null) {
+            listener.accept(line);
+          }
+          add(line.length() <= MAX_LINE_LENGTH ? line : line.substring(0, MAX_LINE_LENGTH) + "...");
+        }
+      }
+      catch (IOException e) {
+        add("failed to read " + name + ": " + e);
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  private synchronized void add(String line)
+  {
+    lines[(int) (count++ % lines.length)] = line;
+  }
+
+  /**
+   * @return number of lines read so far
+   */
+  public synchronized long getLineCount()
+  {
+    return count;
+  }
+
+  /**
+   * @return the lines kept, oldest first
+   */
+  public synchronized String dump()
+  {
+    StringBuilder sb = new StringBuilder();
+    long first = Math.max(0, count - lines.length);
+    if (first > 0) {
+      sb.append(String.format("... %,d lines skipped%n", first));
+    }
+    for (long i = first; i < count; i++) {
+      sb.append(lines[(int) (i % lines.length)]).append(System.lineSeparator());
+    }
+    return sb.toString();
+  }
+}
@@ -1,39 +1,75 @@
 package io.github.interestinglab.waterdrop.output.clickhouse;
 
 import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
 import org.slf4j.Logger;
 
-import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PartBuilder
 {
+  /**
+   * Printed by the build sql right before the final optimize, to time it
+   */
+  public static final String OPTIMIZE_MARK = "__optimize_start__";
+  private static final int OUTPUT_TAIL_LINES = 500;
+  private static final long MIN_PROGRESS_INTERVAL_MILLIS = 1000;
+  private static final long MAX_PROGRESS_INTERVAL_MILLIS = 10_000;
+  private static final long STREAM_JOIN_MILLIS = 10_000;
+
   private final ExecutorService exec;
   private final Logger log;
   private final String binaryDir;
   private final File workDir;
   private final String pipeFile;
-  private final CsvType[] types;
+  private final BuildOptions options;
+  private final String[] columnTypes;
+  private final DataType[] fieldTypes;
   private final Object[] defaultValues;
   private final String buildSql;
+  private final String localConfig;
+  private final BuildMetrics metrics;
+  private volatile RowWriter<?> writer;
+  private volatile Process process;
+  private volatile boolean killed;
+  // System.nanoTime() of the build phases, a builder runs once
+  private volatile long buildStart;
+  private volatile long optimizeStart;
+  private volatile long pipeClosed;
+  private volatile long buildEnd;
+  private volatile long peakRssBytes;
 
   public PartBuilder(
       Logger log,
       String binaryDir,
       File workDir,
       String[] fields,
+      DataType[] fieldTypes,
       Map<String, String> tableSchema,
       Map<String, Object> defaultValues,
-      String buildSql
+      BuildOptions options,
+      String buildSql,
+      String localConfig,
+      BuildMetrics metrics
   )
   {
     this.exec = Executors.newFixedThreadPool(2);
@@ -41,77 +77,72 @@ public class PartBuilder
     this.binaryDir = binaryDir;
     this.workDir = workDir;
     this.pipeFile = workDir + "/pipe_file";
-    this.types = new CsvType[fields.length];
+    this.options = options;
+    this.columnTypes = new String[fields.length];
+    this.fieldTypes = fieldTypes;
     this.defaultValues = new Object[fields.length];
-    for (int i = 0; i < types.length; i++) {
-      String type = tableSchema.get(fields[i]);
-      types[i] = fixSpecialType(type);
+    for (int i = 0; i < fields.length; i++) {
+      columnTypes[i] = tableSchema.get(fields[i]);
       Object defaultValue = defaultValues.get(fields[i]);
       this.defaultValues[i] = defaultValue == null ? null : String.valueOf(defaultValue);
     }
     this.buildSql = buildSql;
+    this.localConfig = localConfig;
+    this.metrics = metrics;
   }
 
-  private CsvType fixSpecialType(String inType)
+  public void build(Iterator<Row> rows) throws Exception
   {
-    if ("String".equals(inType) || "Nullable(String)".equals(inType) || "LowCardinality(String)".equals(inType)) {
-      return CsvType.STRING;
-    }
-    if ("Decimal".equals(inType) || "Nullable(Decimal)".equals(inType)) {
-      return CsvType.DECIMAL;
-    }
-    if (inType.equals("Array(String)") || "Array(LowCardinality(String))".equals(inType)) {
-      return CsvType.ARRAY_STRING;
-    }
-    if (inType.startsWith("Array")) {
-      return CsvType.ARRAY_OTHER;
-    }
-    return CsvType.OTHER;
+    build(rows, options.getMaxRowsPerBuild(), options.getMaxBytesPerBuild());
   }
 
-  public void build(Iterator<Row> rows) throws Exception
+  /**
+   * @param maxRows  max number of rows to build, 0 for no limit
+   * @param maxBytes max number of bytes to write to the pipe, 0 for no limit
+   */
+  public void build(Iterator<Row> rows, long maxRows, long maxBytes) throws Exception
+  {
+    build(
+        rows,
+        maxRows,
+        maxBytes,
+        out -> RowWriter.create(options.getInputFormat(), out, columnTypes, fieldTypes, defaultValues, log)
+    );
+  }
+
+  /**
+   * Builds rows of any representation, written to the pipe by the writer of the factory
+   */
+  public <T> void build(Iterator<T> rows, long maxRows, long maxBytes, RowWriter.Factory<T> writers) throws Exception
   {
     try {
-      buildInner(rows);
+      buildInner(rows, maxRows, maxBytes, writers);
     }
     finally {
       exec.shutdown();
     }
   }
 
-  private void buildInner(Iterator<Row> rows) throws Exception
+  private <T> void buildInner(Iterator<T> rows, long maxRows, long maxBytes, RowWriter.Factory<T> writers)
+      throws Exception
   {
     createPipeFile(pipeFile);
     createBuildSqlFile();
+    createConfigFile();
     CountDownLatch starting = new CountDownLatch(1);
     CountDownLatch done = new CountDownLatch(1);
-    AtomicBoolean buildFailed = new AtomicBoolean(false);
-    AtomicBoolean writeFailed = new AtomicBoolean(false);
+    CountDownLatch written = new CountDownLatch(1);
+    AtomicReference<Exception> buildFailure = new AtomicReference<>();
+    AtomicReference<Exception> writeFailure = new AtomicReference<>();
     exec.submit(() -> {
       try {
         String[] cmd = new String[]{"/bin/bash", "-c", "cd " + workDir + ";sh " + binaryDir + "/build.sh"};
         starting.countDown();
-        Process process = Runtime.getRuntime().exec(cmd);
-
-        BufferedReader buffer = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        String str;
-        while ((str = (buffer.readLine())) != null) {
-          log.info(str);
-        }
-        buffer.close();
-        buffer = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-        while ((str = (buffer.readLine())) != null) {
-          log.info(str);
-        }
-        buffer.close();
-        int exitValue = process.waitFor();
-        if (0 != exitValue) {
-          throw new Exception("build failed");
-        }
+        runBuild(cmd);
         log.info("done build.");
       }
       catch (Exception e) {
-        buildFailed.set(true);
+        buildFailure.set(e);
       }
       finally {
         done.countDown();
@@ -119,27 +150,225 @@ public class PartBuilder
     });
     starting.await();
     // maybe failed to start building script
-    if (buildFailed.get()) {
+    if (buildFailure.get() != null) {
       log.info("failed to start building.");
-      throw new IOException("failed to start building");
+      throw new IOException("failed to start building", buildFailure.get());
     }
 
     exec.submit(() -> {
       try {
-        writeDataToPipeFile(rows);
+        writeDataToPipeFile(rows, maxRows, maxBytes, writers);
       }
       catch (Exception e) {
-        writeFailed.set(true);
+        writeFailure.set(e);
+      }
+      finally {
+        pipeClosed = System.nanoTime();
+        written.countDown();
       }
     });
     done.await();
-    if (buildFailed.get()) {
+    if (!written.await(1, TimeUnit.SECONDS)) {
+      releaseWriter();
+      written.await();
+    }
+    if (buildFailure.get() == null && buildEnd > 0) {
+      // the pipe is closed before clickhouse local sees its end, and before the optimize
+      long fed = Math.max(buildStart, Math.min(pipeClosed, optimizeStart == 0 ? buildEnd : optimizeStart));
+      log.info(String.format(
+          "build phases: feeding %,d ms, flushing %,d ms, optimize %,d ms",
+          (fed - buildStart) / 1_000_000,
+          ((optimizeStart == 0 ? buildEnd : optimizeStart) - fed) / 1_000_000,
+          (optimizeStart == 0 ? 0 : buildEnd - optimizeStart) / 1_000_000
+      ));
+      metrics.addBuild(
+          buildEnd - buildStart,
+          fed - buildStart,
+          optimizeStart == 0 ? 0 : buildEnd - optimizeStart,
+          peakRssBytes
+      );
+    }
+    if (buildFailure.get() != null) {
       log.info("failed to build");
-      throw new Exception("failed to build");
+      throw new Exception("failed to build", buildFailure.get());
+    }
+    if (writeFailure.get() != null) {
+      log.info("write data failed", writeFailure.get());
+      throw new Exception("write data failed", writeFailure.get());
+    }
+  }
+
+  /**
+   * Runs build.sh with both output streams drained into a tail logged only on failure,
+   * and kills it when neither the pipe, the output nor the data dir moved for buildStallTimeout
+   */
+  private void runBuild(String[] cmd) throws Exception
+  {
+    OutputTail output = new OutputTail(OUTPUT_TAIL_LINES);
+    buildStart = System.nanoTime();
+    Process process = Runtime.getRuntime().exec(cmd);
+    this.process = process;
+    if (killed) {
+      // killed while starting
+      ProcessMemoryProbe.killAll(process);
+      process.destroyForcibly();
+    }
+    ProcessMemoryProbe memoryProbe = new ProcessMemoryProbe(process, workDir.getName());
+    Thread stdout = output.drain(process.getInputStream(), "build-stdout-" + workDir.getName(), line -> {
+      if (OPTIMIZE_MARK.equals(line)) {
+        optimizeStart = System.nanoTime();
+      }
+    });
+    Thread stderr = output.drain(process.getErrorStream(), "build-stderr-" + workDir.getName(), null);
+    boolean stalled;
+    try {
+      stalled = !waitForProgress(process, output);
+      if (stalled) {
+        ProcessMemoryProbe.killAll(process);
+        process.destroyForcibly().waitFor();
+      }
+    }
+    finally {
+      memoryProbe.close();
+    }
+    // the streams end with the processes build.sh started, which may outlive it
+    stdout.join(STREAM_JOIN_MILLIS);
+    stderr.join(STREAM_JOIN_MILLIS);
+    buildEnd = System.nanoTime();
+    peakRssBytes = memoryProbe.getPeakRssBytes();
+    if (stalled) {
+      metrics.addStalledBuild();
+      log.error(String.format(
+          "clickhouse local in %s made no progress for %,d ms and was killed, last output:%n%s",
+          workDir,
+          options.getBuildStallTimeoutMillis(),
+          output.dump()
+      ));
+      throw new IOException("build stalled");
+    }
+    if (killed) {
+      throw new IOException("build killed in " + workDir);
     }
-    if (writeFailed.get()) {
-      log.info("write data failed");
-      throw new Exception("write data failed");
+    if (process.exitValue() != 0) {
+      log.error(String.format(
+          "clickhouse local in %s exited with %d, last output:%n%s",
+          workDir,
+          process.exitValue(),
+          output.dump()
+      ));
+      throw new IOException("build failed with exit code " + process.exitValue());
+    }
+  }
+
+  /**
+   * Kills clickhouse local if it is still running and waits for it to exit, so the work dir can be deleted.
+   * The build then fails, and a build not started yet fails as soon as it starts.
+   */
+  public void kill() throws IOException
+  {
+    killed = true;
+    Process current = process;
+    if (current == null || !current.isAlive()) {
+      return;
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        ProcessMemoryProbe.killAll(current);
+        current.destroyForcibly().waitFor();
+        break;
+      }
+      catch (InterruptedException e) {
+        // the task is being killed, which is why the build is killed too
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return false if the build stalled, true once it exited
+   */
+  private boolean waitForProgress(Process process, OutputTail output) throws InterruptedException
+  {
+    long stallTimeout = options.getBuildStallTimeoutMillis();
+    if (stallTimeout == 0) {
+      process.waitFor();
+      return true;
+    }
+    long interval = progressInterval(stallTimeout);
+    long[] progress = progress(output);
+    long lastProgress = System.currentTimeMillis();
+    while (!process.waitFor(interval, TimeUnit.MILLISECONDS)) {
+      long[] current = progress(output);
+      long now = System.currentTimeMillis();
+      if (!Arrays.equals(current, progress)) {
+        progress = current;
+        lastProgress = now;
+      } else if (now - lastProgress >= stallTimeout) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return how often the progress of a build is checked for stallTimeout
+   */
+  static long progressInterval(long stallTimeout)
+  {
+    return Math.max(MIN_PROGRESS_INTERVAL_MILLIS, Math.min(MAX_PROGRESS_INTERVAL_MILLIS, stallTimeout / 10));
+  }
+
+  /**
+   * Bytes taken from the pipe, lines printed and size of the data dir, any of them moves while the build runs:
+   * clickhouse local reads the pipe while inserting, and writes or merges parts afterwards
+   */
+  private long[] progress(OutputTail output)
+  {
+    return new long[]{getBytesWritten(), output.getLineCount(), directorySize(new File(workDir, "clickhouse_data"))};
+  }
+
+  static long directorySize(File dir)
+  {
+    AtomicLong size = new AtomicLong();
+    try {
+      Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>()
+      {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+        {
+          size.addAndGet(attrs.size());
+          return FileVisitResult.CONTINUE;
+        }
+
+        @Override
+        public FileVisitResult visitFileFailed(Path file, IOException e)
+        {
+          // deleted by a merge meanwhile
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    }
+    catch (IOException e) {
+      return -1;
+    }
+    return size.get();
+  }
+
+  /**
+   * Opens and closes the pipe, so a writer still waiting for clickhouse local to open it fails instead of blocking
+   * forever. Opened read write, which never blocks on linux, as the writer may be gone meanwhile.
+   */
+  private void releaseWriter()
+  {
+    try {
+      new RandomAccessFile(pipeFile, "rw").close();
+    }
+    catch (IOException e) {
+      log.info("failed to release the pipe writer", e);
     }
   }
 
@@ -150,9 +379,63 @@ public class PartBuilder
     writer.close();
   }
 
-  private void writeDataToPipeFile(Iterator<Row> iterator) throws IOException
+  /**
+   * The config.xml read by build.sh, see {@link ClickhouseLocalConfig}
+   */
+  private void createConfigFile() throws IOException
   {
-    new CsvWriter(pipeFile, types, defaultValues, log).writeRows(iterator);
+    FileWriter writer = new FileWriter(new File(workDir, "config.xml"));
+    writer.write(localConfig);
+    writer.close();
+  }
+
+  /**
+   * @return bytes written to the pipe so far, approximate when called from another thread
+   */
+  public long getBytesWritten()
+  {
+    RowWriter<?> current = writer;
+    return current == null ? 0 : current.getBytesWritten();
+  }
+
+  private <T> void writeDataToPipeFile(
+      Iterator<T> iterator,
+      long maxRows,
+      long maxBytes,
+      RowWriter.Factory<T> writers
+  ) throws IOException
+  {
+    OutputStream out = openPipeFile();
+    RowWriter<T> current;
+    try {
+      current = writers.create(out);
+    }
+    catch (IOException | RuntimeException e) {
+      // clickhouse local waits for the end of the pipe
+      out.close();
+      throw e;
+    }
+    writer = current;
+    long start = System.nanoTime();
+    try {
+      current.writeRows(iterator, maxRows, maxBytes);
+    }
+    finally {
+      metrics.addSerialized(
+          current.getRowsWritten(),
+          current.getBytesWritten(),
+          System.nanoTime() - start,
+          out instanceof PipelinedFifoOutputStream ? ((PipelinedFifoOutputStream) out).getSerializerBlockedNanos() : 0
+      );
+    }
+  }
+
+  private OutputStream openPipeFile() throws IOException
+  {
+    if (options.getPipeQueueDepth() == 0) {
+      return new FileOutputStream(pipeFile);
+    }
+    return new PipelinedFifoOutputStream(pipeFile, options.getPipeBufferSize(), options.getPipeQueueDepth(), log);
   }
 
   private static void createPipeFile(String name) throws IOException, InterruptedException
@@ -0,0 +1,255 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merges the small parts uploaded by the tasks of one job, so the clickhouse servers don't have to.
+ * The parts of a clickhouse partition are packed into groups of at most maxCompactedPartBytes,
+ * and each group is downloaded into a clickhouse local instance, attached, merged by OPTIMIZE FINAL
+ * and uploaded again next to the parts it replaces.
+ */
+public class PartCompactor
+{
+  private static final String ACTIVE_PARTS_FILE = "active_parts.txt";
+
+  private final Logger log;
+  private final String hdfsUser;
+  private final String binaryDir;
+  private final BuildOptions options;
+  private final String createTableSql;
+  private final String database;
+  private final String table;
+  private final String jobId;
+  private final BuildMetrics metrics;
+
+  public PartCompactor(
+      Logger log,
+      String hdfsUser,
+      String binaryDir,
+      BuildOptions options,
+      String createTableSql,
+      String database,
+      String table,
+      String jobId,
+      BuildMetrics metrics
+  )
+  {
+    this.log = log;
+    this.hdfsUser = hdfsUser;
+    this.binaryDir = binaryDir;
+    this.options = options;
+    this.createTableSql = createTableSql;
+    this.database = database;
+    this.table = table;
+    this.jobId = jobId;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Packs the parts of each partition, in each upload dir, into groups of at most maxBytes of zips.
+   * Parts left alone in their group are not worth merging and are not returned.
+   */
+  public static List<List<PartInfo>> groups(List<PartInfo> parts, long maxBytes)
+  {
+    Map<String, List<PartInfo>> partitions = new LinkedHashMap<>();
+    for (PartInfo part : parts) {
+      String key = PartStorage.parent(part.getPath()) + part.getPartitionId();
+      partitions.computeIfAbsent(key, k -> new ArrayList<>()).add(part);
+    }
+    List<List<PartInfo>> groups = new ArrayList<>();
+    for (List<PartInfo> partition : partitions.values()) {
+      partition.sort(Comparator.comparingLong(PartInfo::getBytes));
+      List<PartInfo> group = new ArrayList<>();
+      long groupBytes = 0;
+      for (PartInfo part : partition) {
+        if (!group.isEmpty() && groupBytes + part.getBytes() > maxBytes) {
+          addGroup(groups, group);
+          group = new ArrayList<>();
+          groupBytes = 0;
+        }
+        group.add(part);
+        groupBytes += part.getBytes();
+      }
+      addGroup(groups, group);
+    }
+    return groups;
+  }
+
+  private static void addGroup(List<List<PartInfo>> groups, List<PartInfo> group)
+  {
+    if (group.size() > 1) {
+      groups.add(group);
+    }
+  }
+
+  /**
+   * Merges one group and uploads the result to the dir of the group. The zips of the group are left for the
+   * manifest commit to delete, so a failed compaction loses nothing.
+   *
+   * @return the uploaded parts, normally one
+   */
+  public List<PartInfo> compact(List<PartInfo> group) throws Exception
+  {
+    long bytes = 0;
+    for (PartInfo part : group) {
+      bytes += part.getBytes();
+    }
+    String partitionId = group.get(0).getPartitionId();
+    String targetDir = PartStorage.parent(group.get(0).getPath());
+    // the parts and the merged part
+    File workDir = WorkDirAllocator.allocate(log, Math.max(options.getMinFreeSpacePerBuild(), 2 * bytes));
+    try {
+      File tableDir = new File(workDir, "clickhouse_data/data/data/" + database + "/" + table);
+      List<String> names = download(group, new File(tableDir, "detached"));
+      String fullTableName = database + "." + table;
+      StringBuilder sql = new StringBuilder();
+      sql.append("create database if not exists ").append(database).append(";\n");
+      sql.append(createTableSql).append(";\n");
+      for (String name : names) {
+        sql.append("alter table ").append(fullTableName).append(" attach part '").append(name).append("';\n");
+      }
+      sql.append("optimize table ").append(fullTableName).append(" partition id '").append(partitionId)
+         .append("' final;\n");
+      sql.append("select name from system.parts where database = '").append(database)
+         .append("' and table = '").append(table).append("' and active into outfile '")
+         .append(ACTIVE_PARTS_FILE).append("' format TSV");
+      String localConfig = ClickhouseLocalConfig.render(
+          new File(binaryDir, "config.xml"),
+          ClickhouseLocalConfig.settings(log, options.getLocalSettings(), 1)
+      );
+      // nothing goes through the pipe, the parts are already in the table dir, whatever the input format
+      new PartBuilder(
+          log,
+          binaryDir,
+          workDir,
+          new String[0],
+          new DataType[0],
+          new HashMap<>(),
+          new HashMap<>(),
+          options,
+          sql.toString(),
+          localConfig,
+          metrics
+      ).build(Collections.<Row>emptyIterator(), 0, 0, out -> new RowWriter<Row>(out, log)
+      {
+        @Override
+        protected void writeRow(Row row)
+        {
+          throw new IllegalStateException("no rows are written to compact parts");
+        }
+      });
+      deleteInactiveParts(workDir, tableDir);
+
+      try (PartUploader uploader = new PartUploader(
+          log,
+          hdfsUser,
+          targetDir,
+          jobId,
+          // merging the same zips again gives the same part
+          "compacted/" + PartStorage.name(group.get(0).getPath()),
+          Collections.singletonList(tableDir),
+          options,
+          metrics
+      )) {
+        try {
+          uploader.upload();
+        }
+        catch (Exception e) {
+          uploader.clean();
+          throw e;
+        }
+        List<PartInfo> merged = uploader.getUploadedParts();
+        log.info(String.format(
+            "compacted %d parts of partition %s with %,d bytes into %d parts in %s",
+            group.size(),
+            partitionId,
+            bytes,
+            merged.size(),
+            targetDir
+        ));
+        return merged;
+      }
+    }
+    finally {
+      try {
+        FileUtils.deleteDirectory(workDir);
+      }
+      finally {
+        WorkDirAllocator.release(workDir);
+      }
+    }
+  }
+
+  /**
+   * Unzips the group into the detached dir under distinct names
+   *
+   * @return the detached part names
+   */
+  private List<String> download(List<PartInfo> group, File detachedDir) throws IOException
+  {
+    try (PartStorage storage = PartStorage.forPath(group.get(0).getPath(), hdfsUser, options.getS3Settings())) {
+      List<String> names = new ArrayList<>();
+      for (int i = 0; i < group.size(); i++) {
+        String zip = group.get(i).getPath();
+        String name = BulkAttacher.detachedName(PartStorage.name(zip), i + 1);
+        try (InputStream in = storage.open(zip)) {
+          BulkAttacher.unzip(in, new File(detachedDir, name));
+        }
+        names.add(name);
+      }
+      return names;
+    }
+  }
+
+  /**
+   * The merged parts stay on disk until clickhouse cleans up outdated parts, which it may not get to before exiting
+   */
+  private static void deleteInactiveParts(File workDir, File tableDir) throws IOException
+  {
+    File activeParts = new File(workDir, ACTIVE_PARTS_FILE);
+    if (!activeParts.isFile()) {
+      throw new IOException("clickhouse local did not list the active parts in " + activeParts);
+    }
+    Set<String> active = new HashSet<>();
+    for (String line : Files.readAllLines(activeParts.toPath(), StandardCharsets.UTF_8)) {
+      if (!line.trim().isEmpty()) {
+        active.add(line.trim());
+      }
+    }
+    deleteInactiveParts(tableDir, active);
+  }
+
+  /**
+   * Deletes the part dirs of the table dir which are not in the active set, detached included
+   */
+  static void deleteInactiveParts(File tableDir, Set<String> active) throws IOException
+  {
+    File[] partDirs = tableDir.listFiles();
+    if (partDirs == null) {
+      return;
+    }
+    for (File partDir : partDirs) {
+      if (partDir.isDirectory() && !active.contains(partDir.getName())) {
+        FileUtils.deleteDirectory(partDir);
+      }
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import java.io.Serializable;
+
+/**
+ * An uploaded part zip, returned by the task to the driver and written as one line of the job manifest
+ */
+public class PartInfo implements Serializable
+{
+  private static final String SEPARATOR = "\t";
+
+  private final String path;
+  private final String partitionId;
+  private final long rows;
+  private final long bytes;
+  private final String checksum;
+
+  public PartInfo(String path, String partitionId, long rows, long bytes, String checksum)
+  {
+    this.path = path;
+    this.partitionId = partitionId;
+    this.rows = rows;
+    this.bytes = bytes;
+    this.checksum = checksum;
+  }
+
+  public static String header()
+  {
+    return "#" + String.join(SEPARATOR, "path", "partition_id", "rows", "bytes", "md5");
+  }
+
+  public static PartInfo parse(String line)
+  {
+    String[] fields = line.split(SEPARATOR);
+    if (fields.length != 5) {
+      throw new IllegalArgumentException("invalid manifest line " + line);
+    }
+    return new PartInfo(fields[0], fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]);
+  }
+
+  /**
+   * @return full path of the zip
+   */
+  public String getPath()
+  {
+    return path;
+  }
+
+  public String getPartitionId()
+  {
+    return partitionId;
+  }
+
+  /**
+   * @return rows of the part from its count.txt, -1 if unknown
+   */
+  public long getRows()
+  {
+    return rows;
+  }
+
+  /**
+   * @return size of the zip
+   */
+  public long getBytes()
+  {
+    return bytes;
+  }
+
+  /**
+   * @return md5 of the zip
+   */
+  public String getChecksum()
+  {
+    return checksum;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.join(SEPARATOR, path, partitionId, String.valueOf(rows), String.valueOf(bytes), checksum);
+  }
+}
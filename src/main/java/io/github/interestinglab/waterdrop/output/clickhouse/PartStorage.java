@@ -0,0 +1,99 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Where the part zips and the job manifests are stored, picked by the scheme of the path:
+ * s3:// for {@link S3PartStorage}, file: for {@link LocalPartStorage}, anything else for {@link HadoopPartStorage}.
+ * Each backend has its own way to make a file visible only once it is complete, see {@link Upload}.
+ * Paths are absolute, dirs end with a slash.
+ */
+public interface PartStorage extends Closeable
+{
+  /**
+   * @param hdfsUser user of the hadoop file system, null for the current user
+   * @param s3       settings of the s3 backend, unused by the others
+   */
+  static PartStorage forPath(String path, String hdfsUser, S3Settings s3) throws IOException
+  {
+    if (path.startsWith(S3PartStorage.SCHEME)) {
+      return new S3PartStorage(s3);
+    }
+    if (path.startsWith(LocalPartStorage.SCHEME)) {
+      return new LocalPartStorage();
+    }
+    return new HadoopPartStorage(path, hdfsUser);
+  }
+
+  /**
+   * @return size of the file, -1 if it does not exist
+   */
+  long length(String path) throws IOException;
+
+  /**
+   * @throws java.io.FileNotFoundException if the file does not exist
+   */
+  InputStream open(String path) throws IOException;
+
+  /**
+   * Starts writing a file, which is only visible at its path once the upload is committed
+   */
+  Upload create(String path) throws IOException;
+
+  /**
+   * @return false if the file did not exist
+   */
+  boolean delete(String path) throws IOException;
+
+  /**
+   * Moves a file within the storage, the target dir is created if needed
+   */
+  void rename(String from, String to) throws IOException;
+
+  /**
+   * @return the files and dirs directly under the dir, the dirs ending with a slash
+   */
+  List<String> list(String dir) throws IOException;
+
+  /**
+   * @return the name of a file, the part of the path after the last slash
+   */
+  static String name(String path)
+  {
+    return path.substring(path.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * @return the dir of a file, ending with a slash
+   */
+  static String parent(String path)
+  {
+    return path.substring(0, path.lastIndexOf('/') + 1);
+  }
+
+  /**
+   * A file being written. Concurrent uploads of the same path, e.g. by speculative attempts,
+   * must write the same content, the one committed last or first wins depending on the backend.
+   */
+  abstract class Upload extends OutputStream
+  {
+    /**
+     * Closes the stream and makes the file visible at its path
+     */
+    public abstract void commit() throws IOException;
+
+    /**
+     * Discards what was written, may be called from another thread, does nothing after a commit
+     */
+    public abstract void abort();
+
+    /**
+     * @return where the upload is written, for logging
+     */
+    public abstract String describe();
+  }
+}
@@ -1,108 +1,366 @@
 package io.github.interestinglab.waterdrop.output.clickhouse;
 
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataOutputStream;
-import org.apache.hadoop.fs.FileSystem;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.PrivilegedExceptionAction;
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
-public class PartUploader
+/**
+ * Zips the parts of one or more builds and uploads them as $jobId-$key__$part.zip.
+ * The key hashes the checksums.txt of the part with the upload key of the task, so a retried task building the same
+ * rows gets the same names and skips the parts a previous attempt already uploaded.
+ * Every zip is followed by $zip.md5 holding its md5 and size, which tells a complete upload and fills in the
+ * {@link PartInfo} of a skipped part. Zips not in the manifest, and the md5 files, are deleted by the commit.
+ * The zips are written to the {@link PartStorage} of the root path, which decides how they are published.
+ * When the root path is the url of a {@link ReceiveAgent} the part files are pushed to it as they are, unzipped.
+ */
+public class PartUploader implements Closeable
 {
+  private static final String CHECKSUM_SUFFIX = ".md5";
+  // fixed entry times make the zips of the same part identical
+  private static final long ENTRY_TIME = 315532800000L;
+
   private final Logger log;
   private final String hdfsUser;
-  private final Path rootPath;
-  private final File dataDir;
-  private final List<Path> uploadedFiles;
+  private final String rootPath;
+  private final List<File> dataDirs;
+  private final int parallelism;
+  private final TransferMode transferMode;
+  private final S3Settings s3Settings;
+  private final Set<PartStorage.Upload> pendingUploads;
+  private final String jobId;
+  private final String uploadKey;
+  private final List<PartInfo> uploadedParts;
+  private final BuildMetrics metrics;
+  // null when uploading zips to a storage
+  private final ReceiveAgentClient agent;
+  // one storage per task, shared by all the part uploads
+  private PartStorage storage;
 
-  public PartUploader(Logger log, String hdfsUser, String rootPath, File dataDir)
+  /**
+   * @param rootPath  dir of the zips in a {@link PartStorage}, or the table url of a receive agent
+   * @param jobId     prefix of every zip uploaded by the job, to tell them from the zips of other jobs
+   * @param uploadKey identifies the upload within the job, the same for every attempt of a task,
+   *                  e.g. the spark partition and the batch
+   * @param dataDirs  table data dirs of one or more clickhouse local builds, each gets its own keys
+   */
+  public PartUploader(
+      Logger log,
+      String hdfsUser,
+      String rootPath,
+      String jobId,
+      String uploadKey,
+      List<File> dataDirs,
+      BuildOptions options,
+      BuildMetrics metrics
+  )
   {
     this.log = log;
     this.hdfsUser = hdfsUser;
-    this.rootPath = new Path(rootPath);
-    this.dataDir = dataDir;
-    this.uploadedFiles = new LinkedList<>();
+    this.rootPath = rootPath.endsWith("/") ? rootPath : rootPath + "/";
+    this.dataDirs = dataDirs;
+    this.parallelism = options.getUploadParallelism();
+    this.transferMode = options.getTransferMode();
+    this.s3Settings = options.getS3Settings();
+    this.pendingUploads = ConcurrentHashMap.newKeySet();
+    this.jobId = jobId;
+    this.uploadKey = uploadKey;
+    this.uploadedParts = Collections.synchronizedList(new ArrayList<>());
+    this.metrics = metrics;
+    this.agent = ReceiveAgentClient.isAgentUrl(rootPath)
+                 ? new ReceiveAgentClient(log, rootPath, options.getReceiveAgentSecret())
+                 : null;
   }
 
   public void upload() throws IOException, InterruptedException
   {
-    Configuration hadoopConf = new Configuration();
-    UserGroupInformation currentUgi = UserGroupInformation.createRemoteUser(hdfsUser);
-    final String partPrefix = UUID.randomUUID().toString();
-    for (File partDir : dataDir.listFiles()) {
-      if (!partDir.isDirectory()) {
+    // builds of different dirs may produce the same part names, and the same parts from duplicated rows
+    final Map<File, String> partPrefixes = new LinkedHashMap<>();
+    for (int i = 0; i < dataDirs.size(); i++) {
+      final String partPrefix = uploadKey + "/" + i;
+      File[] partDirs = dataDirs.get(i).listFiles();
+      if (partDirs == null) {
         continue;
       }
-      if ("detached".equals(partDir.getName())) {
-        continue;
+      for (File partDir : partDirs) {
+        if (!partDir.isDirectory()) {
+          continue;
+        }
+        if ("detached".equals(partDir.getName())) {
+          continue;
+        }
+        partPrefixes.put(partDir, partPrefix);
       }
+    }
+    final PartStorage storage = agent == null ? getStorage() : null;
+    if (parallelism <= 1 || partPrefixes.size() <= 1) {
+      for (Map.Entry<File, String> part : partPrefixes.entrySet()) {
+        uploadPart(storage, part.getValue(), part.getKey());
+      }
+      return;
+    }
 
-      currentUgi.doAs(new PrivilegedExceptionAction<Boolean>()
-      {
-        @Override
-        public Boolean run() throws Exception
-        {
-          FileSystem fs = rootPath.getFileSystem(hadoopConf);
-          String partName = String.format("%s__%s.zip", partPrefix, partDir.getName());
-          Path tmpIndexPath = new Path(new Path(rootPath, "tmp"), partName);
-          log.info("writing to " + tmpIndexPath);
-          uploadedFiles.add(tmpIndexPath);
-          try (FSDataOutputStream out = fs.create(tmpIndexPath)) {
-            zip(log, partDir, out);
-          }
-          Path targetPath = new Path(rootPath, partName);
-          if (!fs.rename(tmpIndexPath, targetPath)) {
-            throw new IOException(String.format("failed to rename %s to %s", tmpIndexPath, targetPath));
+    ExecutorService exec = Executors.newFixedThreadPool(Math.min(parallelism, partPrefixes.size()));
+    try {
+      List<Future<Boolean>> futures = new ArrayList<>();
+      for (Map.Entry<File, String> part : partPrefixes.entrySet()) {
+        futures.add(exec.submit(() -> uploadPart(storage, part.getValue(), part.getKey())));
+      }
+      for (Future<Boolean> future : futures) {
+        try {
+          future.get();
+        }
+        catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
           }
-          uploadedFiles.add(targetPath);
-          uploadedFiles.remove(tmpIndexPath);
-          return true;
+          throw new IOException("failed to upload part", e.getCause());
         }
-      });
+      }
+    }
+    finally {
+      // stop the other uploads and wait for them, so clean() sees every file they created
+      exec.shutdownNow();
+      exec.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private boolean uploadPart(PartStorage storage, String partPrefix, File partDir) throws IOException
+  {
+    if (agent != null) {
+      return pushPart(partPrefix, partDir);
+    }
+    String partName = String.format("%s-%s__%s.zip", jobId, contentKey(partPrefix, partDir), partDir.getName());
+    String targetPath = rootPath + partName;
+    String checksumPath = targetPath + CHECKSUM_SUFFIX;
+    PartInfo uploaded = readUploaded(storage, targetPath, checksumPath, partDir);
+    if (uploaded != null) {
+      log.info("skipping " + targetPath + " uploaded by a previous attempt");
+      metrics.addSkippedPart(uploaded.getBytes());
+      uploadedParts.add(uploaded);
+      return false;
+    }
+    MessageDigest md5 = ReceiveAgentClient.md5();
+    CountingOutputStream counter;
+    TimedOutputStream timed;
+    long partBytes;
+    long start = System.nanoTime();
+    PartStorage.Upload out = storage.create(targetPath);
+    log.info("writing to " + out.describe());
+    pendingUploads.add(out);
+    timed = new TimedOutputStream(out);
+    counter = new CountingOutputStream(new DigestOutputStream(timed, md5));
+    partBytes = zip(log, partDir, counter);
+    counter.flush();
+    long commitStart = System.nanoTime();
+    out.commit();
+    pendingUploads.remove(out);
+    long commitNanos = System.nanoTime() - commitStart;
+    long total = System.nanoTime() - start;
+    // a multipart upload is still sending its last parts when the zip is written
+    metrics.addPart(
+        partBytes,
+        counter.getCount(),
+        total - commitNanos - timed.getNanos(),
+        timed.getNanos() + commitNanos
+    );
+    String checksum = toHex(md5.digest());
+    writeChecksum(storage, checksumPath, checksum, counter.getCount());
+    uploadedParts.add(new PartInfo(
+        targetPath,
+        partitionId(partDir),
+        readRowCount(partDir),
+        counter.getCount(),
+        checksum
+    ));
+    return true;
+  }
+
+  private boolean pushPart(String partPrefix, File partDir) throws IOException
+  {
+    String partName = String.format("%s-%s__%s", jobId, contentKey(partPrefix, partDir), partDir.getName());
+    PartInfo pushed = agent.find(partName, partitionId(partDir), readRowCount(partDir));
+    if (pushed != null) {
+      log.info("skipping " + pushed.getPath() + " pushed by a previous attempt");
+      metrics.addSkippedPart(pushed.getBytes());
+      uploadedParts.add(pushed);
+      return false;
+    }
+    long start = System.nanoTime();
+    pushed = agent.push(partName, partDir, partitionId(partDir), readRowCount(partDir));
+    metrics.addPart(pushed.getBytes(), pushed.getBytes(), 0, System.nanoTime() - start);
+    uploadedParts.add(pushed);
+    return true;
+  }
+
+  /**
+   * @return the key of the part within the job, random for a part without checksums.txt which can't be recognized
+   */
+  private static String contentKey(String partPrefix, File partDir) throws IOException
+  {
+    File checksums = new File(partDir, "checksums.txt");
+    if (!checksums.isFile()) {
+      return UUID.randomUUID().toString();
+    }
+    MessageDigest sha;
+    try {
+      sha = MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    sha.update((partPrefix + "/" + partDir.getName() + "\n").getBytes(StandardCharsets.UTF_8));
+    sha.update(java.nio.file.Files.readAllBytes(checksums.toPath()));
+    return toHex(Arrays.copyOf(sha.digest(), 16));
+  }
+
+  /**
+   * @return the part of a previous attempt if its zip and md5 file are complete, null to upload it
+   */
+  private PartInfo readUploaded(PartStorage storage, String targetPath, String checksumPath, File partDir)
+      throws IOException
+  {
+    String[] fields;
+    try (InputStream in = storage.open(checksumPath)) {
+      fields = IOUtils.toString(in, StandardCharsets.UTF_8).trim().split("\t");
     }
+    catch (FileNotFoundException e) {
+      return null;
+    }
+    long length = storage.length(targetPath);
+    if (length < 0) {
+      return null;
+    }
+    if (fields.length != 2 || length != Long.parseLong(fields[1])) {
+      log.info(String.format("%s does not match %s, uploading it again", targetPath, checksumPath));
+      return null;
+    }
+    return new PartInfo(targetPath, partitionId(partDir), readRowCount(partDir), length, fields[0]);
   }
 
+  /**
+   * Written after the zip, only an optimization for retries
+   */
+  private void writeChecksum(PartStorage storage, String checksumPath, String checksum, long bytes)
+  {
+    PartStorage.Upload out = null;
+    try {
+      out = storage.create(checksumPath);
+      out.write((checksum + "\t" + bytes + "\n").getBytes(StandardCharsets.UTF_8));
+      out.commit();
+    }
+    catch (IOException e) {
+      log.info("failed to write " + checksumPath, e);
+      if (out != null) {
+        out.abort();
+      }
+    }
+  }
+
+  private static String partitionId(File partDir)
+  {
+    return partDir.getName().substring(0, partDir.getName().indexOf('_'));
+  }
+
+  /**
+   * @return the parts uploaded so far
+   */
+  public List<PartInfo> getUploadedParts()
+  {
+    synchronized (uploadedParts) {
+      return new ArrayList<>(uploadedParts);
+    }
+  }
+
+  private static long readRowCount(File partDir) throws IOException
+  {
+    File countFile = new File(partDir, "count.txt");
+    if (!countFile.isFile()) {
+      return -1;
+    }
+    byte[] count = java.nio.file.Files.readAllBytes(countFile.toPath());
+    return Long.parseLong(new String(count, StandardCharsets.UTF_8).trim());
+  }
+
+  private static String toHex(byte[] bytes)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  private PartStorage getStorage() throws IOException
+  {
+    if (storage == null) {
+      storage = PartStorage.forPath(rootPath, hdfsUser, s3Settings);
+    }
+    return storage;
+  }
+
+  /**
+   * Aborts the zips being written. The uploaded ones are left for a retry of the task,
+   * they are deleted by the manifest commit unless the retry uses them.
+   */
   public void clean()
   {
-    Configuration hadoopConf = new Configuration();
-    UserGroupInformation currentUgi = UserGroupInformation.createRemoteUser(hdfsUser);
+    // the agent keeps what was pushed until the job is committed or aborted
+    for (PartStorage.Upload upload : pendingUploads) {
+      log.info("aborting " + upload.describe());
+      upload.abort();
+    }
+    pendingUploads.clear();
+  }
+
+  @Override
+  public void close()
+  {
+    if (storage == null) {
+      return;
+    }
     try {
-      currentUgi.doAs(new PrivilegedExceptionAction<Boolean>()
-      {
-        @Override
-        public Boolean run() throws Exception
-        {
-          FileSystem fs = rootPath.getFileSystem(hadoopConf);
-          for (Path p : uploadedFiles) {
-            try {
-              fs.delete(p, false);
-            }
-            catch (IOException e) {
-              log.info("failed to clean " + p, e);
-            }
-          }
-          return true;
-        }
-      });
+      storage.close();
     }
-    catch (Exception e) {
-      log.error(e.getMessage(), e);
+    catch (IOException e) {
+      log.info("failed to close the storage", e);
     }
+    storage = null;
   }
 
   /**
-   * Zips the contents of the input directory to the output stream. Sub directories are skipped
+   * Zips the contents of the input directory to the output stream. Sub directories are skipped.
+   * In {@link TransferMode#STORE} mode the files are stored as is, their crc is computed up front.
    *
    * @param directory The directory whose contents should be added to the zip in the output stream.
    * @param out       The output stream to write the zip data to. Caller is responsible for closing this stream.
@@ -120,18 +378,28 @@ public class PartUploader
     final ZipOutputStream zipOut = new ZipOutputStream(out);
 
     long totalSize = 0;
-    for (File file : directory.listFiles()) {
+    File[] files = directory.listFiles();
+    Arrays.sort(files);
+    for (File file : files) {
+      if (!file.isFile()) {
+        continue;
+      }
       log.info(String.format(
           "Adding file[%s] with size[%,d].  Total size so far[%,d]",
           file,
           file.length(),
           totalSize
       ));
-      if (file.length() >= Integer.MAX_VALUE) {
-        zipOut.finish();
-        throw new IOException(String.format("file[%s] too large [%,d]", file, file.length()));
+      // no size limit, ZipOutputStream switches to zip64 for files over 4GB
+      ZipEntry entry = new ZipEntry(file.getName());
+      entry.setTime(ENTRY_TIME);
+      if (transferMode == TransferMode.STORE) {
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(file.length());
+        entry.setCompressedSize(file.length());
+        entry.setCrc(crc32(file));
       }
-      zipOut.putNextEntry(new ZipEntry(file.getName()));
+      zipOut.putNextEntry(entry);
       totalSize += Files.asByteSource(file).copyTo(zipOut);
     }
     zipOut.closeEntry();
@@ -141,4 +409,59 @@ public class PartUploader
 
     return totalSize;
   }
+
+  private static long crc32(File file) throws IOException
+  {
+    CRC32 crc = new CRC32();
+    byte[] buffer = new byte[1 << 16];
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        crc.update(buffer, 0, n);
+      }
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Measures the time spent writing to the storage, the rest of the upload is reading and zipping
+   */
+  private static class TimedOutputStream extends FilterOutputStream
+  {
+    private long nanos;
+
+    TimedOutputStream(OutputStream out)
+    {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      long start = System.nanoTime();
+      out.write(b);
+      nanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      long start = System.nanoTime();
+      out.write(b, off, len);
+      nanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      long start = System.nanoTime();
+      out.flush();
+      nanos += System.nanoTime() - start;
+    }
+
+    long getNanos()
+    {
+      return nanos;
+    }
+  }
 }
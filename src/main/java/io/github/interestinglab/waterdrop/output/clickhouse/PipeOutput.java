@@ -0,0 +1,317 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Reused byte buffer in front of the pipe file. Writers encode values straight into it as UTF-8 or binary,
+ * without building intermediate strings, and it is flushed to the underlying stream only when full.
+ */
+public class PipeOutput implements Closeable
+{
+  public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+  private static final long NEGATIVE_ZERO_BITS = Double.doubleToRawLongBits(-0.0d);
+  // Double.toString and Float.toString switch to scientific notation from 10^7 on
+  private static final double MAX_PLAIN_FLOATING = 1e7;
+  private static final double MIN_PLAIN_FLOATING = 1e-3;
+  // the integers up to 2^53 and 2^24 are exact doubles and floats
+  private static final double MAX_EXACT_DOUBLE = 1L << 53;
+  private static final double MAX_EXACT_FLOAT = 1 << 24;
+  // 10^10 is the largest power of ten which is an exact float
+  private static final int MAX_EXACT_FLOAT_SCALE = 10;
+  // 10^18 is the largest power of ten which fits a long, all of them are exact doubles
+  private static final double[] POWERS_OF_TEN = {
+      1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+  };
+
+  private final OutputStream out;
+  private final byte[] buffer;
+  private final byte[] digits = new byte[20];
+  private int position;
+  private long flushedBytes;
+
+  public PipeOutput(OutputStream out)
+  {
+    this(out, DEFAULT_BUFFER_SIZE);
+  }
+
+  public PipeOutput(OutputStream out, int bufferSize)
+  {
+    this.out = out;
+    this.buffer = new byte[bufferSize];
+  }
+
+  public void writeByte(int b) throws IOException
+  {
+    if (position == buffer.length) {
+      flushBuffer();
+    }
+    buffer[position++] = (byte) b;
+  }
+
+  public void writeBytes(byte[] bytes) throws IOException
+  {
+    writeBytes(bytes, 0, bytes.length);
+  }
+
+  public void writeBytes(byte[] bytes, int offset, int length) throws IOException
+  {
+    if (length > buffer.length - position) {
+      flushBuffer();
+      if (length > buffer.length) {
+        out.write(bytes, offset, length);
+        flushedBytes += length;
+        return;
+      }
+    }
+    System.arraycopy(bytes, offset, buffer, position, length);
+    position += length;
+  }
+
+  public void writeZeros(int length) throws IOException
+  {
+    for (int i = 0; i < length; i++) {
+      writeByte(0);
+    }
+  }
+
+  public void writeLittleEndian(long value, int size) throws IOException
+  {
+    ensureCapacity(size);
+    for (int i = 0; i < size; i++) {
+      buffer[position++] = (byte) (value >>> (i << 3));
+    }
+  }
+
+  public void writeVarInt(long value) throws IOException
+  {
+    ensureCapacity(10);
+    while ((value & ~0x7FL) != 0) {
+      buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buffer[position++] = (byte) value;
+  }
+
+  /**
+   * Writes the chars which are known to be ascii, e.g. the result of {@code BigDecimal.toPlainString()}
+   */
+  public void writeAscii(String s) throws IOException
+  {
+    for (int i = 0; i < s.length(); i++) {
+      writeByte(s.charAt(i));
+    }
+  }
+
+  public void writeUtf8(String s) throws IOException
+  {
+    for (int i = 0; i < s.length(); i++) {
+      i = writeUtf8Char(s, i);
+    }
+  }
+
+  /**
+   * Encodes the char at the index, or the surrogate pair starting at it, as UTF-8.
+   * Malformed surrogates are written as '?' the same way {@code String.getBytes} does.
+   *
+   * @return the index of the last char consumed
+   */
+  public int writeUtf8Char(String s, int index) throws IOException
+  {
+    char c = s.charAt(index);
+    if (c < 0x80) {
+      writeByte(c);
+      return index;
+    }
+    ensureCapacity(4);
+    if (c < 0x800) {
+      buffer[position++] = (byte) (0xC0 | (c >> 6));
+      buffer[position++] = (byte) (0x80 | (c & 0x3F));
+      return index;
+    }
+    if (Character.isSurrogate(c)) {
+      if (Character.isHighSurrogate(c) && index + 1 < s.length() && Character.isLowSurrogate(s.charAt(index + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(index + 1));
+        buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+        buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+        return index + 1;
+      }
+      buffer[position++] = '?';
+      return index;
+    }
+    buffer[position++] = (byte) (0xE0 | (c >> 12));
+    buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+    buffer[position++] = (byte) (0x80 | (c & 0x3F));
+    return index;
+  }
+
+  /**
+   * Same output as {@code Long.toString(value)}
+   */
+  public void writeDecimal(long value) throws IOException
+  {
+    if (value == Long.MIN_VALUE) {
+      writeAscii("-9223372036854775808");
+      return;
+    }
+    if (value < 0) {
+      writeByte('-');
+      value = -value;
+    }
+    int count = 0;
+    do {
+      digits[count++] = (byte) ('0' + value % 10);
+      value /= 10;
+    } while (value != 0);
+    ensureCapacity(count);
+    while (count > 0) {
+      buffer[position++] = digits[--count];
+    }
+  }
+
+  /**
+   * Writes at least width digits of the non negative value, padding with leading zeros
+   */
+  public void writePadded(long value, int width) throws IOException
+  {
+    long limit = 10;
+    for (int i = 1; i < width; i++) {
+      if (value < limit) {
+        writeByte('0');
+      }
+      limit *= 10;
+    }
+    writeDecimal(value);
+  }
+
+  /**
+   * Same output as {@code Double.toString(value)}. Values from 10^-3 to 10^7 are written without allocation, as the
+   * plain decimal with the fewest fraction digits which parses back to the same double, the rest fall back to it.
+   */
+  public void writeDouble(double value) throws IOException
+  {
+    if (value == (long) value
+        && Math.abs(value) < MAX_PLAIN_FLOATING
+        && Double.doubleToRawLongBits(value) != NEGATIVE_ZERO_BITS) {
+      writeDecimal((long) value);
+      writeByte('.');
+      writeByte('0');
+      return;
+    }
+    double abs = Math.abs(value);
+    if (abs >= MIN_PLAIN_FLOATING && abs < MAX_PLAIN_FLOATING) {
+      for (int scale = 1; scale < POWERS_OF_TEN.length; scale++) {
+        double scaled = abs * POWERS_OF_TEN[scale];
+        if (scaled >= MAX_EXACT_DOUBLE) {
+          break;
+        }
+        // a value halfway between two such decimals gets the even last digit, as in toString
+        long unscaled = (long) Math.rint(scaled);
+        // both operands are exact, so the division is rounded the same way as parsing the digits
+        if (unscaled / POWERS_OF_TEN[scale] == abs) {
+          writeScaled(value < 0 ? -unscaled : unscaled, scale);
+          return;
+        }
+      }
+    }
+    writeAscii(Double.toString(value));
+  }
+
+  /**
+   * Same output as {@code Float.toString(value)}. Values from 10^-3 to 10^7 are written without allocation, as the
+   * plain decimal with the fewest fraction digits which parses back to the same float, the rest fall back to it.
+   */
+  public void writeFloat(float value) throws IOException
+  {
+    if (value == (long) value
+        && Math.abs(value) < MAX_PLAIN_FLOATING
+        && Double.doubleToRawLongBits(value) != NEGATIVE_ZERO_BITS) {
+      writeDecimal((long) value);
+      writeByte('.');
+      writeByte('0');
+      return;
+    }
+    float abs = Math.abs(value);
+    if (abs >= MIN_PLAIN_FLOATING && abs < MAX_PLAIN_FLOATING) {
+      for (int scale = 1; scale <= MAX_EXACT_FLOAT_SCALE; scale++) {
+        double scaled = abs * POWERS_OF_TEN[scale];
+        if (scaled >= MAX_EXACT_FLOAT) {
+          break;
+        }
+        // a value halfway between two such decimals, e.g. 148640.125f, gets the even last digit as in toString
+        long unscaled = (long) Math.rint(scaled);
+        // the operands are exact floats, so rounding the double quotient to a float rounds it correctly
+        if ((float) (unscaled / POWERS_OF_TEN[scale]) == abs) {
+          writeScaled(value < 0 ? -unscaled : unscaled, scale);
+          return;
+        }
+      }
+    }
+    writeAscii(Float.toString(value));
+  }
+
+  /**
+   * Same output as {@code BigDecimal.valueOf(unscaled, scale).toPlainString()} for scales from 0 to 18
+   */
+  public void writeScaled(long unscaled, int scale) throws IOException
+  {
+    if (scale == 0) {
+      writeDecimal(unscaled);
+      return;
+    }
+    long divisor = (long) POWERS_OF_TEN[scale];
+    long integral = unscaled / divisor;
+    long fraction = Math.abs(unscaled % divisor);
+    if (unscaled < 0 && integral == 0) {
+      writeByte('-');
+    }
+    writeDecimal(integral);
+    writeByte('.');
+    writePadded(fraction, scale);
+  }
+
+  /**
+   * @return number of bytes written so far, including the ones still in the buffer
+   */
+  public long getBytesWritten()
+  {
+    return flushedBytes + position;
+  }
+
+  public void flush() throws IOException
+  {
+    flushBuffer();
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    try {
+      flushBuffer();
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  private void ensureCapacity(int size) throws IOException
+  {
+    if (buffer.length - position < size) {
+      flushBuffer();
+    }
+  }
+
+  private void flushBuffer() throws IOException
+  {
+    if (position > 0) {
+      out.write(buffer, 0, position);
+      flushedBytes += position;
+      position = 0;
+    }
+  }
+}
@@ -0,0 +1,208 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decouples row serialization from writing to the pipe file. The calling thread fills pooled direct buffers,
+ * a dedicated writer thread drains them into a {@link FileChannel} opened on the fifo.
+ * So spark keeps producing rows while clickhouse local stalls on a merge or sort, up to queueDepth buffers.
+ */
+public class PipelinedFifoOutputStream extends OutputStream
+{
+  private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+  private final String pipeFile;
+  private final Logger log;
+  private final BlockingQueue<ByteBuffer> free;
+  private final BlockingQueue<ByteBuffer> filled;
+  private final Thread writer;
+  private volatile Throwable writeError;
+  private ByteBuffer current;
+  private boolean closed;
+
+  private long bytesWritten;
+  // time the serializer waited for a free buffer, i.e. clickhouse local is the bottleneck
+  private long serializerBlockedNanos;
+  // time the writer waited for a filled buffer, i.e. spark is the bottleneck
+  private volatile long writerIdleNanos;
+  // time the writer spent in write(2) on the fifo
+  private volatile long writerBlockedNanos;
+
+  public PipelinedFifoOutputStream(String pipeFile, int bufferSize, int queueDepth, Logger log)
+  {
+    this.pipeFile = pipeFile;
+    this.log = log;
+    // one buffer being filled, one being written and queueDepth waiting
+    int buffers = queueDepth + 2;
+    this.free = new ArrayBlockingQueue<>(buffers);
+    this.filled = new ArrayBlockingQueue<>(buffers);
+    for (int i = 0; i < buffers; i++) {
+      free.add(ByteBuffer.allocateDirect(bufferSize));
+    }
+    this.current = free.poll();
+    this.writer = new Thread(this::drain, "pipe-writer-" + pipeFile);
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  @Override
+  public void write(int b) throws IOException
+  {
+    if (!current.hasRemaining()) {
+      handOff();
+    }
+    current.put((byte) b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException
+  {
+    while (len > 0) {
+      if (!current.hasRemaining()) {
+        handOff();
+      }
+      int n = Math.min(len, current.remaining());
+      current.put(b, off, n);
+      off += n;
+      len -= n;
+    }
+  }
+
+  private void handOff() throws IOException
+  {
+    checkWriter();
+    long start = System.nanoTime();
+    try {
+      current.flip();
+      bytesWritten += current.remaining();
+      filled.put(current);
+      current = free.take();
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while writing to " + pipeFile, e);
+    }
+    finally {
+      serializerBlockedNanos += System.nanoTime() - start;
+    }
+  }
+
+  private void checkWriter() throws IOException
+  {
+    if (writeError != null) {
+      throw new IOException("failed to write to " + pipeFile, writeError);
+    }
+  }
+
+  private void drain()
+  {
+    try (FileChannel channel = FileChannel.open(Paths.get(pipeFile), StandardOpenOption.WRITE)) {
+      while (true) {
+        long start = System.nanoTime();
+        ByteBuffer buffer = filled.take();
+        long taken = System.nanoTime();
+        writerIdleNanos += taken - start;
+        if (buffer == EOF) {
+          return;
+        }
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        writerBlockedNanos += System.nanoTime() - taken;
+        buffer.clear();
+        free.put(buffer);
+      }
+    }
+    catch (Throwable t) {
+      writeError = t;
+      // interrupted by close, which no longer waits for the buffers
+      if (!(t instanceof InterruptedException) && !Thread.currentThread().isInterrupted()) {
+        discardRemaining();
+      }
+    }
+  }
+
+  /**
+   * Keeps recycling buffers after a failure so the serializer doesn't block forever and sees the error
+   */
+  private void discardRemaining()
+  {
+    try {
+      ByteBuffer buffer;
+      while ((buffer = filled.take()) != EOF) {
+        buffer.clear();
+        free.put(buffer);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() throws IOException
+  {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      // after a failure, e.g. clickhouse local died, the rest is dropped and the error thrown below
+      if (current.position() > 0 && writeError == null) {
+        handOff();
+      }
+    }
+    finally {
+      try {
+        // the writer takes buffers until EOF also after a failure, so it always ends and frees its buffers
+        filled.put(EOF);
+        writer.join();
+      }
+      catch (InterruptedException e) {
+        // the writer may be blocked on a fifo nobody reads, interrupting it closes the channel
+        writer.interrupt();
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted while closing " + pipeFile, e);
+      }
+      finally {
+        log.info(String.format(
+            "wrote %,d bytes to pipe, serializer blocked %,d ms, writer blocked on pipe %,d ms, writer idle %,d ms",
+            bytesWritten,
+            serializerBlockedNanos / 1_000_000,
+            writerBlockedNanos / 1_000_000,
+            writerIdleNanos / 1_000_000
+        ));
+      }
+    }
+    checkWriter();
+  }
+
+  public long getBytesWritten()
+  {
+    return bytesWritten;
+  }
+
+  public long getSerializerBlockedNanos()
+  {
+    return serializerBlockedNanos;
+  }
+
+  public long getWriterBlockedNanos()
+  {
+    return writerBlockedNanos;
+  }
+
+  public long getWriterIdleNanos()
+  {
+    return writerIdleNanos;
+  }
+}
@@ -0,0 +1,101 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import io.github.interestinglab.waterdrop.utils.CompressionUtils;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Unpacks plugins.tar.gz in cluster mode once per work dir instead of once per task.
+ * Tasks of the same executor are serialized on an in memory lock, other processes sharing the dir on a file lock,
+ * and a marker file holding the md5 of the archive tells whether the dir is already unpacked.
+ */
+public class PluginUnpacker
+{
+  private static final String ARCHIVE = "plugins.tar.gz";
+  private static final String LOCK_FILE = ".plugins.lock";
+  private static final String MARKER_FILE = ".plugins.unpacked";
+
+  // work dir -> size and mtime of the archive last unpacked, to skip hashing it again in this jvm
+  private static final ConcurrentMap<String, String> unpacked = new ConcurrentHashMap<>();
+  private static final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<>();
+
+  private PluginUnpacker()
+  {
+  }
+
+  /**
+   * Returns once the plugins are unpacked in the work dir, by this call or an earlier one
+   */
+  public static void unpack(File workDir, Logger log) throws IOException, ArchiveException
+  {
+    File archive = new File(workDir, ARCHIVE);
+    String key = workDir.getCanonicalPath();
+    synchronized (locks.computeIfAbsent(key, k -> new Object())) {
+      String stamp = archive.length() + ":" + archive.lastModified();
+      if (stamp.equals(unpacked.get(key))) {
+        return;
+      }
+      String checksum = md5(archive);
+      File marker = new File(workDir, MARKER_FILE);
+      try (FileChannel channel = FileChannel.open(
+          new File(workDir, LOCK_FILE).toPath(),
+          StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE
+      ); FileLock ignored = channel.lock()) {
+        if (marker.isFile() && checksum.equals(new String(Files.readAllBytes(marker.toPath()), StandardCharsets.UTF_8))) {
+          log.info("plugins already unpacked in " + key);
+        } else {
+          log.info("preparing cluster mode work dir files...");
+          File tar = CompressionUtils.unGzip(archive, workDir);
+          CompressionUtils.unTar(tar, workDir);
+          if (!tar.delete()) {
+            log.info("failed to delete " + tar);
+          }
+          // rename, so a crash never leaves a marker for half unpacked files
+          File tmp = new File(workDir, MARKER_FILE + ".tmp");
+          Files.write(tmp.toPath(), checksum.getBytes(StandardCharsets.UTF_8));
+          Files.move(tmp.toPath(), marker.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      unpacked.put(key, stamp);
+    }
+  }
+
+  private static String md5(File file) throws IOException
+  {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    byte[] buffer = new byte[1 << 20];
+    try (InputStream in = new FileInputStream(file)) {
+      int n;
+      while ((n = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, n);
+      }
+    }
+    StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,234 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples the peak resident memory (VmHWM) of a clickhouse process from /proc/$pid/status.
+ * The pid is the one of the started process, or of its clickhouse descendant when it is build.sh,
+ * looked up once it shows up and then only polled. Reports 0 where /proc is not available.
+ * The descendants are also what {@link #killAll(Process)} kills with a stalled build.
+ */
+public class ProcessMemoryProbe implements Closeable
+{
+  private static final long INTERVAL_MILLIS = 200;
+  private static final String PROCESS_NAME = "clickhouse";
+  private static final File PROC = new File("/proc");
+  // /proc/$pid/task/$tid/children needs a kernel built with CONFIG_PROC_CHILDREN, else the parents are read from stat
+  private static final boolean CHILDREN_LISTED = childrenListed();
+
+  private final long pid;
+  private final Thread thread;
+  private volatile long peakRssBytes;
+  private volatile boolean closed;
+
+  /**
+   * @param name names the sampling thread
+   */
+  public ProcessMemoryProbe(Process process, String name)
+  {
+    this.pid = pid(process);
+    this.thread = new Thread(this::sample, "memory-probe-" + name);
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  private void sample()
+  {
+    long clickhouse = -1;
+    while (!closed && pid > 0 && PROC.isDirectory()) {
+      if (clickhouse < 0) {
+        clickhouse = findProcess(pid);
+      }
+      if (clickhouse > 0) {
+        long hwm = readHighWaterMark(clickhouse);
+        if (hwm < 0) {
+          // exited, a later build.sh step may start another one
+          clickhouse = -1;
+        } else {
+          peakRssBytes = Math.max(peakRssBytes, hwm);
+        }
+      }
+      try {
+        Thread.sleep(INTERVAL_MILLIS);
+      }
+      catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * @return pid of the first clickhouse process among the root and its descendants, -1 if there is none yet
+   */
+  private static long findProcess(long root)
+  {
+    List<Long> pids = new ArrayList<>();
+    pids.add(root);
+    for (int i = 0; i < pids.size(); i++) {
+      try {
+        String comm = new String(Files.readAllBytes(procFile(pids.get(i), "comm")), StandardCharsets.UTF_8);
+        if (comm.trim().startsWith(PROCESS_NAME)) {
+          return pids.get(i);
+        }
+      }
+      catch (IOException e) {
+        // gone
+        continue;
+      }
+      pids.addAll(children(pids.get(i)));
+    }
+    return -1;
+  }
+
+  /**
+   * Kills the process and everything it started, e.g. build.sh and the cat and clickhouse local of its pipe,
+   * which would otherwise keep the work dir busy after build.sh is gone
+   */
+  public static void killAll(Process process) throws IOException, InterruptedException
+  {
+    long root = pid(process);
+    if (root > 0 && PROC.isDirectory()) {
+      // collected before any is killed, the orphans of a killed parent are no longer found under it
+      List<Long> pids = new ArrayList<>();
+      pids.add(root);
+      for (int i = 0; i < pids.size(); i++) {
+        pids.addAll(children(pids.get(i)));
+      }
+      List<String> cmd = new ArrayList<>();
+      cmd.add("kill");
+      cmd.add("-9");
+      for (long pid : pids) {
+        cmd.add(String.valueOf(pid));
+      }
+      Runtime.getRuntime().exec(cmd.toArray(new String[0])).waitFor();
+    }
+  }
+
+  private static List<Long> children(long pid)
+  {
+    List<Long> result = new ArrayList<>();
+    if (!CHILDREN_LISTED) {
+      return childrenByParent(pid);
+    }
+    File[] tasks = new File(PROC, pid + "/task").listFiles();
+    if (tasks == null) {
+      return result;
+    }
+    for (File task : tasks) {
+      try {
+        String children = new String(Files.readAllBytes(new File(task, "children").toPath()), StandardCharsets.UTF_8);
+        for (String child : children.trim().split("\\s+")) {
+          if (!child.isEmpty()) {
+            result.add(Long.parseLong(child));
+          }
+        }
+      }
+      catch (IOException e) {
+        // gone
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Lists /proc for the processes whose parent is pid, only where the kernel doesn't list the children
+   */
+  private static List<Long> childrenByParent(long pid)
+  {
+    List<Long> result = new ArrayList<>();
+    String[] pids = PROC.list();
+    if (pids == null) {
+      return result;
+    }
+    for (String candidate : pids) {
+      if (candidate.isEmpty() || !Character.isDigit(candidate.charAt(0))) {
+        continue;
+      }
+      try {
+        Path statFile = procFile(Long.parseLong(candidate), "stat");
+        String stat = new String(Files.readAllBytes(statFile), StandardCharsets.UTF_8);
+        // pid (comm) state ppid ..., where comm may contain spaces and parentheses
+        String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+        if (Long.parseLong(fields[1]) == pid) {
+          result.add(Long.parseLong(candidate));
+        }
+      }
+      catch (IOException | RuntimeException e) {
+        // gone, or owned by another user
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return pid of the process, -1 if the jvm doesn't tell it
+   */
+  static long pid(Process process)
+  {
+    try {
+      // Process.pid() from java 9 on
+      return (Long) Process.class.getMethod("pid").invoke(process);
+    }
+    catch (ReflectiveOperationException e) {
+      // java 8 keeps it in UNIXProcess
+    }
+    try {
+      Field field = process.getClass().getDeclaredField("pid");
+      field.setAccessible(true);
+      return field.getInt(process);
+    }
+    catch (ReflectiveOperationException | RuntimeException e) {
+      return -1;
+    }
+  }
+
+  private static boolean childrenListed()
+  {
+    File[] tasks = new File(PROC, "self/task").listFiles();
+    return tasks != null && tasks.length > 0 && new File(tasks[0], "children").exists();
+  }
+
+  private static Path procFile(long pid, String name)
+  {
+    return new File(PROC, pid + "/" + name).toPath();
+  }
+
+  /**
+   * @return VmHWM in bytes, -1 if the process is gone
+   */
+  private static long readHighWaterMark(long pid)
+  {
+    try {
+      for (String line : Files.readAllLines(procFile(pid, "status"), StandardCharsets.UTF_8)) {
+        if (line.startsWith("VmHWM:")) {
+          // VmHWM:     12345 kB
+          return Long.parseLong(line.substring("VmHWM:".length()).replace("kB", "").trim()) * 1024;
+        }
+      }
+      return -1;
+    }
+    catch (IOException e) {
+      return -1;
+    }
+  }
+
+  public long getPeakRssBytes()
+  {
+    return peakRssBytes;
+  }
+
+  @Override
+  public void close()
+  {
+    closed = true;
+    thread.interrupt();
+  }
+}
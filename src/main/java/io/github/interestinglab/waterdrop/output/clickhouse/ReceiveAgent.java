@@ -0,0 +1,446 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Runs next to a clickhouse server and receives the parts pushed by {@link ReceiveAgentClient}, in place of
+ * uploading zips to hdfs and attaching them with {@link BulkAttacher}. The files of a part are written straight
+ * into the detached dir of the disk with the most free space, and the part is staged as detached/$name once
+ * the size and md5 of every file match what the task sent. The driver then commits the parts of the successful
+ * attempts, which are attached, and everything else the job pushed is deleted, as with the job manifest.
+ * <p>
+ * Requests, all under /$database/$table/:
+ * <ul>
+ * <li>PUT $name/$upload/$file writes one file of the part to detached/$name.$upload</li>
+ * <li>POST $name/$upload with "$file\t$bytes\t$md5" lines checks the files and stages the part</li>
+ * <li>GET $name answers "$md5\t$bytes" of a staged part, 404 if there is none</li>
+ * <li>POST _commit/$jobId with one part name per line attaches them and deletes the rest of the job</li>
+ * <li>POST _abort/$jobId deletes everything of the job</li>
+ * </ul>
+ * Every request carries the shared secret in the {@value #SECRET_HEADER} header, others are refused with 401.
+ * <p>
+ * Usage: {@code RECEIVE_AGENT_SECRET=... java -cp "clickhouse-offline-build-1.0.jar:$(hadoop classpath)"
+ * io.github.interestinglab.waterdrop.output.clickhouse.ReceiveAgent --host localhost:8123
+ * [--bind 0.0.0.0 --port 9123 --user default --password pwd --threads 16 --retries 3]}
+ */
+public class ReceiveAgent
+{
+  static final String SECRET_HEADER = "X-Receive-Agent-Secret";
+  static final String SECRET_ENV = "RECEIVE_AGENT_SECRET";
+
+  private static final String CHECKSUM_SUFFIX = ".md5";
+  private static final Pattern TABLE_NAME = Pattern.compile("[A-Za-z0-9_]+");
+  // job ids, content keys, part and file names of clickhouse, never . or ..
+  private static final Pattern FILE_NAME = Pattern.compile("[A-Za-z0-9_%-][A-Za-z0-9_.%-]*");
+
+  private final Logger log;
+  private final String url;
+  private final String user;
+  private final String password;
+  private final int retries;
+  private final byte[] secret;
+  // $database/$table/$name/$upload -> the files received so far
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+  // the parts of every task share names like 202001_1_1_0, each is detached under a unique block number
+  private final AtomicLong blockNumber = new AtomicLong(System.currentTimeMillis());
+  private HttpServer server;
+  private ExecutorService exec;
+
+  /**
+   * @param url base url of the clickhouse http interface, e.g. http://localhost:8123/
+   * @param secret shared with the clients, see {@link BuildOptions#getReceiveAgentSecret()}
+   */
+  public ReceiveAgent(Logger log, String url, String user, String password, int retries, String secret)
+  {
+    if (secret == null || secret.isEmpty()) {
+      throw new IllegalArgumentException("the receive agent needs a secret");
+    }
+    this.log = log;
+    this.url = url.endsWith("/") ? url : url + "/";
+    this.user = user;
+    this.password = password;
+    this.retries = retries;
+    this.secret = secret.getBytes(StandardCharsets.UTF_8);
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    Map<String, String> options = BulkAttacher.parseArgs(args);
+    if (!options.containsKey("host")) {
+      throw new IllegalArgumentException("option --host is required");
+    }
+    Logger log = LoggerFactory.getLogger(ReceiveAgent.class);
+    ReceiveAgent agent = new ReceiveAgent(
+        log,
+        "http://" + options.get("host"),
+        options.get("user"),
+        options.get("password"),
+        Integer.parseInt(options.getOrDefault("retries", "3")),
+        // preferred to --secret, which shows in the process list
+        System.getenv().getOrDefault(SECRET_ENV, options.get("secret"))
+    );
+    InetSocketAddress address = agent.start(
+        options.get("bind"),
+        Integer.parseInt(options.getOrDefault("port", "9123")),
+        Integer.parseInt(options.getOrDefault("threads", "16"))
+    );
+    // the server threads keep running
+    log.info("receiving parts on " + address);
+  }
+
+  /**
+   * @param bind address to listen on, null for all
+   * @param port 0 for any free port
+   *
+   * @return the address listened on
+   */
+  public InetSocketAddress start(String bind, int port, int threads) throws IOException
+  {
+    exec = Executors.newFixedThreadPool(threads);
+    server = HttpServer.create(bind == null ? new InetSocketAddress(port) : new InetSocketAddress(bind, port), 0);
+    server.createContext("/", this::handle);
+    server.setExecutor(exec);
+    server.start();
+    return server.getAddress();
+  }
+
+  public void stop()
+  {
+    server.stop(0);
+    exec.shutdownNow();
+  }
+
+  private void handle(HttpExchange exchange) throws IOException
+  {
+    int status = HttpURLConnection.HTTP_OK;
+    String response;
+    try (InputStream body = exchange.getRequestBody()) {
+      String sent = exchange.getRequestHeaders().getFirst(SECRET_HEADER);
+      if (sent == null || !MessageDigest.isEqual(secret, sent.getBytes(StandardCharsets.UTF_8))) {
+        throw new SecurityException("missing or wrong " + SECRET_HEADER);
+      }
+      String[] path = exchange.getRequestURI().getRawPath().substring(1).split("/");
+      for (int i = 0; i < path.length; i++) {
+        path[i] = URLDecoder.decode(path[i], "UTF-8");
+        if (!(i < 2 ? TABLE_NAME : FILE_NAME).matcher(path[i]).matches()) {
+          throw new IllegalArgumentException("invalid name " + path[i]);
+        }
+      }
+      String method = exchange.getRequestMethod();
+      if (path.length == 5 && "PUT".equals(method)) {
+        response = receiveFile(path[0], path[1], path[2], path[3], path[4], body);
+      } else if (path.length == 4 && "POST".equals(method) && "_commit".equals(path[2])) {
+        response = commit(path[0], path[1], path[3], IOUtils.readLines(body, StandardCharsets.UTF_8));
+      } else if (path.length == 4 && "POST".equals(method) && "_abort".equals(path[2])) {
+        response = String.valueOf(abort(path[0], path[1], path[3]));
+      } else if (path.length == 4 && "POST".equals(method)) {
+        response = stage(path[0], path[1], path[2], path[3], IOUtils.readLines(body, StandardCharsets.UTF_8));
+      } else if (path.length == 3 && "GET".equals(method)) {
+        response = find(path[0], path[1], path[2]);
+        if (response == null) {
+          status = HttpURLConnection.HTTP_NOT_FOUND;
+          response = path[2] + " is not staged";
+        }
+      } else {
+        status = HttpURLConnection.HTTP_NOT_FOUND;
+        response = "unknown request " + method + " " + exchange.getRequestURI();
+      }
+    }
+    catch (SecurityException e) {
+      log.warn("refused " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + " from "
+               + exchange.getRemoteAddress() + ": " + e.getMessage());
+      status = HttpURLConnection.HTTP_UNAUTHORIZED;
+      response = e.getMessage();
+    }
+    catch (IllegalArgumentException e) {
+      status = HttpURLConnection.HTTP_BAD_REQUEST;
+      response = e.getMessage();
+    }
+    catch (Exception e) {
+      log.error("failed to handle " + exchange.getRequestMethod() + " " + exchange.getRequestURI(), e);
+      status = HttpURLConnection.HTTP_INTERNAL_ERROR;
+      response = String.valueOf(e.getMessage());
+    }
+    byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * @return md5 of the file as received
+   */
+  private String receiveFile(String database, String table, String name, String uploadId, String file, InputStream in)
+      throws IOException
+  {
+    Upload upload = upload(database, table, name, uploadId);
+    MessageDigest md5 = ReceiveAgentClient.md5();
+    long bytes;
+    try (OutputStream out = new FileOutputStream(new File(upload.dir, file))) {
+      bytes = IOUtils.copyLarge(new DigestInputStream(in, md5), out);
+    }
+    String checksum = ReceiveAgentClient.toHex(md5.digest());
+    upload.files.put(file, bytes + "\t" + checksum);
+    return checksum;
+  }
+
+  private synchronized Upload upload(String database, String table, String name, String uploadId) throws IOException
+  {
+    String key = String.join("/", database, table, name, uploadId);
+    Upload upload = uploads.get(key);
+    if (upload == null) {
+      File dir = new File(new File(pickDisk(database, table), "detached"), name + "." + uploadId);
+      if (!dir.mkdirs()) {
+        throw new IOException("failed to create " + dir);
+      }
+      upload = new Upload(dir);
+      uploads.put(key, upload);
+    }
+    return upload;
+  }
+
+  private String pickDisk(String database, String table) throws IOException
+  {
+    String best = null;
+    long bestFree = Long.MIN_VALUE;
+    for (String disk : BulkAttacher.dataPaths(url, user, password, database, table)) {
+      long free = new File(disk).getUsableSpace();
+      if (free > bestFree) {
+        best = disk;
+        bestFree = free;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Moves the upload to detached/$name once every file sent was received intact, and writes its checksum beside
+   *
+   * @return "$md5\t$bytes" of the part
+   */
+  private String stage(String database, String table, String name, String uploadId, List<String> sent)
+      throws IOException
+  {
+    Upload upload = uploads.remove(String.join("/", database, table, name, uploadId));
+    if (upload == null) {
+      throw new IllegalArgumentException("nothing received for " + name + "/" + uploadId);
+    }
+    try {
+      Map<String, String> expected = new HashMap<>();
+      long bytes = 0;
+      for (String line : sent) {
+        String[] fields = line.split("\t");
+        if (fields.length != 3) {
+          throw new IllegalArgumentException("invalid file line " + line);
+        }
+        expected.put(fields[0], fields[1] + "\t" + fields[2]);
+        bytes += Long.parseLong(fields[1]);
+      }
+      if (!expected.equals(upload.files)) {
+        throw new IOException(String.format(
+            "files of %s do not match, sent %s, received %s",
+            name,
+            expected,
+            upload.files
+        ));
+      }
+      String checksum = ReceiveAgentClient.md5Hex(String.join("\n", sent) + "\n") + "\t" + bytes;
+      File detached = upload.dir.getParentFile();
+      File staged = new File(detached, name);
+      if (!upload.dir.renameTo(staged)) {
+        if (!staged.isDirectory()) {
+          throw new IOException(String.format("failed to rename %s to %s", upload.dir, staged));
+        }
+        // the same part staged by another attempt
+        FileUtils.deleteDirectory(upload.dir);
+        return checksum;
+      }
+      File tmp = new File(detached, name + CHECKSUM_SUFFIX + "." + uploadId);
+      FileUtils.writeStringToFile(tmp, checksum, StandardCharsets.UTF_8);
+      if (!tmp.renameTo(new File(detached, name + CHECKSUM_SUFFIX))) {
+        FileUtils.deleteQuietly(tmp);
+      }
+      log.info(String.format("staged %s with %d files and %,d bytes in %s", name, expected.size(), bytes, detached));
+      return checksum;
+    }
+    catch (IOException | RuntimeException e) {
+      FileUtils.deleteDirectory(upload.dir);
+      throw e;
+    }
+  }
+
+  /**
+   * @return "$md5\t$bytes" of the staged part, null if not staged
+   */
+  private String find(String database, String table, String name) throws IOException
+  {
+    for (String disk : BulkAttacher.dataPaths(url, user, password, database, table)) {
+      File detached = new File(disk, "detached");
+      File checksum = new File(detached, name + CHECKSUM_SUFFIX);
+      if (checksum.isFile() && new File(detached, name).isDirectory()) {
+        return FileUtils.readFileToString(checksum, StandardCharsets.UTF_8).trim();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Attaches the staged parts of the job, a part which fails is left detached under its new name
+   *
+   * @return "$attached\t$deleted", deleted counts what other attempts left
+   */
+  private String commit(String database, String table, String jobId, List<String> names) throws Exception
+  {
+    List<String> disks = BulkAttacher.dataPaths(url, user, password, database, table);
+    int attached = 0;
+    List<String> failed = new ArrayList<>();
+    for (String name : names) {
+      if (name.isEmpty()) {
+        continue;
+      }
+      if (!name.startsWith(jobId + "-") || !FILE_NAME.matcher(name).matches()) {
+        throw new IllegalArgumentException("invalid part " + name + " of job " + jobId);
+      }
+      if (attach(database, table, disks, name)) {
+        attached++;
+      } else {
+        failed.add(name);
+      }
+    }
+    int deleted = deleteJobFiles(database, table, disks, jobId);
+    log.info(String.format(
+        "job %s attached %d parts to %s.%s, %d failed, deleted %d files of other attempts",
+        jobId,
+        attached,
+        database,
+        table,
+        failed.size(),
+        deleted
+    ));
+    if (!failed.isEmpty()) {
+      throw new IOException(String.format("%d parts of job %s failed to attach: %s", failed.size(), jobId, failed));
+    }
+    return attached + "\t" + deleted;
+  }
+
+  /**
+   * The part is renamed once and attached under the same name on every attempt, so an attempt following one whose
+   * response was lost finds the detached dir consumed by the attach instead of failing the part or attaching it twice
+   */
+  private boolean attach(String database, String table, List<String> disks, String name) throws InterruptedException
+  {
+    File staged = null;
+    for (String disk : disks) {
+      File dir = new File(new File(disk, "detached"), name);
+      if (dir.isDirectory()) {
+        staged = dir;
+      }
+    }
+    if (staged == null) {
+      log.error(name + " is not staged");
+      return false;
+    }
+    String partName = BulkAttacher.detachedName(name, blockNumber.incrementAndGet());
+    File detached = new File(staged.getParentFile(), partName);
+    if (!staged.renameTo(detached)) {
+      log.error(String.format("failed to rename %s to %s", staged, detached));
+      return false;
+    }
+    for (int attempt = 0; ; attempt++) {
+      try {
+        File attaching = new File(detached.getParentFile(), BulkAttacher.ATTACHING_PREFIX + partName);
+        if (attempt > 0 && !detached.exists() && !attaching.exists()) {
+          log.info("attach of " + name + " as " + partName + " went through before its response was lost");
+        } else {
+          BulkAttacher.query(
+              url,
+              user,
+              password,
+              database,
+              "alter table " + database + "." + table + " attach part '" + partName + "'"
+          );
+        }
+        log.info("attached " + name + " as " + partName + " in " + detached.getParent());
+        return true;
+      }
+      catch (IOException e) {
+        if (attempt >= retries) {
+          log.error("failed to attach " + name + ", left in " + detached, e);
+          return false;
+        }
+        log.warn("failed to attach " + name + ", retrying", e);
+        Thread.sleep(1000L << attempt);
+      }
+    }
+  }
+
+  /**
+   * @return number of files deleted
+   */
+  private int abort(String database, String table, String jobId) throws IOException
+  {
+    int deleted = deleteJobFiles(database, table, BulkAttacher.dataPaths(url, user, password, database, table), jobId);
+    log.info("deleted " + deleted + " files of failed job " + jobId);
+    return deleted;
+  }
+
+  /**
+   * Deletes the uploads, staged parts and checksums of the job left in the detached dirs
+   */
+  private int deleteJobFiles(String database, String table, List<String> disks, String jobId) throws IOException
+  {
+    String prefix = jobId + "-";
+    uploads.keySet().removeIf(key -> key.startsWith(String.join("/", database, table, prefix)));
+    int deleted = 0;
+    for (String disk : disks) {
+      File[] files = new File(disk, "detached").listFiles((dir, name) -> name.startsWith(prefix));
+      if (files == null) {
+        continue;
+      }
+      for (File file : files) {
+        FileUtils.forceDelete(file);
+        deleted++;
+      }
+    }
+    return deleted;
+  }
+
+  private static class Upload
+  {
+    private final File dir;
+    // file -> "$bytes\t$md5"
+    private final Map<String, String> files = new ConcurrentHashMap<>();
+
+    Upload(File dir)
+    {
+      this.dir = dir;
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Talks to the {@link ReceiveAgent} of one clickhouse node for one table, at http://$agent/$database/$table/.
+ * Tasks push the files of their parts, which the agent stages in the detached dir of the table,
+ * and the driver commits the parts of the successful attempts, which the agent attaches.
+ */
+public class ReceiveAgentClient
+{
+  private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+  private static final int READ_TIMEOUT_MILLIS = 600_000;
+
+  private final Logger log;
+  private final String tableUrl;
+  private final String secret;
+
+  /**
+   * @param tableUrl see {@link #tableUrl(String, String, String)}
+   * @param secret sent in every request, see {@link BuildOptions#getReceiveAgentSecret()}
+   */
+  public ReceiveAgentClient(Logger log, String tableUrl, String secret)
+  {
+    this.log = log;
+    this.tableUrl = tableUrl.endsWith("/") ? tableUrl : tableUrl + "/";
+    this.secret = secret;
+  }
+
+  /**
+   * @param agent host:port of the agent
+   */
+  public static String tableUrl(String agent, String database, String table)
+  {
+    try {
+      return "http://" + agent + "/" + URLEncoder.encode(database, "UTF-8") + "/" + URLEncoder.encode(table, "UTF-8")
+             + "/";
+    }
+    catch (IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return true if the parts of an upload root are pushed to an agent instead of uploaded to hdfs
+   */
+  public static boolean isAgentUrl(String rootPath)
+  {
+    return rootPath.startsWith("http://");
+  }
+
+  /**
+   * @return the part staged by a previous attempt, null if there is none
+   */
+  public PartInfo find(String name, String partitionId, long rows) throws IOException
+  {
+    HttpURLConnection conn = open("GET", name);
+    try {
+      if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+        return null;
+      }
+      String[] fields = readResponse(conn, "find " + name).trim().split("\t");
+      return new PartInfo(tableUrl + name, partitionId, rows, Long.parseLong(fields[1]), fields[0]);
+    }
+    finally {
+      conn.disconnect();
+    }
+  }
+
+  /**
+   * Sends every file of the part, then the size and md5 of each, which the agent checks before staging the part.
+   * Concurrent attempts pushing the same part send their files to different upload dirs.
+   *
+   * @return the staged part, its checksum is the md5 of the file list
+   */
+  public PartInfo push(String name, File partDir, String partitionId, long rows) throws IOException
+  {
+    File[] files = partDir.listFiles(File::isFile);
+    if (files == null) {
+      throw new IOException("failed to list " + partDir);
+    }
+    Arrays.sort(files);
+    String upload = name + "/" + UUID.randomUUID();
+    StringBuilder list = new StringBuilder();
+    long bytes = 0;
+    for (File file : files) {
+      list.append(file.getName()).append('\t').append(file.length()).append('\t').append(pushFile(upload, file))
+          .append('\n');
+      bytes += file.length();
+    }
+    String response = post(upload, list.toString());
+    log.info(String.format("pushed %d files of %s to %s%s: %s", files.length, partDir, tableUrl, name, response));
+    return new PartInfo(tableUrl + name, partitionId, rows, bytes, md5Hex(list.toString()));
+  }
+
+  private String pushFile(String upload, File file) throws IOException
+  {
+    MessageDigest md5 = md5();
+    HttpURLConnection conn = open("PUT", upload + "/" + URLEncoder.encode(file.getName(), "UTF-8"));
+    try {
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(file.length());
+      try (InputStream in = new DigestInputStream(new FileInputStream(file), md5);
+           OutputStream out = conn.getOutputStream()) {
+        IOUtils.copyLarge(in, out);
+      }
+      String checksum = toHex(md5.digest());
+      String received = readResponse(conn, "push " + file).trim();
+      if (!checksum.equals(received)) {
+        throw new IOException(String.format("%s sent with md5 %s, received with %s", file, checksum, received));
+      }
+      return checksum;
+    }
+    finally {
+      conn.disconnect();
+    }
+  }
+
+  /**
+   * Attaches the parts of the job and deletes everything else the job pushed to this table
+   */
+  public void commit(String jobId, List<String> names) throws IOException
+  {
+    String response = post("_commit/" + jobId, String.join("\n", names));
+    log.info(String.format("committed %d parts of job %s to %s: %s", names.size(), jobId, tableUrl, response));
+  }
+
+  /**
+   * Deletes everything the failed job pushed to this table
+   */
+  public void abort(String jobId) throws IOException
+  {
+    post("_abort/" + jobId, "");
+  }
+
+  private String post(String path, String body) throws IOException
+  {
+    HttpURLConnection conn = open("POST", path);
+    try {
+      byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+      conn.setDoOutput(true);
+      // a streamed request is not sent again when the connection drops, which would attach the parts twice
+      conn.setFixedLengthStreamingMode(bytes.length);
+      try (OutputStream out = conn.getOutputStream()) {
+        out.write(bytes);
+      }
+      return readResponse(conn, "POST " + tableUrl + path);
+    }
+    finally {
+      conn.disconnect();
+    }
+  }
+
+  private HttpURLConnection open(String method, String path) throws IOException
+  {
+    HttpURLConnection conn = (HttpURLConnection) new URL(tableUrl + path).openConnection();
+    conn.setRequestMethod(method);
+    conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+    conn.setRequestProperty(ReceiveAgent.SECRET_HEADER, secret);
+    return conn;
+  }
+
+  private static String readResponse(HttpURLConnection conn, String request) throws IOException
+  {
+    int status = conn.getResponseCode();
+    InputStream body = status == HttpURLConnection.HTTP_OK ? conn.getInputStream() : conn.getErrorStream();
+    String response = body == null ? "" : IOUtils.toString(body, StandardCharsets.UTF_8);
+    if (status != HttpURLConnection.HTTP_OK) {
+      throw new IOException(String.format("%s failed with %d: %s", request, status, response));
+    }
+    return response;
+  }
+
+  static String md5Hex(String text)
+  {
+    return toHex(md5().digest(text.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  static MessageDigest md5()
+  {
+    try {
+      return MessageDigest.getInstance("MD5");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String toHex(byte[] bytes)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,607 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import io.github.interestinglab.waterdrop.config.ConfigRuntimeException;
+import org.apache.spark.sql.Row;
+import org.slf4j.Logger;
+import scala.collection.JavaConverters;
+import scala.collection.Seq;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Writes rows to the pipe file using clickhouse RowBinary format, so clickhouse local doesn't need to parse text.
+ * One encoder is created per column from the clickhouse type string before the first row is written.
+ */
+public class RowBinaryWriter extends RowWriter<Row>
+{
+  private final Encoder[] encoders;
+  // encoded value written for null cells, either the configured default value or the type's zero value
+  private final byte[][] nullValues;
+
+  public RowBinaryWriter(OutputStream pipe, String[] columnTypes, Object[] defaultValues, Logger log) throws IOException
+  {
+    super(pipe, log);
+    this.encoders = createEncoders(columnTypes);
+    this.nullValues = new byte[encoders.length][];
+    for (int i = 0; i < encoders.length; i++) {
+      nullValues[i] = encodeNull(encoders[i], defaultValues[i]);
+    }
+  }
+
+  /**
+   * @throws ConfigRuntimeException if any of the types can't be written as RowBinary
+   */
+  public static Encoder[] createEncoders(String[] columnTypes)
+  {
+    Encoder[] encoders = new Encoder[columnTypes.length];
+    for (int i = 0; i < columnTypes.length; i++) {
+      encoders[i] = createEncoder(ClickHouseType.parse(columnTypes[i]));
+    }
+    return encoders;
+  }
+
+  private static byte[] encodeNull(Encoder encoder, Object defaultValue) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PipeOutput scratch = new PipeOutput(bytes);
+    if (defaultValue == null) {
+      encoder.writeNull(scratch);
+    } else {
+      encoder.write(scratch, defaultValue);
+    }
+    scratch.close();
+    return bytes.toByteArray();
+  }
+
+  @Override
+  protected void writeRow(Row row) throws IOException
+  {
+    for (int i = 0; i < encoders.length; i++) {
+      if (row.isNullAt(i)) {
+        out.writeBytes(nullValues[i]);
+      } else {
+        encoders[i].write(out, row.get(i));
+      }
+    }
+  }
+
+  private static Encoder createEncoder(ClickHouseType type)
+  {
+    switch (type.getName()) {
+      case "Nullable":
+        return new NullableEncoder(createEncoder(type.getTypeArgument(0)));
+      case "LowCardinality":
+        // LowCardinality is transparent in RowBinary
+        return createEncoder(type.getTypeArgument(0));
+      case "SimpleAggregateFunction":
+        return createEncoder(type.getTypeArgument(1));
+      case "Array":
+        return new ArrayEncoder(createEncoder(type.getTypeArgument(0)));
+      case "String":
+        return new StringEncoder();
+      case "FixedString":
+        return new FixedStringEncoder(type.getIntArgument(0));
+      case "Int8":
+      case "UInt8":
+      case "Bool":
+        return new IntegerEncoder(1);
+      case "Int16":
+      case "UInt16":
+        return new IntegerEncoder(2);
+      case "Int32":
+      case "UInt32":
+        return new IntegerEncoder(4);
+      case "Int64":
+      case "UInt64":
+        return new IntegerEncoder(8);
+      case "Float32":
+        return new Float32Encoder();
+      case "Float64":
+        return new Float64Encoder();
+      case "Date":
+        return new DateEncoder(2);
+      case "Date32":
+        return new DateEncoder(4);
+      case "DateTime":
+        return new DateTimeEncoder(type.getArgumentCount() > 0 ? zoneOf(type.getStringArgument(0)) : ZoneId.systemDefault());
+      case "DateTime64":
+        return new DateTime64Encoder(
+            type.getIntArgument(0),
+            type.getArgumentCount() > 1 ? zoneOf(type.getStringArgument(1)) : ZoneId.systemDefault()
+        );
+      case "Decimal":
+        return new DecimalEncoder(
+            decimalSize(type.getIntArgument(0)),
+            type.getArgumentCount() > 1 ? type.getIntArgument(1) : 0
+        );
+      case "Decimal32":
+        return new DecimalEncoder(4, type.getIntArgument(0));
+      case "Decimal64":
+        return new DecimalEncoder(8, type.getIntArgument(0));
+      case "Decimal128":
+        return new DecimalEncoder(16, type.getIntArgument(0));
+      case "Decimal256":
+        return new DecimalEncoder(32, type.getIntArgument(0));
+      case "Enum8":
+        return new EnumEncoder(1, type.getArguments());
+      case "Enum16":
+        return new EnumEncoder(2, type.getArguments());
+      case "UUID":
+        return new UuidEncoder();
+      default:
+        throw new ConfigRuntimeException("type " + type + " is not supported by RowBinary inputFormat, please use CSV");
+    }
+  }
+
+  private static ZoneId zoneOf(String zone)
+  {
+    return ZoneId.of(zone);
+  }
+
+  private static int decimalSize(int precision)
+  {
+    if (precision <= 9) {
+      return 4;
+    }
+    if (precision <= 18) {
+      return 8;
+    }
+    if (precision <= 38) {
+      return 16;
+    }
+    return 32;
+  }
+
+  private static long toLong(Object value)
+  {
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    if (value instanceof Boolean) {
+      return (Boolean) value ? 1 : 0;
+    }
+    if (value instanceof String) {
+      String s = ((String) value).trim();
+      try {
+        return Long.parseLong(s);
+      }
+      catch (NumberFormatException e) {
+        // UInt64 above Long.MAX_VALUE or a value like "1.0"
+        return new BigDecimal(s).toBigInteger().longValue();
+      }
+    }
+    throw new IllegalArgumentException("can not convert " + value.getClass().getName() + " to integer");
+  }
+
+  private static double toDouble(Object value)
+  {
+    if (value instanceof Number) {
+      return ((Number) value).doubleValue();
+    }
+    if (value instanceof String) {
+      return Double.parseDouble(((String) value).trim());
+    }
+    throw new IllegalArgumentException("can not convert " + value.getClass().getName() + " to float");
+  }
+
+  private static BigDecimal toBigDecimal(Object value)
+  {
+    if (value instanceof BigDecimal) {
+      return (BigDecimal) value;
+    }
+    if (value instanceof BigInteger) {
+      return new BigDecimal((BigInteger) value);
+    }
+    if (value instanceof Double || value instanceof Float) {
+      return BigDecimal.valueOf(((Number) value).doubleValue());
+    }
+    if (value instanceof Number) {
+      return BigDecimal.valueOf(((Number) value).longValue());
+    }
+    if (value instanceof String) {
+      return new BigDecimal(((String) value).trim());
+    }
+    throw new IllegalArgumentException("can not convert " + value.getClass().getName() + " to decimal");
+  }
+
+  private static long toEpochDay(Object value)
+  {
+    if (value instanceof java.sql.Date) {
+      return ((java.sql.Date) value).toLocalDate().toEpochDay();
+    }
+    if (value instanceof Timestamp) {
+      return ((Timestamp) value).toLocalDateTime().toLocalDate().toEpochDay();
+    }
+    if (value instanceof LocalDate) {
+      return ((LocalDate) value).toEpochDay();
+    }
+    if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    if (value instanceof String) {
+      String s = ((String) value).trim();
+      if (isDigits(s)) {
+        return Long.parseLong(s);
+      }
+      return LocalDate.parse(s.length() > 10 ? s.substring(0, 10) : s).toEpochDay();
+    }
+    throw new IllegalArgumentException("can not convert " + value.getClass().getName() + " to date");
+  }
+
+  private static Instant toInstant(Object value, ZoneId zone)
+  {
+    if (value instanceof Timestamp) {
+      return ((Timestamp) value).toInstant();
+    }
+    if (value instanceof Date) {
+      // java.sql.Date doesn't support toInstant()
+      return Instant.ofEpochMilli(((Date) value).getTime());
+    }
+    if (value instanceof Number) {
+      return Instant.ofEpochSecond(((Number) value).longValue());
+    }
+    if (value instanceof String) {
+      String s = ((String) value).trim();
+      if (isDigits(s)) {
+        return Instant.ofEpochSecond(Long.parseLong(s));
+      }
+      if (s.length() <= 10) {
+        return LocalDate.parse(s).atStartOfDay(zone).toInstant();
+      }
+      return LocalDateTime.parse(s.replace(' ', 'T')).atZone(zone).toInstant();
+    }
+    throw new IllegalArgumentException("can not convert " + value.getClass().getName() + " to datetime");
+  }
+
+  private static boolean isDigits(String s)
+  {
+    if (s.isEmpty()) {
+      return false;
+    }
+    for (int i = 0; i < s.length(); i++) {
+      if (!Character.isDigit(s.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static List<Object> toList(Object value)
+  {
+    if (value instanceof List) {
+      return (List<Object>) value;
+    }
+    if (value instanceof Seq) {
+      return JavaConverters.seqAsJavaListConverter((Seq<Object>) value).asJava();
+    }
+    if (value instanceof Object[]) {
+      return Arrays.asList((Object[]) value);
+    }
+    throw new IllegalArgumentException("can not convert " + value.getClass().getName() + " to array");
+  }
+
+  /**
+   * Encodes a single non null value of one clickhouse type
+   */
+  public abstract static class Encoder
+  {
+    // size of the zero value written for null cells
+    private final int nullSize;
+
+    Encoder(int nullSize)
+    {
+      this.nullSize = nullSize;
+    }
+
+    abstract void write(PipeOutput out, Object value) throws IOException;
+
+    void writeNull(PipeOutput out) throws IOException
+    {
+      out.writeZeros(nullSize);
+    }
+  }
+
+  private static class NullableEncoder extends Encoder
+  {
+    private final Encoder nested;
+
+    NullableEncoder(Encoder nested)
+    {
+      super(1);
+      this.nested = nested;
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      out.writeByte(0);
+      nested.write(out, value);
+    }
+
+    @Override
+    void writeNull(PipeOutput out) throws IOException
+    {
+      out.writeByte(1);
+    }
+  }
+
+  private static class ArrayEncoder extends Encoder
+  {
+    private final Encoder element;
+
+    ArrayEncoder(Encoder element)
+    {
+      // empty array, a zero varint
+      super(1);
+      this.element = element;
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      List<Object> list = toList(value);
+      out.writeVarInt(list.size());
+      for (Object item : list) {
+        if (item == null) {
+          element.writeNull(out);
+        } else {
+          element.write(out, item);
+        }
+      }
+    }
+  }
+
+  private static class StringEncoder extends Encoder
+  {
+    StringEncoder()
+    {
+      // empty string, a zero varint
+      super(1);
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      byte[] bytes = value instanceof byte[] ? (byte[]) value : value.toString().getBytes(StandardCharsets.UTF_8);
+      out.writeVarInt(bytes.length);
+      out.writeBytes(bytes);
+    }
+  }
+
+  private static class FixedStringEncoder extends Encoder
+  {
+    private final int length;
+
+    FixedStringEncoder(int length)
+    {
+      super(length);
+      this.length = length;
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      byte[] bytes = value instanceof byte[] ? (byte[]) value : value.toString().getBytes(StandardCharsets.UTF_8);
+      if (bytes.length > length) {
+        throw new IllegalArgumentException(String.format("value is too long for FixedString(%d)", length));
+      }
+      out.writeBytes(bytes);
+      out.writeZeros(length - bytes.length);
+    }
+  }
+
+  private static class IntegerEncoder extends Encoder
+  {
+    private final int size;
+
+    IntegerEncoder(int size)
+    {
+      super(size);
+      this.size = size;
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      out.writeLittleEndian(toLong(value), size);
+    }
+  }
+
+  private static class Float32Encoder extends Encoder
+  {
+    Float32Encoder()
+    {
+      super(4);
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      out.writeLittleEndian(Float.floatToRawIntBits((float) toDouble(value)), 4);
+    }
+  }
+
+  private static class Float64Encoder extends Encoder
+  {
+    Float64Encoder()
+    {
+      super(8);
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      out.writeLittleEndian(Double.doubleToRawLongBits(toDouble(value)), 8);
+    }
+  }
+
+  private static class DateEncoder extends Encoder
+  {
+    private final int size;
+
+    DateEncoder(int size)
+    {
+      super(size);
+      this.size = size;
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      out.writeLittleEndian(toEpochDay(value), size);
+    }
+  }
+
+  private static class DateTimeEncoder extends Encoder
+  {
+    private final ZoneId zone;
+
+    DateTimeEncoder(ZoneId zone)
+    {
+      super(4);
+      this.zone = zone;
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      long seconds;
+      if (value instanceof Date) {
+        seconds = Math.floorDiv(((Date) value).getTime(), 1000L);
+      } else {
+        seconds = toInstant(value, zone).getEpochSecond();
+      }
+      out.writeLittleEndian(seconds, 4);
+    }
+  }
+
+  private static class DateTime64Encoder extends Encoder
+  {
+    private final long ticksPerSecond;
+    private final long nanosPerTick;
+    private final ZoneId zone;
+
+    DateTime64Encoder(int precision, ZoneId zone)
+    {
+      super(8);
+      this.ticksPerSecond = BigInteger.TEN.pow(precision).longValue();
+      this.nanosPerTick = BigInteger.TEN.pow(9 - precision).longValue();
+      this.zone = zone;
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      Instant instant = toInstant(value, zone);
+      out.writeLittleEndian(instant.getEpochSecond() * ticksPerSecond + instant.getNano() / nanosPerTick, 8);
+    }
+  }
+
+  private static class DecimalEncoder extends Encoder
+  {
+    private final int size;
+    private final int scale;
+
+    DecimalEncoder(int size, int scale)
+    {
+      super(size);
+      this.size = size;
+      this.scale = scale;
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      // clickhouse truncates extra fractional digits when parsing text, do the same here
+      BigInteger unscaled = toBigDecimal(value).setScale(scale, RoundingMode.DOWN).unscaledValue();
+      if (unscaled.bitLength() > size * 8 - 1) {
+        throw new IllegalArgumentException(String.format("decimal %s overflows %d bytes", value, size));
+      }
+      if (size <= 8) {
+        out.writeLittleEndian(unscaled.longValue(), size);
+        return;
+      }
+      byte[] bigEndian = unscaled.toByteArray();
+      byte sign = (byte) (unscaled.signum() < 0 ? -1 : 0);
+      for (int i = 0; i < size; i++) {
+        int index = bigEndian.length - 1 - i;
+        out.writeByte(index >= 0 ? bigEndian[index] : sign);
+      }
+    }
+  }
+
+  private static class EnumEncoder extends Encoder
+  {
+    private final int size;
+    private final Map<String, Integer> values;
+    private final int firstValue;
+
+    EnumEncoder(int size, List<String> entries)
+    {
+      super(size);
+      this.size = size;
+      this.values = new HashMap<>();
+      for (String entry : entries) {
+        int eq = entry.lastIndexOf('=');
+        values.put(ClickHouseType.unquote(entry.substring(0, eq)), Integer.parseInt(entry.substring(eq + 1).trim()));
+      }
+      String first = entries.get(0);
+      this.firstValue = Integer.parseInt(first.substring(first.lastIndexOf('=') + 1).trim());
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      if (value instanceof Number) {
+        out.writeLittleEndian(((Number) value).longValue(), size);
+        return;
+      }
+      Integer v = values.get(value.toString());
+      if (v == null) {
+        throw new IllegalArgumentException("unknown enum element " + value);
+      }
+      out.writeLittleEndian(v, size);
+    }
+
+    @Override
+    void writeNull(PipeOutput out) throws IOException
+    {
+      // 0 is not necessarily a valid element
+      out.writeLittleEndian(firstValue, size);
+    }
+  }
+
+  private static class UuidEncoder extends Encoder
+  {
+    UuidEncoder()
+    {
+      super(16);
+    }
+
+    @Override
+    void write(PipeOutput out, Object value) throws IOException
+    {
+      UUID uuid = value instanceof UUID ? (UUID) value : UUID.fromString(value.toString().trim());
+      out.writeLittleEndian(uuid.getMostSignificantBits(), 8);
+      out.writeLittleEndian(uuid.getLeastSignificantBits(), 8);
+    }
+  }
+}
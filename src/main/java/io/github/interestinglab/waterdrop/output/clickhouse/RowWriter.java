@@ -0,0 +1,99 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.DataType;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * Writes spark rows to the pipe file in the input format of clickhouse local
+ *
+ * @param <T> the row representation, {@link Row} or the InternalRow of the columnar formats
+ */
+public abstract class RowWriter<T>
+{
+  protected final PipeOutput out;
+  protected final Logger log;
+  private long counter;
+
+  protected RowWriter(OutputStream pipe, Logger log)
+  {
+    this.out = new PipeOutput(pipe);
+    this.log = log;
+  }
+
+  /**
+   * Writes rows until the iterator is exhausted or one of the limits is reached, then closes the pipe.
+   * The remaining rows are left in the iterator.
+   *
+   * @param maxRows  max number of rows to write, 0 for no limit
+   * @param maxBytes max number of bytes to write, 0 for no limit. Checked after each row.
+   */
+  public void writeRows(Iterator<T> rows, long maxRows, long maxBytes) throws IOException
+  {
+    long rowLimit = maxRows > 0 ? maxRows : Long.MAX_VALUE;
+    long byteLimit = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+    try {
+      while (counter < rowLimit && out.getBytesWritten() < byteLimit && rows.hasNext()) {
+        writeRow(rows.next());
+        counter++;
+      }
+      finish();
+    }
+    finally {
+      log.info(counter + " rows built");
+      this.out.close();
+    }
+  }
+
+  /**
+   * @return the writer of the input format, see {@link InputFormat}
+   */
+  public static RowWriter<Row> create(
+      InputFormat format,
+      OutputStream out,
+      String[] columnTypes,
+      DataType[] fieldTypes,
+      Object[] defaultValues,
+      Logger log
+  ) throws IOException
+  {
+    if (format == InputFormat.ROW_BINARY) {
+      return new RowBinaryWriter(out, columnTypes, defaultValues, log);
+    }
+    if (format == InputFormat.ARROW_STREAM) {
+      throw new IllegalArgumentException(format.getFormatName() + " is written from InternalRow by ArrowRowWriter");
+    }
+    return new CsvWriter(out, columnTypes, fieldTypes, defaultValues, log);
+  }
+
+  public long getRowsWritten()
+  {
+    return counter;
+  }
+
+  public long getBytesWritten()
+  {
+    return out.getBytesWritten();
+  }
+
+  protected abstract void writeRow(T row) throws IOException;
+
+  /**
+   * Called after the last row, before the pipe is closed
+   */
+  protected void finish() throws IOException
+  {
+  }
+
+  /**
+   * Creates the writer of one pipe
+   */
+  public interface Factory<T>
+  {
+    RowWriter<T> create(OutputStream out) throws IOException;
+  }
+}
@@ -0,0 +1,616 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.commons.io.IOUtils;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Objects in an s3 compatible store, addressed as s3://$bucket/$key and sent with path style requests signed by
+ * signature v4. There is no rename on the upload path: a file is sent as the parts of a multipart upload while it is
+ * written, up to partsInFlight at once, and only appears at its key when the upload is completed.
+ * Small files are sent with a single PUT on commit. Attempts uploading the same key race, the last one wins,
+ * which is fine as they upload the same content.
+ */
+public class S3PartStorage implements PartStorage
+{
+  public static final String SCHEME = "s3://";
+  private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+  private static final int READ_TIMEOUT_MILLIS = 600_000;
+  private static final int PART_RETRIES = 3;
+  // the limit of a single copy, larger objects are copied in parts of this size
+  private static final long MAX_COPY_BYTES = 5L << 30;
+  private static final String UNSIGNED_PAYLOAD = "UNSIGNED-PAYLOAD";
+
+  private final S3Settings settings;
+  private final ExecutorService partExec;
+
+  public S3PartStorage(S3Settings settings)
+  {
+    this.settings = settings;
+    // bounded by partsInFlight of each upload
+    this.partExec = Executors.newCachedThreadPool();
+  }
+
+  @Override
+  public long length(String path) throws IOException
+  {
+    HttpURLConnection conn = request("HEAD", path, new TreeMap<>(), new TreeMap<>());
+    try {
+      if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+        return -1;
+      }
+      check(conn, "HEAD " + path);
+      return conn.getContentLengthLong();
+    }
+    finally {
+      conn.disconnect();
+    }
+  }
+
+  @Override
+  public InputStream open(String path) throws IOException
+  {
+    HttpURLConnection conn = request("GET", path, new TreeMap<>(), new TreeMap<>());
+    if (conn.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+      conn.disconnect();
+      throw new FileNotFoundException(path);
+    }
+    check(conn, "GET " + path);
+    return new FilterInputStream(conn.getInputStream())
+    {
+      @Override
+      public void close() throws IOException
+      {
+        try {
+          super.close();
+        }
+        finally {
+          conn.disconnect();
+        }
+      }
+    };
+  }
+
+  @Override
+  public Upload create(String path)
+  {
+    return new MultipartUpload(path);
+  }
+
+  @Override
+  public boolean delete(String path) throws IOException
+  {
+    // a delete succeeds whether the key exists or not
+    if (length(path) < 0) {
+      return false;
+    }
+    send("DELETE", path, new TreeMap<>(), new TreeMap<>(), null);
+    return true;
+  }
+
+  /**
+   * Copies the object on the server side and deletes it, objects over 5g are copied in parts
+   */
+  @Override
+  public void rename(String from, String to) throws IOException
+  {
+    long length = length(from);
+    if (length < 0) {
+      throw new FileNotFoundException(from);
+    }
+    String source = "/" + bucket(from) + "/" + encode(key(from), false);
+    if (length <= MAX_COPY_BYTES) {
+      TreeMap<String, String> headers = new TreeMap<>();
+      headers.put("x-amz-copy-source", source);
+      send("PUT", to, new TreeMap<>(), headers, null);
+    } else {
+      String uploadId = initiate(to);
+      try {
+        List<String> etags = new ArrayList<>();
+        for (long offset = 0; offset < length; offset += MAX_COPY_BYTES) {
+          TreeMap<String, String> query = new TreeMap<>();
+          query.put("partNumber", String.valueOf(etags.size() + 1));
+          query.put("uploadId", uploadId);
+          TreeMap<String, String> headers = new TreeMap<>();
+          headers.put("x-amz-copy-source", source);
+          headers.put(
+              "x-amz-copy-source-range",
+              "bytes=" + offset + "-" + (Math.min(offset + MAX_COPY_BYTES, length) - 1)
+          );
+          Document result = parse(send("PUT", to, query, headers, null));
+          etags.add(result.getElementsByTagName("ETag").item(0).getTextContent());
+        }
+        complete(to, uploadId, etags);
+      }
+      catch (IOException | RuntimeException e) {
+        abortUpload(to, uploadId);
+        throw e;
+      }
+    }
+    send("DELETE", from, new TreeMap<>(), new TreeMap<>(), null);
+  }
+
+  @Override
+  public List<String> list(String dir) throws IOException
+  {
+    String bucket = bucket(dir);
+    String prefix = key(dir);
+    List<String> paths = new ArrayList<>();
+    String token = null;
+    do {
+      TreeMap<String, String> query = new TreeMap<>();
+      query.put("list-type", "2");
+      query.put("delimiter", "/");
+      query.put("prefix", prefix);
+      if (token != null) {
+        query.put("continuation-token", token);
+      }
+      Document result = parse(send("GET", SCHEME + bucket + "/", query, new TreeMap<>(), null));
+      NodeList contents = result.getElementsByTagName("Contents");
+      for (int i = 0; i < contents.getLength(); i++) {
+        String key = ((Element) contents.item(i)).getElementsByTagName("Key").item(0).getTextContent();
+        // the placeholder object of the dir itself
+        if (!key.equals(prefix)) {
+          paths.add(SCHEME + bucket + "/" + key);
+        }
+      }
+      NodeList dirs = result.getElementsByTagName("CommonPrefixes");
+      for (int i = 0; i < dirs.getLength(); i++) {
+        paths.add(SCHEME + bucket + "/"
+                  + ((Element) dirs.item(i)).getElementsByTagName("Prefix").item(0).getTextContent());
+      }
+      NodeList truncated = result.getElementsByTagName("IsTruncated");
+      token = truncated.getLength() > 0 && "true".equals(truncated.item(0).getTextContent())
+              ? result.getElementsByTagName("NextContinuationToken").item(0).getTextContent()
+              : null;
+    } while (token != null);
+    return paths;
+  }
+
+  @Override
+  public void close()
+  {
+    partExec.shutdownNow();
+  }
+
+  /**
+   * Buffers partSize bytes at a time, each full buffer is sent as the next part while the following one is filled
+   */
+  private class MultipartUpload extends Upload
+  {
+    private final String path;
+    private final Semaphore inFlight = new Semaphore(settings.getPartsInFlight());
+    private final List<Future<String>> parts = new ArrayList<>();
+    private final int partSize = (int) settings.getPartSize();
+    // grows up to partSize, small files like the md5 files don't take a whole part
+    private byte[] buffer = new byte[Math.min(partSize, 1 << 16)];
+    private int filled;
+    private String uploadId;
+    private volatile boolean done;
+
+    MultipartUpload(String path)
+    {
+      this.path = path;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+      if (done || buffer == null) {
+        throw new IOException("upload of " + path + " is closed");
+      }
+      while (len > 0) {
+        if (filled == buffer.length) {
+          buffer = Arrays.copyOf(buffer, Math.min(partSize, 2 * buffer.length));
+        }
+        int n = Math.min(len, buffer.length - filled);
+        System.arraycopy(b, off, buffer, filled, n);
+        filled += n;
+        off += n;
+        len -= n;
+        if (filled == partSize) {
+          sendPart();
+        }
+      }
+    }
+
+    private void sendPart() throws IOException
+    {
+      if (uploadId == null) {
+        uploadId = initiate(path);
+      }
+      try {
+        inFlight.acquire();
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted uploading " + path);
+      }
+      final byte[] part = buffer;
+      final int length = filled;
+      final int partNumber = parts.size() + 1;
+      parts.add(partExec.submit(() -> {
+        try {
+          return uploadPart(path, uploadId, partNumber, part, length);
+        }
+        finally {
+          inFlight.release();
+        }
+      }));
+      // the buffers of the parts in flight are not reused, they are kept until the part is sent
+      buffer = new byte[partSize];
+      filled = 0;
+    }
+
+    @Override
+    public void commit() throws IOException
+    {
+      if (done || buffer == null) {
+        throw new IOException("upload of " + path + " is closed");
+      }
+      try {
+        if (uploadId == null) {
+          TreeMap<String, String> headers = new TreeMap<>();
+          headers.put("content-md5", md5Base64(buffer, filled));
+          send("PUT", path, new TreeMap<>(), headers, new ByteArrayInputStream(buffer, 0, filled), filled);
+        } else {
+          if (filled > 0) {
+            sendPart();
+          }
+          List<String> etags = new ArrayList<>();
+          for (Future<String> part : parts) {
+            etags.add(part.get());
+          }
+          complete(path, uploadId, etags);
+        }
+        done = true;
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("interrupted uploading " + path);
+      }
+      catch (ExecutionException e) {
+        throw e.getCause() instanceof IOException
+              ? (IOException) e.getCause()
+              : new IOException("failed to upload a part of " + path, e.getCause());
+      }
+      finally {
+        buffer = null;
+      }
+    }
+
+    @Override
+    public void abort()
+    {
+      if (done) {
+        return;
+      }
+      done = true;
+      for (Future<String> part : parts) {
+        part.cancel(true);
+      }
+      if (uploadId != null) {
+        abortUpload(path, uploadId);
+      }
+    }
+
+    @Override
+    public void close()
+    {
+      // the upload is ended by commit or abort
+    }
+
+    @Override
+    public String describe()
+    {
+      return uploadId == null ? path : path + "?uploadId=" + uploadId;
+    }
+  }
+
+  private String initiate(String path) throws IOException
+  {
+    TreeMap<String, String> query = new TreeMap<>();
+    query.put("uploads", "");
+    return parse(send("POST", path, query, new TreeMap<>(), null))
+        .getElementsByTagName("UploadId").item(0).getTextContent();
+  }
+
+  private String uploadPart(String path, String uploadId, int partNumber, byte[] part, int length) throws Exception
+  {
+    TreeMap<String, String> query = new TreeMap<>();
+    query.put("partNumber", String.valueOf(partNumber));
+    query.put("uploadId", uploadId);
+    TreeMap<String, String> headers = new TreeMap<>();
+    // the store checks it, the payload itself is not signed
+    headers.put("content-md5", md5Base64(part, length));
+    for (int attempt = 0; ; attempt++) {
+      HttpURLConnection conn = request("PUT", path, query, headers, new ByteArrayInputStream(part, 0, length), length);
+      try {
+        check(conn, "PUT part " + partNumber + " of " + path);
+        return conn.getHeaderField("ETag");
+      }
+      catch (IOException e) {
+        if (attempt >= PART_RETRIES || Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+        Thread.sleep(1000L << attempt);
+      }
+      finally {
+        conn.disconnect();
+      }
+    }
+  }
+
+  private void complete(String path, String uploadId, List<String> etags) throws IOException
+  {
+    StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+    for (int i = 0; i < etags.size(); i++) {
+      body.append("<Part><PartNumber>").append(i + 1).append("</PartNumber><ETag>")
+          .append(etags.get(i).replace("&", "&amp;").replace("<", "&lt;"))
+          .append("</ETag></Part>");
+    }
+    body.append("</CompleteMultipartUpload>");
+    byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+    TreeMap<String, String> query = new TreeMap<>();
+    query.put("uploadId", uploadId);
+    send("POST", path, query, new TreeMap<>(), new ByteArrayInputStream(bytes), bytes.length);
+  }
+
+  private void abortUpload(String path, String uploadId)
+  {
+    TreeMap<String, String> query = new TreeMap<>();
+    query.put("uploadId", uploadId);
+    try {
+      send("DELETE", path, query, new TreeMap<>(), null);
+    }
+    catch (IOException e) {
+      // the parts are dropped by the lifecycle rule of the bucket for incomplete uploads, if it has one
+    }
+  }
+
+  private String send(
+      String method,
+      String path,
+      TreeMap<String, String> query,
+      TreeMap<String, String> headers,
+      InputStream body
+  ) throws IOException
+  {
+    return send(method, path, query, headers, body, 0);
+  }
+
+  /**
+   * @return the response body, which for some requests answered with 200 is an error
+   */
+  private String send(
+      String method,
+      String path,
+      TreeMap<String, String> query,
+      TreeMap<String, String> headers,
+      InputStream body,
+      long length
+  ) throws IOException
+  {
+    HttpURLConnection conn = request(method, path, query, headers, body, length);
+    try {
+      check(conn, method + " " + path);
+      InputStream in = conn.getInputStream();
+      String response = in == null ? "" : IOUtils.toString(in, StandardCharsets.UTF_8);
+      if (response.contains("<Error>")) {
+        throw new IOException(String.format("%s %s failed: %s", method, path, response));
+      }
+      return response;
+    }
+    finally {
+      conn.disconnect();
+    }
+  }
+
+  private HttpURLConnection request(
+      String method,
+      String path,
+      TreeMap<String, String> query,
+      TreeMap<String, String> headers
+  ) throws IOException
+  {
+    return request(method, path, query, headers, null, 0);
+  }
+
+  private HttpURLConnection request(
+      String method,
+      String path,
+      TreeMap<String, String> query,
+      TreeMap<String, String> headers,
+      InputStream body,
+      long length
+  ) throws IOException
+  {
+    String canonicalUri = "/" + bucket(path) + "/" + encode(key(path), false);
+    StringBuilder canonicalQuery = new StringBuilder();
+    for (Map.Entry<String, String> e : query.entrySet()) {
+      canonicalQuery.append(canonicalQuery.length() == 0 ? "" : "&")
+                    .append(encode(e.getKey(), true)).append('=').append(encode(e.getValue(), true));
+    }
+    URL url = new URL(settings.getEndpoint() + canonicalUri
+                      + (canonicalQuery.length() == 0 ? "" : "?" + canonicalQuery));
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setRequestMethod(method);
+    conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+    conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+    TreeMap<String, String> signed = new TreeMap<>(headers);
+    signed.put("host", url.getPort() == -1 || url.getPort() == url.getDefaultPort()
+                       ? url.getHost()
+                       : url.getHost() + ":" + url.getPort());
+    SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String amzDate = format.format(new Date());
+    signed.put("x-amz-date", amzDate);
+    signed.put("x-amz-content-sha256", UNSIGNED_PAYLOAD);
+    if (settings.getAccessKey() != null) {
+      conn.setRequestProperty("Authorization", authorization(method, canonicalUri, canonicalQuery, signed, amzDate));
+    }
+    for (Map.Entry<String, String> header : signed.entrySet()) {
+      if (!"host".equals(header.getKey())) {
+        conn.setRequestProperty(header.getKey(), header.getValue());
+      }
+    }
+    if (body != null || "PUT".equals(method) || "POST".equals(method)) {
+      conn.setDoOutput(true);
+      conn.setFixedLengthStreamingMode(length);
+      try (OutputStream out = conn.getOutputStream()) {
+        if (body != null) {
+          IOUtils.copyLarge(body, out);
+        }
+      }
+    }
+    return conn;
+  }
+
+  private String authorization(
+      String method,
+      String canonicalUri,
+      CharSequence canonicalQuery,
+      TreeMap<String, String> headers,
+      String amzDate
+  ) throws IOException
+  {
+    StringBuilder canonicalHeaders = new StringBuilder();
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      canonicalHeaders.append(header.getKey()).append(':').append(header.getValue().trim()).append('\n');
+    }
+    String signedHeaders = String.join(";", headers.keySet());
+    String canonicalRequest = method + "\n" + canonicalUri + "\n" + canonicalQuery + "\n" + canonicalHeaders + "\n"
+                              + signedHeaders + "\n" + UNSIGNED_PAYLOAD;
+    String date = amzDate.substring(0, 8);
+    String scope = date + "/" + settings.getRegion() + "/s3/aws4_request";
+    try {
+      byte[] requestHash = MessageDigest.getInstance("SHA-256").digest(
+          canonicalRequest.getBytes(StandardCharsets.UTF_8)
+      );
+      String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n"
+                            + ReceiveAgentClient.toHex(requestHash);
+      byte[] key = hmac(("AWS4" + settings.getSecretKey()).getBytes(StandardCharsets.UTF_8), date);
+      key = hmac(key, settings.getRegion());
+      key = hmac(key, "s3");
+      key = hmac(key, "aws4_request");
+      return String.format(
+          "AWS4-HMAC-SHA256 Credential=%s/%s, SignedHeaders=%s, Signature=%s",
+          settings.getAccessKey(),
+          scope,
+          signedHeaders,
+          ReceiveAgentClient.toHex(hmac(key, stringToSign))
+      );
+    }
+    catch (GeneralSecurityException e) {
+      throw new IOException("failed to sign the request", e);
+    }
+  }
+
+  private static byte[] hmac(byte[] key, String data) throws GeneralSecurityException
+  {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(key, "HmacSHA256"));
+    return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private static void check(HttpURLConnection conn, String request) throws IOException
+  {
+    int status = conn.getResponseCode();
+    if (status / 100 != 2) {
+      InputStream error = conn.getErrorStream();
+      throw new IOException(String.format(
+          "%s failed with %d: %s",
+          request,
+          status,
+          error == null ? "" : IOUtils.toString(error, StandardCharsets.UTF_8)
+      ));
+    }
+  }
+
+  private static Document parse(String xml) throws IOException
+  {
+    try {
+      return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                                   .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+    catch (Exception e) {
+      throw new IOException("failed to parse " + xml, e);
+    }
+  }
+
+  private static String md5Base64(byte[] bytes, int length)
+  {
+    MessageDigest md5 = ReceiveAgentClient.md5();
+    md5.update(bytes, 0, length);
+    return Base64.getEncoder().encodeToString(md5.digest());
+  }
+
+  /**
+   * Percent encodes everything but the unreserved characters, and the slashes of a key
+   */
+  private static String encode(String value, boolean slash)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+      char c = (char) (b & 0xff);
+      if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')
+          || c == '-' || c == '_' || c == '.' || c == '~' || (c == '/' && !slash)) {
+        sb.append(c);
+      } else {
+        sb.append(String.format("%%%02X", b & 0xff));
+      }
+    }
+    return sb.toString();
+  }
+
+  private static String bucket(String path)
+  {
+    String rest = path.substring(SCHEME.length());
+    int slash = rest.indexOf('/');
+    return slash < 0 ? rest : rest.substring(0, slash);
+  }
+
+  private static String key(String path)
+  {
+    String rest = path.substring(SCHEME.length());
+    int slash = rest.indexOf('/');
+    return slash < 0 ? "" : rest.substring(slash + 1);
+  }
+}
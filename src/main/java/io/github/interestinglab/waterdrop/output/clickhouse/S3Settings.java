@@ -0,0 +1,118 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import io.github.interestinglab.waterdrop.config.Config;
+import io.github.interestinglab.waterdrop.config.ConfigRuntimeException;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Endpoint and credentials of the s3 compatible object store of {@link S3PartStorage}, set as s3.* in the plugin
+ * config or --s3.* arguments of {@link BulkAttacher}. The keys default to AWS_ACCESS_KEY_ID and AWS_SECRET_ACCESS_KEY.
+ */
+public class S3Settings implements Serializable
+{
+  public static final String PREFIX = "s3.";
+  private static final String DEFAULT_REGION = "us-east-1";
+  private static final long DEFAULT_PART_SIZE = 16L << 20;
+  // the minimum size of every part but the last one
+  private static final long MIN_PART_SIZE = 5L << 20;
+  private static final int DEFAULT_PARTS_IN_FLIGHT = 4;
+
+  private final String endpoint;
+  private final String region;
+  private final String accessKey;
+  private final String secretKey;
+  private final long partSize;
+  private final int partsInFlight;
+
+  public S3Settings(
+      String endpoint,
+      String region,
+      String accessKey,
+      String secretKey,
+      long partSize,
+      int partsInFlight
+  )
+  {
+    this.endpoint = endpoint == null ? "https://s3." + (region == null ? DEFAULT_REGION : region) + ".amazonaws.com"
+                                     : endpoint.replaceAll("/+$", "");
+    this.region = region == null ? DEFAULT_REGION : region;
+    this.accessKey = accessKey == null ? System.getenv("AWS_ACCESS_KEY_ID") : accessKey;
+    this.secretKey = secretKey == null ? System.getenv("AWS_SECRET_ACCESS_KEY") : secretKey;
+    this.partSize = partSize;
+    this.partsInFlight = partsInFlight;
+    if (partSize < MIN_PART_SIZE || partSize > Integer.MAX_VALUE) {
+      throw new ConfigRuntimeException(PREFIX + "partSize should be between 5m and 2g");
+    }
+    if (partsInFlight <= 0) {
+      throw new ConfigRuntimeException(PREFIX + "partsInFlight should be positive");
+    }
+  }
+
+  public static S3Settings fromConfig(Config config)
+  {
+    return new S3Settings(
+        config.hasPath(PREFIX + "endpoint") ? config.getString(PREFIX + "endpoint") : null,
+        config.hasPath(PREFIX + "region") ? config.getString(PREFIX + "region") : null,
+        config.hasPath(PREFIX + "accessKey") ? config.getString(PREFIX + "accessKey") : null,
+        config.hasPath(PREFIX + "secretKey") ? config.getString(PREFIX + "secretKey") : null,
+        config.hasPath(PREFIX + "partSize") ? config.getBytes(PREFIX + "partSize") : DEFAULT_PART_SIZE,
+        config.hasPath(PREFIX + "partsInFlight") ? config.getInt(PREFIX + "partsInFlight") : DEFAULT_PARTS_IN_FLIGHT
+    );
+  }
+
+  /**
+   * @param options command line options without the leading --, the part size in bytes
+   */
+  public static S3Settings fromArgs(Map<String, String> options)
+  {
+    return new S3Settings(
+        options.get(PREFIX + "endpoint"),
+        options.get(PREFIX + "region"),
+        options.get(PREFIX + "accessKey"),
+        options.get(PREFIX + "secretKey"),
+        Long.parseLong(options.getOrDefault(PREFIX + "partSize", String.valueOf(DEFAULT_PART_SIZE))),
+        Integer.parseInt(options.getOrDefault(PREFIX + "partsInFlight", String.valueOf(DEFAULT_PARTS_IN_FLIGHT)))
+    );
+  }
+
+  /**
+   * @return base url of the store, buckets are addressed in the path
+   */
+  public String getEndpoint()
+  {
+    return endpoint;
+  }
+
+  public String getRegion()
+  {
+    return region;
+  }
+
+  public String getAccessKey()
+  {
+    return accessKey;
+  }
+
+  public String getSecretKey()
+  {
+    return secretKey;
+  }
+
+  /**
+   * @return bytes of each part of a multipart upload, buffered in memory
+   */
+  public long getPartSize()
+  {
+    return partSize;
+  }
+
+  /**
+   * @return max number of parts of one upload sent concurrently, or buffered waiting to be sent
+   */
+  public int getPartsInFlight()
+  {
+    return partsInFlight;
+  }
+}
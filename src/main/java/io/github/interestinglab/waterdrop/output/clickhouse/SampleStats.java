@@ -0,0 +1,133 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The parts built from a sample of the input, returned by the sampling task to the driver
+ * to choose how many spark partitions the input is built in, see {@link BuildOptions#getTargetPartBytes()}
+ */
+public class SampleStats implements Serializable
+{
+  private final long sampledRows;
+  private final long builtRows;
+  private final long partBytes;
+  private final int parts;
+  private final int partitions;
+
+  public SampleStats(long sampledRows, long builtRows, long partBytes, int parts, int partitions)
+  {
+    this.sampledRows = sampledRows;
+    this.builtRows = builtRows;
+    this.partBytes = partBytes;
+    this.parts = parts;
+    this.partitions = partitions;
+  }
+
+  /**
+   * Reads the parts of a finished build, one data dir per target table
+   *
+   * @param sampledRows rows of the sample, some of which may not have been built
+   */
+  public static SampleStats read(List<File> dataDirs, long sampledRows) throws IOException
+  {
+    long builtRows = 0;
+    long partBytes = 0;
+    int parts = 0;
+    Set<String> partitionIds = new HashSet<>();
+    for (File dataDir : dataDirs) {
+      File[] partDirs = dataDir.listFiles();
+      if (partDirs == null) {
+        continue;
+      }
+      for (File partDir : partDirs) {
+        if (!partDir.isDirectory() || "detached".equals(partDir.getName())) {
+          continue;
+        }
+        File countFile = new File(partDir, "count.txt");
+        builtRows += Long.parseLong(FileUtils.readFileToString(countFile, StandardCharsets.UTF_8).trim());
+        partBytes += FileUtils.sizeOfDirectory(partDir);
+        parts++;
+        partitionIds.add(partDir.getName().substring(0, partDir.getName().indexOf('_')));
+      }
+    }
+    return new SampleStats(sampledRows, builtRows, partBytes, parts, partitionIds.size());
+  }
+
+  /**
+   * Estimates the number of spark partitions whose tasks build parts of about targetPartBytes.
+   * When the rows of a clickhouse partition are clustered into the same tasks, a task builds one part per shard
+   * for each of its clickhouse partitions, otherwise every task builds a part of every partition and shard.
+   *
+   * @param fraction  fraction of the input rows in the sample
+   * @param clustered true if the input is repartitioned by the partition key
+   * @return the number of spark partitions, 0 if the sample has no rows to estimate from
+   */
+  public int plannedPartitions(double fraction, long targetPartBytes, boolean clustered)
+  {
+    if (builtRows == 0) {
+      return 0;
+    }
+    double totalRows = sampledRows / fraction;
+    double totalBytes = totalRows * partBytes / builtRows;
+    // parts built by a task holding a single clickhouse partition, or all of them
+    double partsPerTask = clustered ? (double) parts / partitions : parts;
+    double tasks = Math.ceil(totalBytes / (partsPerTask * targetPartBytes));
+    return (int) Math.max(1, Math.min(tasks, Math.min(totalRows, Integer.MAX_VALUE)));
+  }
+
+  public long getSampledRows()
+  {
+    return sampledRows;
+  }
+
+  public long getBuiltRows()
+  {
+    return builtRows;
+  }
+
+  /**
+   * @return bytes of the built parts on disk, compressed
+   */
+  public long getPartBytes()
+  {
+    return partBytes;
+  }
+
+  /**
+   * @return number of parts built, one per clickhouse partition and shard after the final optimize
+   */
+  public int getParts()
+  {
+    return parts;
+  }
+
+  /**
+   * @return number of distinct clickhouse partitions in the built rows
+   */
+  public int getPartitions()
+  {
+    return partitions;
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format(
+        "%,d rows sampled, %,d built into %d parts of %d partitions, %,d bytes, %.1f bytes per row",
+        sampledRows,
+        builtRows,
+        parts,
+        partitions,
+        partBytes,
+        builtRows == 0 ? 0.0 : (double) partBytes / builtRows
+    );
+  }
+}
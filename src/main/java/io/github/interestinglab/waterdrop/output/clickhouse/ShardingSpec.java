@@ -0,0 +1,213 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import io.github.interestinglab.waterdrop.config.ConfigRuntimeException;
+
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The local table and shards behind a Distributed target table, resolved on the driver.
+ * clickhouse local splits the rows with the sharding key the same way a Distributed insert would:
+ * {@code key % total_weight} picks the shard owning that slot, shards owning as many slots as their weight.
+ */
+public class ShardingSpec implements Serializable
+{
+  private static final Pattern DISTRIBUTED = Pattern.compile("ENGINE\\s*=\\s*Distributed\\s*\\(", Pattern.CASE_INSENSITIVE);
+
+  private final String cluster;
+  private final String database;
+  private final String table;
+  private final String shardingKey;
+  private final List<Integer> shardNums;
+  private final List<Integer> weights;
+
+  private ShardingSpec(
+      String cluster,
+      String database,
+      String table,
+      String shardingKey,
+      List<Integer> shardNums,
+      List<Integer> weights
+  )
+  {
+    this.cluster = cluster;
+    this.database = database;
+    this.table = table;
+    this.shardingKey = shardingKey;
+    this.shardNums = shardNums;
+    this.weights = weights;
+  }
+
+  /**
+   * @return null if the table is not a Distributed one
+   */
+  public static ShardingSpec resolve(Connection conn, String createTableSql, String database) throws SQLException
+  {
+    Matcher m = DISTRIBUTED.matcher(createTableSql);
+    if (!m.find()) {
+      return null;
+    }
+    int close = closingParenthesis(createTableSql, m.end() - 1);
+    if (close < 0) {
+      throw new ConfigRuntimeException("invalid Distributed engine in " + createTableSql);
+    }
+    ClickHouseType engine = ClickHouseType.parse("Distributed" + createTableSql.substring(m.end() - 1, close + 1));
+    if (engine.getArgumentCount() < 3) {
+      throw new ConfigRuntimeException("invalid Distributed engine " + engine);
+    }
+    String cluster = identifier(engine.getArguments().get(0));
+    String localDatabase = identifier(engine.getArguments().get(1));
+    if (localDatabase.isEmpty() || localDatabase.equalsIgnoreCase("currentDatabase()")) {
+      localDatabase = database;
+    }
+    String localTable = identifier(engine.getArguments().get(2));
+    String key = engine.getArgumentCount() > 3 ? engine.getArguments().get(3) : null;
+
+    List<Integer> shardNums = new ArrayList<>();
+    List<Integer> weights = new ArrayList<>();
+    try (Statement statement = conn.createStatement()) {
+      ResultSet rs = statement.executeQuery(
+          "select shard_num, any(shard_weight) from system.clusters where cluster = '"
+          + cluster.replace("'", "\\'")
+          + "' group by shard_num order by shard_num"
+      );
+      while (rs.next()) {
+        shardNums.add(rs.getInt(1));
+        weights.add(rs.getInt(2));
+      }
+    }
+    if (shardNums.isEmpty()) {
+      throw new ConfigRuntimeException("cluster " + cluster + " not found in system.clusters");
+    }
+    if (key == null && shardNums.size() > 1) {
+      throw new ConfigRuntimeException("Distributed table over " + shardNums.size() + " shards has no sharding key");
+    }
+    if (key != null) {
+      key = unsignedKey(conn, key, localDatabase + "." + localTable);
+    }
+    return new ShardingSpec(cluster, localDatabase, localTable, key, shardNums, weights);
+  }
+
+  /**
+   * Distributed takes the remainder of the key as the unsigned integer of the same width
+   */
+  private static String unsignedKey(Connection conn, String key, String localTable) throws SQLException
+  {
+    String type;
+    try (Statement statement = conn.createStatement()) {
+      // the aggregate returns a row even for an empty table
+      ResultSet rs = statement.executeQuery("select toTypeName(any(" + key + ")) from " + localTable + " where 0");
+      rs.next();
+      type = rs.getString(1);
+    }
+    switch (type) {
+      case "Int8":
+      case "Int16":
+      case "Int32":
+      case "Int64":
+        return "toU" + type + "(" + key + ")";
+      case "UInt8":
+      case "UInt16":
+      case "UInt32":
+      case "UInt64":
+        return key;
+      default:
+        throw new ConfigRuntimeException("sharding key " + key + " should be an integer, but is " + type);
+    }
+  }
+
+  private static String identifier(String argument)
+  {
+    String s = argument.trim();
+    if (s.length() >= 2 && s.charAt(0) == '`' && s.charAt(s.length() - 1) == '`') {
+      return s.substring(1, s.length() - 1);
+    }
+    return ClickHouseType.unquote(s);
+  }
+
+  private static int closingParenthesis(String s, int open)
+  {
+    int depth = 0;
+    boolean quoted = false;
+    for (int i = open; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c == '\'') {
+        quoted = !quoted;
+      } else if (!quoted && c == '(') {
+        depth++;
+      } else if (!quoted && c == ')' && --depth == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public String getCluster()
+  {
+    return cluster;
+  }
+
+  /**
+   * @return database of the local table
+   */
+  public String getDatabase()
+  {
+    return database;
+  }
+
+  /**
+   * @return the local table the parts are attached to on every shard
+   */
+  public String getTable()
+  {
+    return table;
+  }
+
+  public int getShardCount()
+  {
+    return shardNums.size();
+  }
+
+  /**
+   * @return shard_num in system.clusters of the shard at the index
+   */
+  public int getShardNum(int index)
+  {
+    return shardNums.get(index);
+  }
+
+  /**
+   * @return the clickhouse local database holding the rows of the shard at the index
+   */
+  public String getShardDatabase(int index)
+  {
+    return database + "_shard" + shardNums.get(index);
+  }
+
+  /**
+   * @return filter selecting the rows of the shard at the index
+   */
+  public String getShardCondition(int index)
+  {
+    if (shardingKey == null) {
+      return "1";
+    }
+    long totalWeight = 0;
+    long from = 0;
+    for (int i = 0; i < weights.size(); i++) {
+      if (i == index) {
+        from = totalWeight;
+      }
+      totalWeight += weights.get(i);
+    }
+    return "(" + shardingKey + ") % " + totalWeight
+           + " between " + from + " and " + (from + weights.get(index) - 1);
+  }
+}
@@ -0,0 +1,217 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.spark.sql.Column;
+import org.apache.spark.sql.functions;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * PARTITION BY and ORDER BY of the target table, parsed from {@code show create table},
+ * and their translation to spark expressions over the DataFrame columns.
+ */
+public class TableKeys implements Serializable
+{
+  private static final Pattern CLAUSE_END = Pattern.compile(
+      "\\s(PARTITION BY|ORDER BY|PRIMARY KEY|SAMPLE BY|TTL|SETTINGS)\\s",
+      Pattern.CASE_INSENSITIVE
+  );
+  private static final Pattern IDENTIFIER = Pattern.compile("`([^`]+)`|\"([^\"]+)\"|([A-Za-z_][A-Za-z0-9_.]*)");
+  private static final Pattern CALL = Pattern.compile("^(\\w+)\\s*\\((.*)\\)$", Pattern.DOTALL);
+
+  private final List<String> partitionBy;
+  private final List<String> orderBy;
+
+  private TableKeys(List<String> partitionBy, List<String> orderBy)
+  {
+    this.partitionBy = partitionBy;
+    this.orderBy = orderBy;
+  }
+
+  public static TableKeys parse(String createTableSql)
+  {
+    String sql = createTableSql.replaceAll("\\s+", " ");
+    // only look at the engine clauses, a column could be named like a keyword
+    int engine = sql.toUpperCase().lastIndexOf(" ENGINE");
+    String clauses = (engine < 0 ? sql : sql.substring(engine)) + " ";
+    return new TableKeys(
+        splitTuple(extractClause(clauses, "PARTITION BY")),
+        splitTuple(extractClause(clauses, "ORDER BY"))
+    );
+  }
+
+  private static String extractClause(String clauses, String keyword)
+  {
+    Matcher start = Pattern.compile("\\s" + keyword + "\\s", Pattern.CASE_INSENSITIVE).matcher(clauses);
+    if (!start.find()) {
+      return "";
+    }
+    Matcher end = CLAUSE_END.matcher(clauses);
+    int from = start.end();
+    int to = end.find(from) ? end.start() : clauses.length();
+    return clauses.substring(from, to).trim();
+  }
+
+  /**
+   * Splits {@code (a, f(b, c))} or {@code a} into its elements, {@code tuple()} is empty
+   */
+  static List<String> splitTuple(String expression)
+  {
+    String e = expression.trim();
+    if (e.isEmpty() || e.equalsIgnoreCase("tuple()")) {
+      return Collections.emptyList();
+    }
+    if (e.startsWith("(") && closingParenthesis(e, 0) == e.length() - 1) {
+      e = e.substring(1, e.length() - 1);
+    } else if (e.toLowerCase().startsWith("tuple(") && closingParenthesis(e, 5) == e.length() - 1) {
+      e = e.substring(6, e.length() - 1);
+    } else {
+      return Collections.singletonList(e);
+    }
+    List<String> result = new ArrayList<>();
+    int depth = 0;
+    int from = 0;
+    boolean quoted = false;
+    for (int i = 0; i < e.length(); i++) {
+      char c = e.charAt(i);
+      if (c == '\'') {
+        quoted = !quoted;
+      } else if (!quoted && c == '(') {
+        depth++;
+      } else if (!quoted && c == ')') {
+        depth--;
+      } else if (!quoted && depth == 0 && c == ',') {
+        result.add(e.substring(from, i).trim());
+        from = i + 1;
+      }
+    }
+    result.add(e.substring(from).trim());
+    return result;
+  }
+
+  private static int closingParenthesis(String e, int open)
+  {
+    int depth = 0;
+    for (int i = open; i < e.length(); i++) {
+      if (e.charAt(i) == '(') {
+        depth++;
+      } else if (e.charAt(i) == ')' && --depth == 0) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public List<String> getPartitionBy()
+  {
+    return partitionBy;
+  }
+
+  public List<String> getOrderBy()
+  {
+    return orderBy;
+  }
+
+  public List<Column> partitionColumns(Set<String> columns)
+  {
+    return toSparkColumns(partitionBy, columns);
+  }
+
+  public List<Column> orderColumns(Set<String> columns)
+  {
+    return toSparkColumns(orderBy, columns);
+  }
+
+  /**
+   * Translates each key expression to spark sql. Common date functions are translated exactly,
+   * for anything else the columns referenced by the expression are used, in order.
+   */
+  static List<Column> toSparkColumns(List<String> expressions, Set<String> columns)
+  {
+    Set<String> result = new LinkedHashSet<>();
+    for (String expression : expressions) {
+      String translated = translate(expression, columns);
+      if (translated != null) {
+        result.add(translated);
+        continue;
+      }
+      Matcher m = IDENTIFIER.matcher(expression);
+      while (m.find()) {
+        String name = identifier(m);
+        if (columns.contains(name)) {
+          result.add(quote(name));
+        }
+      }
+    }
+    List<Column> sparkColumns = new ArrayList<>();
+    for (String e : result) {
+      sparkColumns.add(functions.expr(e));
+    }
+    return sparkColumns;
+  }
+
+  private static String translate(String expression, Set<String> columns)
+  {
+    String column = column(expression, columns);
+    if (column != null) {
+      return column;
+    }
+    Matcher call = CALL.matcher(expression.trim());
+    if (!call.matches()) {
+      return null;
+    }
+    String argument = column(call.group(2), columns);
+    if (argument == null) {
+      return null;
+    }
+    switch (call.group(1)) {
+      case "identity":
+        return argument;
+      case "toYYYYMM":
+        return "date_format(" + argument + ", 'yyyyMM')";
+      case "toYYYYMMDD":
+        return "date_format(" + argument + ", 'yyyyMMdd')";
+      case "toDate":
+        return "to_date(" + argument + ")";
+      case "toYear":
+        return "year(" + argument + ")";
+      case "toMonth":
+        return "month(" + argument + ")";
+      case "toStartOfYear":
+        return "trunc(" + argument + ", 'YYYY')";
+      case "toStartOfMonth":
+        return "trunc(" + argument + ", 'MM')";
+      case "toStartOfDay":
+        return "date_trunc('DAY', " + argument + ")";
+      case "toStartOfHour":
+        return "date_trunc('HOUR', " + argument + ")";
+      default:
+        return null;
+    }
+  }
+
+  private static String column(String expression, Set<String> columns)
+  {
+    Matcher m = IDENTIFIER.matcher(expression.trim());
+    if (m.matches() && columns.contains(identifier(m))) {
+      return quote(identifier(m));
+    }
+    return null;
+  }
+
+  private static String identifier(Matcher m)
+  {
+    return m.group(1) != null ? m.group(1) : m.group(2) != null ? m.group(2) : m.group(3);
+  }
+
+  private static String quote(String column)
+  {
+    return "`" + column.replace("`", "``") + "`";
+  }
+}
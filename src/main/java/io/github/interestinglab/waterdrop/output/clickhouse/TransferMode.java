@@ -0,0 +1,24 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import io.github.interestinglab.waterdrop.config.ConfigRuntimeException;
+
+/**
+ * How the part files are packed into the uploaded zip
+ */
+public enum TransferMode
+{
+  // compress every file again with DEFLATE
+  DEFLATE,
+  // STORED entries, the part files are already compressed by clickhouse
+  STORE;
+
+  public static TransferMode fromString(String name)
+  {
+    for (TransferMode mode : values()) {
+      if (mode.name().equalsIgnoreCase(name)) {
+        return mode;
+      }
+    }
+    throw new ConfigRuntimeException("unsupported transferMode " + name);
+  }
+}
@@ -0,0 +1,134 @@
+package io.github.interestinglab.waterdrop.output.clickhouse;
+
+import org.apache.spark.SparkEnv;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Places the work dirs of the builds on the local dirs of the executor, the same dirs spark spills and shuffles to.
+ * A build goes to the disk running the fewest builds of this executor, then to the one with the most free space
+ * left after the reservations of the running builds, and is refused when no disk has room for its estimated size.
+ * Local dirs on the same file system count as one disk.
+ */
+public class WorkDirAllocator
+{
+  private static final String PREFIX = "clickhouse-build-";
+
+  // work dir -> the allocation holding its disk and reserved bytes
+  private static final Map<File, Allocation> allocations = new HashMap<>();
+
+  private WorkDirAllocator()
+  {
+  }
+
+  /**
+   * Creates a work dir for one build and reserves the estimated bytes on its disk until {@link #release(File)}
+   *
+   * @throws IOException if no local dir has the estimated bytes free
+   */
+  public static synchronized File allocate(Logger log, long estimatedBytes) throws IOException
+  {
+    Map<FileStore, File> disks = new LinkedHashMap<>();
+    for (File dir : localDirs()) {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        log.info("skipping local dir " + dir + " which can't be created");
+        continue;
+      }
+      try {
+        disks.putIfAbsent(Files.getFileStore(dir.toPath()), dir);
+      }
+      catch (IOException e) {
+        log.info("skipping local dir " + dir, e);
+      }
+    }
+    FileStore best = null;
+    long bestFree = 0;
+    int bestRunning = 0;
+    List<String> candidates = new ArrayList<>();
+    for (Map.Entry<FileStore, File> disk : disks.entrySet()) {
+      int running = 0;
+      long reserved = 0;
+      for (Allocation allocation : allocations.values()) {
+        if (allocation.disk.equals(disk.getKey())) {
+          running++;
+          reserved += allocation.bytes;
+        }
+      }
+      long free = disk.getKey().getUsableSpace() - reserved;
+      candidates.add(String.format("%s: %d builds, %,d bytes free", disk.getValue(), running, free));
+      if (free < estimatedBytes) {
+        continue;
+      }
+      if (best == null || running < bestRunning || (running == bestRunning && free > bestFree)) {
+        best = disk.getKey();
+        bestFree = free;
+        bestRunning = running;
+      }
+    }
+    if (best == null) {
+      throw new IOException(String.format(
+          "no local dir has %,d bytes free for the build, %s",
+          estimatedBytes,
+          candidates
+      ));
+    }
+    File workDir = Files.createTempDirectory(disks.get(best).toPath(), PREFIX).toFile();
+    allocations.put(workDir, new Allocation(best, estimatedBytes));
+    log.info(String.format("building in %s, %d other builds on the disk, %,d bytes free", workDir, bestRunning, bestFree));
+    return workDir;
+  }
+
+  /**
+   * Gives back the reservation of a work dir, once it is deleted
+   */
+  public static synchronized void release(File workDir)
+  {
+    allocations.remove(workDir);
+  }
+
+  /**
+   * The local dirs spark itself uses: the container dirs on yarn, SPARK_LOCAL_DIRS, spark.local.dir,
+   * and java.io.tmpdir when none is set
+   */
+  static List<File> localDirs()
+  {
+    String dirs = System.getenv("LOCAL_DIRS");
+    if (dirs == null || dirs.isEmpty()) {
+      dirs = System.getenv("SPARK_LOCAL_DIRS");
+    }
+    if ((dirs == null || dirs.isEmpty()) && SparkEnv.get() != null) {
+      dirs = SparkEnv.get().conf().get("spark.local.dir", null);
+    }
+    if (dirs == null || dirs.isEmpty()) {
+      dirs = System.getProperty("java.io.tmpdir");
+    }
+    List<File> result = new ArrayList<>();
+    for (String dir : dirs.split(",")) {
+      if (!dir.trim().isEmpty()) {
+        result.add(new File(dir.trim()));
+      }
+    }
+    return result;
+  }
+
+  private static class Allocation
+  {
+    private final FileStore disk;
+    private final long bytes;
+
+    Allocation(FileStore disk, long bytes)
+    {
+      this.disk = disk;
+      this.bytes = bytes;
+    }
+  }
+}